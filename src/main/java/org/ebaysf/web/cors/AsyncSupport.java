@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * <p>
+ * Suspends and resumes requests through the asynchronous processing of
+ * Servlet 3.0 containers. The filter is built against the Servlet 2.5 API,
+ * so <code>ServletRequest.startAsync()</code>,
+ * <code>AsyncContext.dispatch()</code> and
+ * <code>AsyncContext.complete()</code> are looked up once, reflectively; in a
+ * Servlet 2.5 container, requests are never suspended.
+ * </p>
+ */
+final class AsyncSupport {
+    /**
+     * Asynchronous processing of the container's requests.
+     */
+    static final AsyncSupport SERVLET = new AsyncSupport(ServletRequest.class);
+
+    private final Class<?> requestType;
+
+    private final Method isAsyncSupported;
+
+    private final Method startAsync;
+
+    private final Method dispatch;
+
+    private final Method complete;
+
+    /**
+     * @param requestType
+     *            The request type declaring <code>isAsyncSupported()</code>
+     *            and <code>startAsync()</code>.
+     */
+    AsyncSupport(final Class<?> requestType) {
+        Method isAsyncSupportedMethod = null;
+        Method startAsyncMethod = null;
+        Method dispatchMethod = null;
+        Method completeMethod = null;
+        try {
+            isAsyncSupportedMethod = requestType.getMethod("isAsyncSupported");
+            startAsyncMethod = requestType.getMethod("startAsync");
+            dispatchMethod =
+                    startAsyncMethod.getReturnType().getMethod("dispatch");
+            completeMethod =
+                    startAsyncMethod.getReturnType().getMethod("complete");
+        } catch (NoSuchMethodException e) {
+            // Servlet 2.5
+            isAsyncSupportedMethod = null;
+        }
+        this.requestType = requestType;
+        this.isAsyncSupported = isAsyncSupportedMethod;
+        this.startAsync = startAsyncMethod;
+        this.dispatch = dispatchMethod;
+        this.complete = completeMethod;
+    }
+
+    /**
+     * Checks if a request can be suspended: the container supports
+     * asynchronous processing, and so do the filters and servlet it's mapped
+     * to.
+     * 
+     * @param request
+     *            The request.
+     * @return <code>true</code> if it can; <code>false</code> otherwise.
+     */
+    boolean isAsyncSupported(final ServletRequest request) {
+        return isAsyncSupported != null && requestType.isInstance(request)
+                && Boolean.TRUE.equals(invoke(isAsyncSupported, request));
+    }
+
+    /**
+     * Suspends a request.
+     * 
+     * @param request
+     *            The request, that supports asynchronous processing.
+     * @return Its <code>AsyncContext</code>.
+     */
+    Object startAsync(final ServletRequest request) {
+        return invoke(startAsync, request);
+    }
+
+    /**
+     * Resumes a suspended request, by dispatching it again to its URI,
+     * through the filters mapped for <code>ASYNC</code> dispatches.
+     * 
+     * @param asyncContext
+     *            The <code>AsyncContext</code> of the request.
+     */
+    void dispatch(final Object asyncContext) {
+        invoke(dispatch, asyncContext);
+    }
+
+    /**
+     * Completes a suspended request, with its response as it is, without
+     * dispatching it again.
+     * 
+     * @param asyncContext
+     *            The <code>AsyncContext</code> of the request.
+     */
+    void complete(final Object asyncContext) {
+        invoke(complete, asyncContext);
+    }
+
+    private static Object invoke(final Method method, final Object target) {
+        try {
+            return method.invoke(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
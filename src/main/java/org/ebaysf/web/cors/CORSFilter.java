@@ -15,14 +15,17 @@
  */
 package org.ebaysf.web.cors;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.Filter;
@@ -70,64 +73,43 @@ public final class CORSFilter implements Filter {
     private FilterConfig filterConfig;
 
     /**
-     * A {@link Collection} of origins consisting of zero or more origins that
-     * are allowed access to the resource.
+     * The compiled configuration. It's only ever replaced as a whole, and each
+     * request is evaluated and handled against the one policy it read.
      */
-    private final Collection<String> allowedOrigins;
+    private volatile CorsPolicy policy;
 
     /**
-     * Determines if any origin is allowed to make request.
+     * Logs rejected requests off the request thread; <code>null</code> if
+     * logging is disabled or synchronous.
      */
-    private boolean anyOriginAllowed;
+    private volatile RejectionLog rejectionLog;
 
     /**
-     * A {@link Collection} of methods consisting of zero or more methods that
-     * are supported by the resource.
+     * Reload the origin index files, of any policy, when they change; empty
+     * if there are none, or reloading is disabled.
      */
-    private final Collection<String> allowedHttpMethods;
+    private final List<OriginFileWatcher> originFileWatchers =
+            new ArrayList<OriginFileWatcher>();
 
     /**
-     * A {@link Collection} of headers consisting of zero or more header field
-     * names that are supported by the resource.
+     * Serializes the replacement of {@link #policy}, by {@link #init} and by
+     * origin file reloads. Requests never take it.
      */
-    private final Collection<String> allowedHttpHeaders;
+    private final Object policyLock = new Object();
 
     /**
-     * A {@link Collection} of exposed headers consisting of zero or more header
-     * field names of headers other than the simple response headers that the
-     * resource might use and can be exposed.
+     * Suspends and resumes requests, for asynchronous origin resolution.
      */
-    private final Collection<String> exposedHeaders;
+    private volatile AsyncSupport asyncSupport = AsyncSupport.SERVLET;
 
     /**
-     * A supports credentials flag that indicates whether the resource supports
-     * user credentials in the request. It is true when the resource does and
-     * false otherwise.
+     * Merges tokens into the 'Vary' response header.
      */
-    private boolean supportsCredentials;
-
-    /**
-     * Indicates (in seconds) how long the results of a pre-flight request can
-     * be cached in a pre-flight result cache.
-     */
-    private long preflightMaxAge;
-
-    /**
-     * Controls access log logging.
-     */
-    private boolean loggingEnabled;
-
-    /**
-     * Determines if the request should be decorated or not.
-     */
-    private boolean decorateRequest;
+    private volatile VaryHeader varyHeader = VaryHeader.SERVLET;
 
     // --------------------------------------------------------- Constructor(s)
     public CORSFilter() {
-        this.allowedOrigins = new HashSet<String>();
-        this.allowedHttpMethods = new HashSet<String>();
-        this.allowedHttpHeaders = new HashSet<String>();
-        this.exposedHeaders = new HashSet<String>();
+        this.policy = CorsPolicy.EMPTY;
     }
 
     // --------------------------------------------------------- Public methods
@@ -147,72 +129,305 @@ public final class CORSFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest) servletRequest;
         HttpServletResponse response = (HttpServletResponse) servletResponse;
 
-        // Determines the CORS request type.
-        CORSFilter.CORSRequestType requestType = checkRequestType(request);
+        // Dispatched again, once handled while it was suspended; the tokens
+        // merged into 'Vary', if any, are kept for the application.
+        final Object resumed = request.getAttribute(RESUMED_REQUEST);
+        if (resumed != null) {
+            request.removeAttribute(RESUMED_REQUEST);
+            filterChain.doFilter(request, resumed instanceof String
+                    ? new VaryMergingResponse(response, varyHeader,
+                            (String) resumed) : response);
+            return;
+        }
+
+        // Selects the policy of the request path; excluded paths bypass CORS
+        // processing altogether.
+        final CorsPolicy policy = selectPolicy(request);
+        if (policy == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        // Suspends the request, rather than blocking the thread, while its
+        // origin is resolved.
+        if (suspendForResolution(request, response, policy)) {
+            return;
+        }
+
+        // Determines the CORS request type, once per request.
+        handle(request, response, filterChain, evaluate(request, policy));
+    }
 
+    /**
+     * Decorates and handles an evaluated request, according to its type.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param filterChain
+     *            The {@link FilterChain} object.
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     * @throws IOException
+     * @throws ServletException
+     */
+    private void handle(final HttpServletRequest request,
+            final HttpServletResponse response, final FilterChain filterChain,
+            final CORSRequestEvaluation evaluation) throws IOException,
+            ServletException {
         // Adds CORS specific attributes to request.
-        if (decorateRequest) {
-            CORSFilter.decorateCORSProperties(request, requestType);
+        if (evaluation.getPolicy().isDecorateRequest()) {
+            CORSFilter.decorateCORSProperties(request, evaluation);
         }
-        switch (requestType) {
+        switch (evaluation.getRequestType()) {
         case SIMPLE:
             // Handles a Simple CORS request.
-            this.handleSimpleCORS(request, response, filterChain);
+            this.handleSimpleCORS(request, response, filterChain, evaluation);
             break;
         case ACTUAL:
             // Handles an Actual CORS request.
-            this.handleSimpleCORS(request, response, filterChain);
+            this.handleSimpleCORS(request, response, filterChain, evaluation);
             break;
         case PRE_FLIGHT:
             // Handles a Pre-flight CORS request.
-            this.handlePreflightCORS(request, response, filterChain);
+            this.handlePreflightCORS(request, response, filterChain,
+                    evaluation);
             break;
         case NOT_CORS:
-            // Handles a Normal request that is not a cross-origin request.
-            this.handleNonCORS(request, response, filterChain);
+            // Handles a Normal request that is not a cross-origin request. A
+            // cached response to it mustn't be served to a CORS request.
+            this.handleNonCORS(request,
+                    addVaryOrigin(response, evaluation.getPolicy()),
+                    filterChain);
             break;
         default:
             // Handles a CORS request that violates specification.
-            this.handleInvalidCORS(request, response, filterChain);
+            this.handleInvalidCORS(request, response, filterChain, evaluation);
             break;
         }
     }
 
     @Override
     public void init(final FilterConfig filterConfig) throws ServletException {
-        // Initialize defaults
-        parseAndStore(DEFAULT_ALLOWED_ORIGINS, DEFAULT_ALLOWED_HTTP_METHODS,
-                DEFAULT_ALLOWED_HTTP_HEADERS, DEFAULT_EXPOSED_HEADERS,
-                DEFAULT_SUPPORTS_CREDENTIALS, DEFAULT_PREFLIGHT_MAXAGE,
-                DEFAULT_LOGGING_ENABLED, DEFAULT_DECORATE_REQUEST);
-
         this.filterConfig = filterConfig;
-        this.loggingEnabled = false;
-
-        if (filterConfig != null) {
-            String configAllowedOrigins =
-                    filterConfig.getInitParameter(PARAM_CORS_ALLOWED_ORIGINS);
-            String configAllowedHttpMethods =
-                    filterConfig.getInitParameter(PARAM_CORS_ALLOWED_METHODS);
-            String configAllowedHttpHeaders =
-                    filterConfig.getInitParameter(PARAM_CORS_ALLOWED_HEADERS);
-            String configExposedHeaders =
-                    filterConfig.getInitParameter(PARAM_CORS_EXPOSED_HEADERS);
-            String configSupportsCredentials =
-                    filterConfig
-                            .getInitParameter(PARAM_CORS_SUPPORT_CREDENTIALS);
-            String configPreflightMaxAge =
-                    filterConfig.getInitParameter(PARAM_CORS_PREFLIGHT_MAXAGE);
-            String configLoggingEnabled =
-                    filterConfig.getInitParameter(PARAM_CORS_LOGGING_ENABLED);
-            String configDecorateRequest =
-                    filterConfig.getInitParameter(PARAM_CORS_REQUEST_DECORATE);
-
-            parseAndStore(configAllowedOrigins, configAllowedHttpMethods,
-                    configAllowedHttpHeaders,
-                    configExposedHeaders, configSupportsCredentials,
-                    configPreflightMaxAge,
-                    configLoggingEnabled, configDecorateRequest);
+
+        long reloadInterval;
+        try {
+            reloadInterval =
+                    Long.parseLong(getInitParameter(filterConfig,
+                            PARAM_CORS_ALLOWED_ORIGINS_FILE_RELOAD_INTERVAL,
+                            DEFAULT_ALLOWED_ORIGINS_FILE_RELOAD_INTERVAL)
+                            .trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException(
+                    "Unable to parse allowedOriginsFileReloadInterval", e);
+        }
+
+        // The whole configuration is parsed and compiled first, so that it's
+        // published at once, or not at all if a param is invalid.
+        CorsPolicy newPolicy = parsePolicies(filterConfig);
+
+        try {
+            parseAndStoreRejectionLog(isLoggingEnabled(newPolicy),
+                    getInitParameter(filterConfig, PARAM_CORS_LOGGING_ASYNC),
+                    getInitParameter(filterConfig,
+                            PARAM_CORS_LOGGING_BUFFER_SIZE),
+                    getInitParameter(filterConfig,
+                            PARAM_CORS_LOGGING_RATE_LIMIT));
+        } catch (ServletException e) {
+            newPolicy.destroy();
+            throw e;
+        }
+
+        CorsPolicy previousPolicy;
+        List<OriginFileWatcher> previousWatchers;
+        synchronized (policyLock) {
+            previousWatchers = cancelOriginFileWatchers();
+            previousPolicy = this.policy;
+            this.policy = newPolicy;
+            if (reloadInterval > 0) {
+                for (MappedOriginIndex originFile : newPolicy
+                        .getOriginFiles()) {
+                    OriginFileWatcher originFileWatcher =
+                            new OriginFileWatcher(this, originFile,
+                                    reloadInterval,
+                                    filterConfig != null ? filterConfig
+                                            .getServletContext() : null);
+                    originFileWatchers.add(originFileWatcher);
+                    originFileWatcher.start();
+                }
+            }
+        }
+        stopOriginFileWatchers(previousWatchers);
+        previousPolicy.destroy();
+    }
+
+    /**
+     * Swaps the policies that use an origin index file, the default one and
+     * those of specific virtual hosts and paths, to a new version of it,
+     * unless the filter has been reconfigured meanwhile.
+     * 
+     * @param previous
+     *            The index being replaced.
+     * @param next
+     *            The new index.
+     */
+    void swapOriginFile(final MappedOriginIndex previous,
+            final MappedOriginIndex next) {
+        synchronized (policyLock) {
+            CorsPolicy current = policy;
+            if (current.getOriginFiles().contains(previous)) {
+                this.policy = current.withOriginFile(previous, next);
+            }
+        }
+    }
+
+    /**
+     * Suspends a request whose origin the {@link OriginResolver} has to look
+     * up, if asynchronous resolution is enabled and the container supports
+     * it. The request is handled once the origin is resolved, see
+     * {@link #resume}.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param policy
+     *            The {@link CorsPolicy} of the request.
+     * @return <code>true</code> if the request has been suspended;
+     *         <code>false</code> if it's to be handled right away.
+     */
+    private boolean suspendForResolution(final HttpServletRequest request,
+            final HttpServletResponse response, final CorsPolicy policy) {
+        final CachingOriginResolver resolver = policy.getOriginResolver();
+        if (resolver == null || !resolver.isAsync()) {
+            return false;
+        }
+        final String origin = request.getHeader(REQUEST_HEADER_ORIGIN);
+        if (origin == null || !policy.needsResolution(origin)
+                || !asyncSupport.isAsyncSupported(request)) {
+            return false;
+        }
+        final Object asyncContext = asyncSupport.startAsync(request);
+        resolver.resolve(origin, new CachingOriginResolver.Callback() {
+            @Override
+            public void resolved(final boolean allowed) {
+                request.setAttribute(RESOLVED_ORIGIN_DECISION,
+                        policy.decideResolvedOrigin(origin, allowed));
+                resume(request, response, policy, asyncContext);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Handles a suspended request once its origin is resolved, before it's
+     * resumed, so that it never reaches the resource unchecked, even if the
+     * filter isn't mapped for <code>ASYNC</code> dispatches. A request that's
+     * passed down the chain is dispatched again, and then let through by the
+     * filter; any other is completed, with its response as handled.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param policy
+     *            The {@link CorsPolicy} of the request.
+     * @param asyncContext
+     *            The <code>AsyncContext</code> of the request.
+     */
+    private void resume(final HttpServletRequest request,
+            final HttpServletResponse response, final CorsPolicy policy,
+            final Object asyncContext) {
+        DispatchingFilterChain dispatchingChain =
+                new DispatchingFilterChain(asyncSupport, asyncContext);
+        // Set beforehand, as the request may be dispatched again at once.
+        request.setAttribute(RESUMED_REQUEST, Boolean.TRUE);
+        try {
+            handle(request, response, dispatchingChain,
+                    evaluate(request, policy));
+        } catch (IOException e) {
+            log("Unable to handle resumed CORS request: " + e);
+        } catch (ServletException e) {
+            log("Unable to handle resumed CORS request: " + e);
+        } finally {
+            if (!dispatchingChain.isDispatched()) {
+                request.removeAttribute(RESUMED_REQUEST);
+                asyncSupport.complete(asyncContext);
+            }
+        }
+    }
+
+    /**
+     * Adds 'Origin' to the 'Vary' response header, if the response depends
+     * on the request's origin under a policy, i.e. the policy reflects
+     * allowed origins, rather than allowing any origin with '*'; so that
+     * shared caches don't serve it to requests from other origins.
+     * 
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param policy
+     *            The {@link CorsPolicy} of the request.
+     * @return The response to pass down the filter chain, that keeps
+     *         'Origin' in the 'Vary' header when the application sets it.
+     */
+    private HttpServletResponse addVaryOrigin(
+            final HttpServletResponse response, final CorsPolicy policy) {
+        if (!policy.isOriginReflected()) {
+            return response;
+        }
+        varyHeader.addTokens(response, REQUEST_HEADER_ORIGIN);
+        return new VaryMergingResponse(response, varyHeader,
+                REQUEST_HEADER_ORIGIN);
+    }
+
+    /**
+     * Sets how the 'Vary' response header is merged; for tests.
+     * 
+     * @param varyHeader
+     *            The {@link VaryHeader}.
+     */
+    void setVaryHeader(final VaryHeader varyHeader) {
+        this.varyHeader = varyHeader;
+    }
+
+    /**
+     * Sets how requests are suspended; for tests.
+     * 
+     * @param asyncSupport
+     *            The {@link AsyncSupport}.
+     */
+    void setAsyncSupport(final AsyncSupport asyncSupport) {
+        if (asyncSupport == null) {
+            throw new IllegalArgumentException("AsyncSupport object is null");
+        }
+        this.asyncSupport = asyncSupport;
+    }
+
+    /**
+     * Detaches the origin file watchers, and has them stop; called while
+     * holding {@link #policyLock}. A watcher that's reloading meanwhile waits
+     * for the lock, so it's only waited for by
+     * {@link #stopOriginFileWatchers(List)}, once the lock is released; its
+     * reload is then ignored, as the policy no longer uses its index.
+     * 
+     * @return The detached watchers.
+     */
+    private List<OriginFileWatcher> cancelOriginFileWatchers() {
+        List<OriginFileWatcher> watchers =
+                new ArrayList<OriginFileWatcher>(originFileWatchers);
+        for (OriginFileWatcher originFileWatcher : watchers) {
+            originFileWatcher.cancel();
+        }
+        originFileWatchers.clear();
+        return watchers;
+    }
+
+    private static void stopOriginFileWatchers(
+            final List<OriginFileWatcher> watchers) {
+        for (OriginFileWatcher originFileWatcher : watchers) {
+            originFileWatcher.stop();
         }
     }
 
@@ -234,8 +449,35 @@ public final class CORSFilter implements Filter {
     public void handleSimpleCORS(final HttpServletRequest request,
             final HttpServletResponse response, final FilterChain filterChain)
             throws IOException, ServletException {
-        CORSFilter.CORSRequestType requestType =
-                checkRequestType(request);
+        handleSimpleCORS(request, response, filterChain, evaluate(request));
+    }
+
+    /**
+     * Handles a CORS request of type {@link CORSRequestType}.SIMPLE, that has
+     * already been evaluated.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param filterChain
+     *            The {@link FilterChain} object.
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     * @throws IOException
+     * @throws ServletException
+     * @see <a href="http://www.w3.org/TR/cors/#resource-requests">Simple
+     *      Cross-Origin Request, Actual Request, and Redirects</a>
+     */
+    public void handleSimpleCORS(final HttpServletRequest request,
+            final HttpServletResponse response, final FilterChain filterChain,
+            final CORSRequestEvaluation evaluation)
+            throws IOException, ServletException {
+        if (evaluation == null) {
+            throw new IllegalArgumentException(
+                    "CORSRequestEvaluation object is null");
+        }
+        CORSFilter.CORSRequestType requestType = evaluation.getRequestType();
         if (!(requestType == CORSFilter.CORSRequestType.SIMPLE
         || requestType == CORSFilter.CORSRequestType.ACTUAL)) {
             String message =
@@ -246,60 +488,39 @@ public final class CORSFilter implements Filter {
             throw new IllegalArgumentException(message);
         }
 
-        final String origin =
-                request.getHeader(CORSFilter.REQUEST_HEADER_ORIGIN);
-        final String method = request.getMethod();
+        final CorsPolicy policy = evaluation.getPolicy();
 
         // Section 6.1.2
-        if (!isOriginAllowed(origin)) {
-            handleInvalidCORS(request, response, filterChain);
+        if (!isOriginAllowed(evaluation)) {
+            handleInvalidCORS(request, response, filterChain, evaluation);
             return;
         }
 
-        if (!allowedHttpMethods.contains(method)) {
-            handleInvalidCORS(request, response, filterChain);
+        if (!HttpMethodRegistry.contains(policy.getAllowedHttpMethodsMask(),
+                evaluation.getMethodId())) {
+            handleInvalidCORS(request, response, filterChain, evaluation);
             return;
         }
 
-        // Section 6.1.3
-        // Add a single Access-Control-Allow-Origin header.
-        if (anyOriginAllowed && !supportsCredentials) {
-            // If resource doesn't support credentials and if any origin is
-            // allowed
-            // to make CORS request, return header with '*'.
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-        } else {
-            // If the resource supports credentials add a single
-            // Access-Control-Allow-Origin header, with the value of the Origin
-            // header as value.
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN,
-                    origin);
-        }
-        // Section 6.1.3
-        // If the resource supports credentials, add a single
-        // Access-Control-Allow-Credentials header with the case-sensitive
-        // string "true" as value.
-        if (supportsCredentials) {
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_CREDENTIALS,
-                    "true");
-        }
-
-        // Section 6.1.4
-        // If the list of exposed headers is not empty add one or more
-        // Access-Control-Expose-Headers headers, with as values the header
-        // field names given in the list of exposed headers.
-        if ((exposedHeaders != null) && (exposedHeaders.size() > 0)) {
-            String exposedHeadersString = join(exposedHeaders, ",");
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_EXPOSE_HEADERS,
-                    exposedHeadersString);
+        // Section 6.1.3 and Section 6.1.4
+        // Add a single Access-Control-Allow-Origin header, a single
+        // Access-Control-Allow-Credentials header if the resource supports
+        // credentials, and an Access-Control-Expose-Headers header if the
+        // list of exposed headers is not empty; all prebuilt by the policy,
+        // and kept with the origin's cached decision.
+        OriginDecision originDecision = evaluation.getOriginDecision();
+        String[] responseHeaders =
+                originDecision != null ? originDecision.getResponseHeaders()
+                        : null;
+        if (responseHeaders == null) {
+            responseHeaders = policy.getResponseHeaders(evaluation.getOrigin());
+        }
+        for (int i = 0; i < responseHeaders.length; i += 2) {
+            response.addHeader(responseHeaders[i], responseHeaders[i + 1]);
         }
 
         // Forward the request down the filter chain.
-        filterChain.doFilter(request, response);
+        filterChain.doFilter(request, addVaryOrigin(response, policy));
     }
 
     /**
@@ -317,103 +538,164 @@ public final class CORSFilter implements Filter {
     public void handlePreflightCORS(final HttpServletRequest request,
             final HttpServletResponse response, final FilterChain filterChain)
             throws IOException, ServletException {
-        CORSRequestType requestType = checkRequestType(request);
+        handlePreflightCORS(request, response, filterChain, evaluate(request));
+    }
+
+    /**
+     * Handles CORS pre-flight request, that has already been evaluated.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param filterChain
+     *            The {@link FilterChain} object.
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     * @throws IOException
+     * @throws ServletException
+     */
+    public void handlePreflightCORS(final HttpServletRequest request,
+            final HttpServletResponse response, final FilterChain filterChain,
+            final CORSRequestEvaluation evaluation)
+            throws IOException, ServletException {
+        if (evaluation == null) {
+            throw new IllegalArgumentException(
+                    "CORSRequestEvaluation object is null");
+        }
+        CORSRequestType requestType = evaluation.getRequestType();
         if (requestType != CORSRequestType.PRE_FLIGHT) {
             throw new IllegalArgumentException(
                     "Expects a HttpServletRequest object of type "
                             + CORSRequestType.PRE_FLIGHT.name().toLowerCase());
         }
 
-        final String origin =
-                request.getHeader(CORSFilter.REQUEST_HEADER_ORIGIN);
+        final CorsPolicy policy = evaluation.getPolicy();
+
+        // A known pre-flight, found when evaluating the request, only has its
+        // headers written out.
+        final PreflightDecisionCache preflightCache =
+                policy.getPreflightDecisionCache();
+        String[] decision = evaluation.getPreflightDecision();
+        if (decision == null) {
+            decision = decidePreflight(evaluation);
+            // The resolver's answers expire, so decisions that depend on
+            // them aren't cached.
+            OriginDecision originDecision = evaluation.getOriginDecision();
+            if (preflightCache != null
+                    && (originDecision != null ? originDecision.isCacheable()
+                            : policy.getOriginResolver() == null)) {
+                preflightCache.put(evaluation.getOrigin(),
+                        evaluation.getAccessControlRequestMethod(),
+                        evaluation.getAccessControlRequestHeaders(), decision);
+            }
+        }
 
-        // Section 6.2.2
-        if (!isOriginAllowed(origin)) {
-            handleInvalidCORS(request, response, filterChain);
+        if (decision == PreflightDecisionCache.REJECTED) {
+            handleInvalidCORS(request, response, filterChain, evaluation);
             return;
         }
+        for (int i = 0; i < decision.length; i += 2) {
+            response.addHeader(decision[i], decision[i + 1]);
+        }
+        varyHeader.addTokens(response, policy.getPreflightVaryValue());
+
+        if (policy.isPreflightNoContent()) {
+            // Commits the response, without a body, rather than leaving it
+            // to the container's end of request processing. A 204 response
+            // has no 'Content-Length' header, as per RFC7230 Section 3.3.2.
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            response.flushBuffer();
+        }
+
+        // Do not forward the request down the filter chain.
+    }
+
+    /**
+     * Decides on an evaluated pre-flight request, as per Section 6.2 of the
+     * specification.
+     * 
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     * @return The response headers, as alternating names and values, or
+     *         {@link PreflightDecisionCache#REJECTED}.
+     */
+    private String[] decidePreflight(final CORSRequestEvaluation evaluation) {
+        final CorsPolicy policy = evaluation.getPolicy();
+
+        // Section 6.2.2
+        if (!isOriginAllowed(evaluation)) {
+            return PreflightDecisionCache.REJECTED;
+        }
 
         // Section 6.2.3
         String accessControlRequestMethod =
-                request.getHeader(CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD);
-        if (accessControlRequestMethod == null
-                || (!HTTP_METHODS
-                        .contains(accessControlRequestMethod.trim()))) {
-            handleInvalidCORS(request, response, filterChain);
-            return;
-        } else {
+                evaluation.getAccessControlRequestMethod();
+        int accessControlRequestMethodId = HttpMethodRegistry.UNKNOWN;
+        if (accessControlRequestMethod != null) {
             accessControlRequestMethod = accessControlRequestMethod.trim();
+            accessControlRequestMethodId =
+                    policy.getHttpMethodRegistry().idOf(
+                            accessControlRequestMethod);
         }
-
-        // Section 6.2.4
-        String accessControlRequestHeadersHeader =
-                request.getHeader(CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS);
-        List<String> accessControlRequestHeaders = new LinkedList<String>();
-        if (accessControlRequestHeadersHeader != null
-                && !accessControlRequestHeadersHeader.trim().isEmpty()) {
-            String[] headers =
-                    accessControlRequestHeadersHeader.trim().split(",");
-            for (String header : headers) {
-                accessControlRequestHeaders.add(header.trim().toLowerCase());
-            }
+        if (accessControlRequestMethodId == HttpMethodRegistry.UNKNOWN) {
+            return PreflightDecisionCache.REJECTED;
         }
 
         // Section 6.2.5
-        if (!allowedHttpMethods.contains(accessControlRequestMethod)) {
-            handleInvalidCORS(request, response, filterChain);
-            return;
+        if (!HttpMethodRegistry.contains(policy.getAllowedHttpMethodsMask(),
+                accessControlRequestMethodId)) {
+            return PreflightDecisionCache.REJECTED;
         }
 
-        // Section 6.2.6
-        if (!accessControlRequestHeaders.isEmpty()) {
-            for (String header : accessControlRequestHeaders) {
-                if (!allowedHttpHeaders.contains(header)) {
-                    handleInvalidCORS(request, response, filterChain);
-                    return;
-                }
-            }
+        // Section 6.2.4 and Section 6.2.6
+        if (!policy.areRequestHeadersAllowed(evaluation
+                .getAccessControlRequestHeaders())) {
+            return PreflightDecisionCache.REJECTED;
         }
 
+        List<String> headers = new ArrayList<String>(10);
+
         // Section 6.2.7
-        if (supportsCredentials) {
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN,
-                    origin);
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_CREDENTIALS,
-                    "true");
-        } else {
-            if (anyOriginAllowed) {
-                response.addHeader(
-                        CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN,
-                        "*");
-            } else {
-                response.addHeader(
-                        CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN,
-                        origin);
-            }
+        headers.add(CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN);
+        headers.add(getAllowOriginValue(evaluation));
+        if (policy.isSupportsCredentials()) {
+            headers.add(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_CREDENTIALS);
+            headers.add("true");
         }
 
         // Section 6.2.8
-        if (preflightMaxAge > 0) {
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_MAX_AGE,
-                    String.valueOf(preflightMaxAge));
+        String preflightMaxAgeValue = policy.getPreflightMaxAgeValue();
+        if (preflightMaxAgeValue != null) {
+            headers.add(CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_MAX_AGE);
+            headers.add(preflightMaxAgeValue);
+        }
+        // Lets shared caches answer the pre-flight, for as long.
+        String preflightCacheControlValue =
+                policy.getPreflightCacheControlValue();
+        if (preflightCacheControlValue != null) {
+            headers.add(RESPONSE_HEADER_CACHE_CONTROL);
+            headers.add(preflightCacheControlValue);
         }
 
         // Section 6.2.9
-        response.addHeader(
-                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS,
-                accessControlRequestMethod);
+        // The list of all allowed methods lets a single pre-flight result
+        // cover them all; it's valid, as a superset of the requested method.
+        String allowedHttpMethodsValue = policy.getAllowedHttpMethodsValue();
+        headers.add(CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS);
+        headers.add(allowedHttpMethodsValue != null ? allowedHttpMethodsValue
+                : accessControlRequestMethod);
 
         // Section 6.2.10
-        if ((allowedHttpHeaders != null) && (!allowedHttpHeaders.isEmpty())) {
-            response.addHeader(
-                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_HEADERS,
-                    join(allowedHttpHeaders, ","));
+        String allowedHttpHeadersValue = policy.getAllowedHttpHeadersValue();
+        if (allowedHttpHeadersValue != null) {
+            headers.add(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_HEADERS);
+            headers.add(allowedHttpHeadersValue);
         }
 
-        // Do not forward the request down the filter chain.
+        return headers.toArray(new String[headers.size()]);
     }
 
     /**
@@ -451,28 +733,62 @@ public final class CORSFilter implements Filter {
      */
     public void handleInvalidCORS(final HttpServletRequest request,
             final HttpServletResponse response, final FilterChain filterChain) {
-        String origin = request.getHeader(CORSFilter.REQUEST_HEADER_ORIGIN);
-        String method = request.getMethod();
-        String accessControlRequestHeaders =
-                request.getHeader(REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS);
+        handleInvalidCORS(request, response, filterChain, evaluate(request));
+    }
 
-        String message =
-                "Invalid CORS request; Origin=" + origin + ";Method=" + method;
-        if (accessControlRequestHeaders != null) {
-            message =
-                    message + ";Access-Control-Request-Headers="
-                            + accessControlRequestHeaders;
+    /**
+     * Handles a CORS request that violates specification, and that has
+     * already been evaluated.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param response
+     *            The {@link HttpServletResponse} object.
+     * @param filterChain
+     *            The {@link FilterChain} object.
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     */
+    public void handleInvalidCORS(final HttpServletRequest request,
+            final HttpServletResponse response, final FilterChain filterChain,
+            final CORSRequestEvaluation evaluation) {
+        if (evaluation == null) {
+            throw new IllegalArgumentException(
+                    "CORSRequestEvaluation object is null");
         }
         response.setContentType("text/plain");
         response.setStatus(HttpServletResponse.SC_FORBIDDEN);
         response.resetBuffer();
-
-        log(message);
+        // The rejection depends on the origin, whatever the policy.
+        varyHeader.addTokens(response, REQUEST_HEADER_ORIGIN);
+
+        // Nothing is formatted, unless logging is enabled.
+        if (evaluation.getPolicy().isLoggingEnabled()) {
+            RejectionLog asyncLog = rejectionLog;
+            if (asyncLog != null) {
+                asyncLog.offer(evaluation.getOrigin(), evaluation.getMethod(),
+                        evaluation.getAccessControlRequestHeaders());
+            } else {
+                log(RejectionLog.format(evaluation.getOrigin(),
+                        evaluation.getMethod(),
+                        evaluation.getAccessControlRequestHeaders()));
+            }
+        }
     }
 
     @Override
     public void destroy() {
-        // NOOP
+        RejectionLog asyncLog = rejectionLog;
+        if (asyncLog != null) {
+            asyncLog.stop();
+            rejectionLog = null;
+        }
+        List<OriginFileWatcher> previousWatchers;
+        synchronized (policyLock) {
+            previousWatchers = cancelOriginFileWatchers();
+            policy.destroy();
+        }
+        stopOriginFileWatchers(previousWatchers);
     }
 
     // -------------------------------------------------------- Utility methods
@@ -553,6 +869,68 @@ public final class CORSFilter implements Filter {
         }
     }
 
+    /**
+     * Decorates the {@link HttpServletRequest}, with CORS attributes, from an
+     * already evaluated request. It sets the same attributes as
+     * {@link #decorateCORSProperties(HttpServletRequest, CORSRequestType)},
+     * without re-reading the request headers.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     */
+    private static void decorateCORSProperties(
+            final HttpServletRequest request,
+            final CORSRequestEvaluation evaluation) {
+        if (request == null) {
+            throw new IllegalArgumentException(
+                    "HttpServletRequest object is null");
+        }
+
+        if (evaluation == null) {
+            throw new IllegalArgumentException(
+                    "CORSRequestEvaluation object is null");
+        }
+
+        CORSRequestType corsRequestType = evaluation.getRequestType();
+        switch (corsRequestType) {
+        case SIMPLE:
+        case ACTUAL:
+            request.setAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_IS_CORS_REQUEST, true);
+            request.setAttribute(CORSFilter.HTTP_REQUEST_ATTRIBUTE_ORIGIN,
+                    evaluation.getOrigin());
+            request.setAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_REQUEST_TYPE,
+                    corsRequestType.name().toLowerCase());
+            break;
+        case PRE_FLIGHT:
+            request.setAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_IS_CORS_REQUEST, true);
+            request.setAttribute(CORSFilter.HTTP_REQUEST_ATTRIBUTE_ORIGIN,
+                    evaluation.getOrigin());
+            request.setAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_REQUEST_TYPE,
+                    corsRequestType.name().toLowerCase());
+            String headers = evaluation.getAccessControlRequestHeaders();
+            if (headers == null) {
+                headers = "";
+            }
+            request.setAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_REQUEST_HEADERS,
+                    headers);
+            break;
+        case NOT_CORS:
+            request.setAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_IS_CORS_REQUEST, false);
+            break;
+        default:
+            // Don't set any attributes
+            break;
+        }
+    }
+
     /**
      * Joins elements of {@link Set} into a string, where each element is
      * separated by the provided separator.
@@ -597,173 +975,741 @@ public final class CORSFilter implements Filter {
      * @return
      */
     public CORSRequestType checkRequestType(final HttpServletRequest request) {
-        CORSRequestType requestType = CORSRequestType.INVALID_CORS;
+        return evaluate(request).getRequestType();
+    }
+
+    /**
+     * Inspects the request once, determining its type and capturing the CORS
+     * request headers needed to handle it.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @return The {@link CORSRequestEvaluation} of the request.
+     */
+    public CORSRequestEvaluation evaluate(final HttpServletRequest request) {
         if (request == null) {
             throw new IllegalArgumentException(
                     "HttpServletRequest object is null");
         }
+        return evaluate(request, selectPolicy(request));
+    }
+
+    /**
+     * Selects the policy of a request, by its virtual host and then its path,
+     * if policies of specific hosts or paths are configured.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @return The {@link CorsPolicy}; <code>null</code> if the request path
+     *         is excluded from CORS processing.
+     */
+    private CorsPolicy selectPolicy(final HttpServletRequest request) {
+        // Read once; the evaluation carries it to the handlers.
+        final CorsPolicy policy = this.policy;
+        if (!policy.hasSelectedPolicies()) {
+            return policy;
+        }
+        // The container derives the server name from the 'Host' header.
+        final CorsPolicy hostPolicy = policy.forHost(request.getServerName());
+        if (!policy.hasPathPolicies()) {
+            return hostPolicy;
+        }
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (servletPath == null) {
+            servletPath = "";
+        }
+        return policy.forPath(pathInfo != null ? servletPath + pathInfo
+                : servletPath, hostPolicy);
+    }
+
+    /**
+     * Evaluates a request under a policy.
+     * 
+     * @param request
+     *            The {@link HttpServletRequest} object.
+     * @param selectedPolicy
+     *            The {@link CorsPolicy} of the request; <code>null</code> if
+     *            its path is excluded, in which case it's not a CORS request.
+     * @return The {@link CORSRequestEvaluation} of the request.
+     */
+    private CORSRequestEvaluation evaluate(final HttpServletRequest request,
+            final CorsPolicy selectedPolicy) {
+        CORSRequestType requestType = CORSRequestType.INVALID_CORS;
+        final CorsPolicy policy =
+                selectedPolicy != null ? selectedPolicy : this.policy;
         String originHeader = request.getHeader(REQUEST_HEADER_ORIGIN);
+        String method = request.getMethod();
+        int methodId = policy.getHttpMethodRegistry().idOf(method);
+        String accessControlRequestMethodHeader = null;
+        String accessControlRequestHeadersHeader = null;
+        OriginDecision originDecision = null;
         // Section 6.1.1 and Section 6.2.1
-        if (originHeader != null) {
+        if (originHeader != null && selectedPolicy != null) {
+            accessControlRequestHeadersHeader =
+                    request.getHeader(REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS);
+            final OriginDecisionCache cache = policy.getOriginDecisionCache();
+            final Object resolved =
+                    policy.getOriginResolver() != null ? request
+                            .getAttribute(RESOLVED_ORIGIN_DECISION) : null;
+            if (resolved instanceof OriginDecision) {
+                // Resumed, once its origin was resolved.
+                originDecision = (OriginDecision) resolved;
+                request.removeAttribute(RESOLVED_ORIGIN_DECISION);
+            } else if (methodId == HttpMethodRegistry.OPTIONS
+                    && policy.getPreflightDecisionCache() != null
+                    && !originHeader.isEmpty()) {
+                // Only pre-flights of valid origins are cached, so a known
+                // pre-flight skips the origin validation.
+                accessControlRequestMethodHeader =
+                        request.getHeader(REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD);
+                if (accessControlRequestMethodHeader != null
+                        && !accessControlRequestMethodHeader.isEmpty()) {
+                    String[] preflightDecision =
+                            policy.getPreflightDecisionCache().get(
+                                    originHeader,
+                                    accessControlRequestMethodHeader,
+                                    accessControlRequestHeadersHeader);
+                    if (preflightDecision != null) {
+                        return new CORSRequestEvaluation(
+                                CORSRequestType.PRE_FLIGHT, originHeader,
+                                method, methodId,
+                                accessControlRequestMethodHeader,
+                                accessControlRequestHeadersHeader, null,
+                                preflightDecision, policy);
+                    }
+                }
+            }
+            if (originDecision == null && cache != null
+                    && !originHeader.isEmpty()) {
+                originDecision = cache.get(originHeader);
+                if (originDecision == null) {
+                    originDecision = policy.decideOrigin(originHeader);
+                    if (originDecision.isCacheable()) {
+                        cache.put(originHeader, originDecision);
+                    }
+                }
+            }
             if (originHeader.isEmpty()) {
                 requestType = CORSRequestType.INVALID_CORS;
-            } else if (!isValidOrigin(originHeader)) {
+            } else if (originDecision != null ? !originDecision.isValid()
+                    : !isValidOrigin(originHeader)) {
                 requestType = CORSRequestType.INVALID_CORS;
             } else {
-                String method = request.getMethod();
-                if (method != null && HTTP_METHODS.contains(method)) {
-                    if ("OPTIONS".equals(method)) {
-                        String accessControlRequestMethodHeader =
-                                request.getHeader(REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD);
-                        if (accessControlRequestMethodHeader != null
-                                && !accessControlRequestMethodHeader.isEmpty()) {
-                            requestType = CORSRequestType.PRE_FLIGHT;
-                        } else if (accessControlRequestMethodHeader != null
-                                && accessControlRequestMethodHeader.isEmpty()) {
-                            requestType = CORSRequestType.INVALID_CORS;
+                switch (methodId) {
+                case HttpMethodRegistry.OPTIONS:
+                    accessControlRequestMethodHeader =
+                            request.getHeader(REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD);
+                    if (accessControlRequestMethodHeader != null
+                            && !accessControlRequestMethodHeader.isEmpty()) {
+                        requestType = CORSRequestType.PRE_FLIGHT;
+                    } else if (accessControlRequestMethodHeader != null
+                            && accessControlRequestMethodHeader.isEmpty()) {
+                        requestType = CORSRequestType.INVALID_CORS;
+                    } else {
+                        requestType = CORSRequestType.ACTUAL;
+                    }
+                    break;
+                case HttpMethodRegistry.GET:
+                case HttpMethodRegistry.HEAD:
+                    requestType = CORSRequestType.SIMPLE;
+                    break;
+                case HttpMethodRegistry.POST:
+                    String contentType = request.getContentType();
+                    if (contentType != null) {
+                        if (ContentTypes.isSimple(contentType)) {
+                            requestType = CORSRequestType.SIMPLE;
                         } else {
                             requestType = CORSRequestType.ACTUAL;
                         }
-                    } else if ("GET".equals(method) || "HEAD".equals(method)) {
-                        requestType = CORSRequestType.SIMPLE;
-                    } else if ("POST".equals(method)) {
-                        String contentType = request.getContentType();
-                        if (contentType != null) {
-                            contentType = contentType.toLowerCase().trim();
-                            if (SIMPLE_HTTP_REQUEST_CONTENT_TYPE_VALUES
-                                    .contains(contentType)) {
-                                requestType = CORSRequestType.SIMPLE;
-                            } else {
-                                requestType = CORSRequestType.ACTUAL;
-                            }
-                        }
-                    } else if (COMPLEX_HTTP_METHODS.contains(method)) {
-                        requestType = CORSRequestType.ACTUAL;
                     }
+                    break;
+                case HttpMethodRegistry.UNKNOWN:
+                    // Neither a standard method, nor a configured extension
+                    // method.
+                    requestType = CORSRequestType.INVALID_CORS;
+                    break;
+                default:
+                    // PUT, DELETE, TRACE, CONNECT, PATCH and extension
+                    // methods.
+                    requestType = CORSRequestType.ACTUAL;
+                    break;
                 }
             }
         } else {
             requestType = CORSRequestType.NOT_CORS;
         }
 
-        return requestType;
+        return new CORSRequestEvaluation(requestType, originHeader, method,
+                methodId, accessControlRequestMethodHeader,
+                accessControlRequestHeadersHeader, originDecision, null,
+                policy);
+    }
+
+    /**
+     * Checks if the Origin of an evaluated request is allowed to make a CORS
+     * request, using the cached {@link OriginDecision} if there's one.
+     * 
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     * @return <code>true</code> if origin is allowed; <code>false</code>
+     *         otherwise.
+     */
+    private boolean isOriginAllowed(final CORSRequestEvaluation evaluation) {
+        OriginDecision originDecision = evaluation.getOriginDecision();
+        if (originDecision != null) {
+            return originDecision.isAllowed();
+        }
+        return evaluation.getPolicy().isOriginAllowed(evaluation.getOrigin());
+    }
+
+    /**
+     * Returns the value of 'Access-Control-Allow-Origin' response header for
+     * an evaluated request, whose origin is allowed.
+     * 
+     * @param evaluation
+     *            The {@link CORSRequestEvaluation} of the request.
+     * @return '*' if any origin is allowed and resource doesn't support
+     *         credentials; the origin otherwise.
+     */
+    private String getAllowOriginValue(final CORSRequestEvaluation evaluation) {
+        OriginDecision originDecision = evaluation.getOriginDecision();
+        if (originDecision != null) {
+            return originDecision.getAllowOriginValue();
+        }
+        return evaluation.getPolicy().getAllowOriginValue(
+                evaluation.getOrigin());
+    }
+
+    private void log(String message) {
+        filterConfig.getServletContext().log(message);
+    }
+
+    /**
+     * Parses the default policy, and the policies of specific virtual hosts
+     * and paths, if any. Their host names are compiled into a
+     * {@link HostPolicyMap}, and their path patterns and the excluded paths
+     * into a {@link PathPolicyTrie}, of the default policy. Policies with the
+     * same origin index file share its mapping, e.g. those that don't
+     * override the default policy's.
+     * 
+     * @param filterConfig
+     *            The {@link FilterConfig}; may be <code>null</code>.
+     * @return The default {@link CorsPolicy}.
+     * @throws ServletException
+     */
+    private static CorsPolicy parsePolicies(final FilterConfig filterConfig)
+            throws ServletException {
+        Map<String, MappedOriginIndex> originFiles =
+                new HashMap<String, MappedOriginIndex>();
+        CorsPolicy defaultPolicy = parsePolicy(filterConfig, originFiles);
+        Set<String> names =
+                parseStringToSet(getInitParameter(filterConfig,
+                        PARAM_CORS_POLICIES, DEFAULT_POLICIES));
+        Set<String> excludedPaths =
+                parseStringToSet(getInitParameter(filterConfig,
+                        PARAM_CORS_EXCLUDED_PATHS, DEFAULT_EXCLUDED_PATHS));
+        names.remove("");
+        excludedPaths.remove("");
+        if (names.isEmpty() && excludedPaths.isEmpty()) {
+            return defaultPolicy;
+        }
+
+        PathPolicyTrie pathPolicies = null;
+        Map<String, CorsPolicy> hostPolicies =
+                new LinkedHashMap<String, CorsPolicy>();
+        List<CorsPolicy> namedPolicies = new ArrayList<CorsPolicy>();
+        try {
+            if (!excludedPaths.isEmpty()) {
+                pathPolicies = new PathPolicyTrie();
+                try {
+                    for (String excludedPath : excludedPaths) {
+                        pathPolicies.add(excludedPath, null);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new ServletException("Unable to parse excludedPaths",
+                            e);
+                }
+            }
+            for (String name : names) {
+                PolicyFilterConfig policyConfig =
+                        new PolicyFilterConfig(filterConfig, name);
+                Set<String> paths =
+                        parseStringToSet(getInitParameter(policyConfig,
+                                PolicyFilterConfig.PATHS, ""));
+                Set<String> hosts =
+                        parseStringToSet(getInitParameter(policyConfig,
+                                PolicyFilterConfig.HOSTS, ""));
+                paths.remove("");
+                hosts.remove("");
+                if (paths.isEmpty() && hosts.isEmpty()) {
+                    throw new ServletException("Unable to parse policy "
+                            + name + ": no paths or hosts");
+                }
+                CorsPolicy namedPolicy =
+                        parsePolicy(policyConfig, originFiles);
+                namedPolicies.add(namedPolicy);
+                if (!paths.isEmpty()) {
+                    if (pathPolicies == null) {
+                        pathPolicies = new PathPolicyTrie();
+                    }
+                    try {
+                        for (String path : paths) {
+                            pathPolicies.add(path, namedPolicy);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        throw new ServletException(
+                                "Unable to parse paths of policy " + name, e);
+                    }
+                }
+                for (String host : hosts) {
+                    if (hostPolicies.put(HeaderNameSet.toLowerCase(host),
+                            namedPolicy) != null) {
+                        throw new ServletException(
+                                "Unable to parse hosts of policy " + name
+                                        + ": duplicate host " + host);
+                    }
+                }
+            }
+        } catch (ServletException e) {
+            defaultPolicy.destroy();
+            for (CorsPolicy namedPolicy : namedPolicies) {
+                namedPolicy.destroy();
+            }
+            throw e;
+        }
+        return defaultPolicy.withSelectedPolicies(pathPolicies,
+                hostPolicies.isEmpty() ? null : new HostPolicyMap(
+                        hostPolicies));
+    }
+
+    /**
+     * Parses each param-value and compiles them into a {@link CorsPolicy}. If a
+     * param is provided, it overrides the default.
+     * 
+     * @param filterConfig
+     *            The {@link FilterConfig}; may be <code>null</code>, in which
+     *            case defaults are used throughout.
+     * @param originFiles
+     *            The origin index files mapped so far, by path, to share with
+     *            the policy; the policy's own is added to it.
+     * @return The {@link CorsPolicy}.
+     * @throws ServletException
+     */
+    private static CorsPolicy parsePolicy(final FilterConfig filterConfig,
+            final Map<String, MappedOriginIndex> originFiles)
+            throws ServletException {
+        String allowedOrigins =
+                getInitParameter(filterConfig, PARAM_CORS_ALLOWED_ORIGINS,
+                        DEFAULT_ALLOWED_ORIGINS);
+        String allowedHttpMethods =
+                getInitParameter(filterConfig, PARAM_CORS_ALLOWED_METHODS,
+                        DEFAULT_ALLOWED_HTTP_METHODS);
+        String allowedHttpHeaders =
+                getInitParameter(filterConfig, PARAM_CORS_ALLOWED_HEADERS,
+                        DEFAULT_ALLOWED_HTTP_HEADERS);
+        String exposedHeaders =
+                getInitParameter(filterConfig, PARAM_CORS_EXPOSED_HEADERS,
+                        DEFAULT_EXPOSED_HEADERS);
+        String supportsCredentials =
+                getInitParameter(filterConfig, PARAM_CORS_SUPPORT_CREDENTIALS,
+                        DEFAULT_SUPPORTS_CREDENTIALS);
+        String preflightMaxAge =
+                getInitParameter(filterConfig, PARAM_CORS_PREFLIGHT_MAXAGE,
+                        DEFAULT_PREFLIGHT_MAXAGE);
+        String loggingEnabled =
+                getInitParameter(filterConfig, PARAM_CORS_LOGGING_ENABLED,
+                        DEFAULT_LOGGING_ENABLED);
+        String decorateRequest =
+                getInitParameter(filterConfig, PARAM_CORS_REQUEST_DECORATE,
+                        DEFAULT_DECORATE_REQUEST);
+        String preflightCacheable =
+                getInitParameter(filterConfig, PARAM_CORS_PREFLIGHT_CACHEABLE,
+                        DEFAULT_PREFLIGHT_CACHEABLE);
+        String preflightNoContent =
+                getInitParameter(filterConfig,
+                        PARAM_CORS_PREFLIGHT_NO_CONTENT,
+                        DEFAULT_PREFLIGHT_NO_CONTENT);
+        String preflightAllMethods =
+                getInitParameter(filterConfig,
+                        PARAM_CORS_PREFLIGHT_ALL_METHODS,
+                        DEFAULT_PREFLIGHT_ALL_METHODS);
+
+        boolean anyOriginAllowed = allowedOrigins.trim().equals("*");
+        Set<String> setAllowedOrigins =
+                anyOriginAllowed ? new HashSet<String>()
+                        : parseStringToSet(allowedOrigins);
+        List<String> originPatterns = new ArrayList<String>();
+        for (String origin : setAllowedOrigins) {
+            if (OriginPatternTrie.isPattern(origin)) {
+                originPatterns.add(origin);
+            }
+        }
+        OriginPatternTrie originPatternTrie = null;
+        if (!originPatterns.isEmpty()) {
+            try {
+                originPatternTrie = new OriginPatternTrie(originPatterns);
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Unable to parse allowedOrigins", e);
+            }
+        }
+
+        MappedOriginIndex originFile = null;
+        String allowedOriginsFile =
+                getInitParameter(filterConfig, PARAM_CORS_ALLOWED_ORIGINS_FILE,
+                        DEFAULT_ALLOWED_ORIGINS_FILE).trim();
+        if (!allowedOriginsFile.isEmpty()) {
+            originFile = originFiles.get(allowedOriginsFile);
+            if (originFile == null) {
+                try {
+                    originFile =
+                            MappedOriginIndex.open(new File(
+                                    allowedOriginsFile));
+                } catch (IOException e) {
+                    throw new ServletException(
+                            "Unable to parse allowedOriginsFile", e);
+                }
+                originFiles.put(allowedOriginsFile, originFile);
+            }
+        }
+
+        int originIndexThreshold;
+        try {
+            originIndexThreshold =
+                    Integer.parseInt(getInitParameter(filterConfig,
+                            PARAM_CORS_ALLOWED_ORIGINS_INDEX_THRESHOLD,
+                            DEFAULT_ALLOWED_ORIGINS_INDEX_THRESHOLD).trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException(
+                    "Unable to parse allowedOriginsIndexThreshold", e);
+        }
+
+        OriginRegexSet originRegexSet = null;
+        String allowedOriginsRegex =
+                getInitParameter(filterConfig,
+                        PARAM_CORS_ALLOWED_ORIGINS_REGEX,
+                        DEFAULT_ALLOWED_ORIGINS_REGEX).trim();
+        if (!allowedOriginsRegex.isEmpty()) {
+            try {
+                originRegexSet =
+                        new OriginRegexSet(Arrays.asList(allowedOriginsRegex
+                                .split("\\s+")));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException(
+                        "Unable to parse allowedOriginsRegex", e);
+            }
+        }
+
+        Set<String> setAllowedHttpMethods =
+                parseStringToSet(allowedHttpMethods);
+        HttpMethodRegistry registry;
+        try {
+            registry = new HttpMethodRegistry(setAllowedHttpMethods);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Unable to parse allowedMethods", e);
+        }
+
+        long maxAge;
+        try {
+            if (!preflightMaxAge.isEmpty()) {
+                maxAge = Long.parseLong(preflightMaxAge);
+            } else {
+                maxAge = 0L;
+            }
+        } catch (NumberFormatException e) {
+            throw new ServletException("Unable to parse preflightMaxAge", e);
+        }
+
+        OriginDecisionCache originDecisionCache =
+                parseOriginCache(getInitParameter(filterConfig,
+                        PARAM_CORS_ORIGIN_CACHE_CAPACITY),
+                        getInitParameter(filterConfig,
+                                PARAM_CORS_ORIGIN_CACHE_EVICTION));
+
+        int preflightCacheCapacity;
+        try {
+            preflightCacheCapacity =
+                    Integer.parseInt(getInitParameter(filterConfig,
+                            PARAM_CORS_PREFLIGHT_CACHE_CAPACITY,
+                            DEFAULT_PREFLIGHT_CACHE_CAPACITY).trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException(
+                    "Unable to parse preflight cache capacity", e);
+        }
+        if (preflightCacheCapacity < 0) {
+            throw new ServletException(
+                    "Preflight cache capacity can't be negative");
+        }
+
+        // Created last, as it may start threads.
+        CachingOriginResolver originResolver =
+                parseOriginResolver(filterConfig);
+
+        // For any value other then 'true' these will be false.
+        CorsPolicy compiled;
+        try {
+            compiled =
+                    new CorsPolicy(anyOriginAllowed, setAllowedOrigins,
+                            originIndexThreshold, originPatternTrie,
+                            originRegexSet, originFile, setAllowedHttpMethods,
+                            registry,
+                            parseStringToSet(allowedHttpHeaders),
+                            parseStringToSet(exposedHeaders),
+                            Boolean.parseBoolean(supportsCredentials), maxAge,
+                            Boolean.parseBoolean(preflightCacheable.trim()),
+                            Boolean.parseBoolean(preflightNoContent.trim()),
+                            Boolean.parseBoolean(preflightAllMethods.trim()),
+                            Boolean.parseBoolean(loggingEnabled),
+                            Boolean.parseBoolean(decorateRequest),
+                            originDecisionCache,
+                            preflightCacheCapacity > 0
+                                    ? new PreflightDecisionCache(
+                                            preflightCacheCapacity) : null,
+                            originResolver);
+        } catch (IllegalArgumentException e) {
+            if (originResolver != null) {
+                originResolver.destroy();
+            }
+            // Allowed origins that can't be indexed.
+            throw new ServletException("Unable to parse allowedOrigins", e);
+        }
+        return compiled;
+    }
+
+    /**
+     * Parses the origin resolver params, and creates and initializes the
+     * configured {@link OriginResolver}, decorated with a
+     * {@link CachingOriginResolver}.
+     * 
+     * @param filterConfig
+     *            The {@link FilterConfig}; may be <code>null</code>.
+     * @return The {@link CachingOriginResolver}; <code>null</code> if no
+     *         {@link OriginResolver} is configured.
+     * @throws ServletException
+     */
+    private static CachingOriginResolver parseOriginResolver(
+            final FilterConfig filterConfig) throws ServletException {
+        String className =
+                getInitParameter(filterConfig, PARAM_CORS_ORIGIN_RESOLVER,
+                        DEFAULT_ORIGIN_RESOLVER).trim();
+        if (className.isEmpty()) {
+            return null;
+        }
+
+        long ttl;
+        long negativeTtl;
+        int capacity;
+        long timeout;
+        int threads;
+        try {
+            ttl =
+                    Long.parseLong(getInitParameter(filterConfig,
+                            PARAM_CORS_ORIGIN_RESOLVER_CACHE_TTL,
+                            DEFAULT_ORIGIN_RESOLVER_CACHE_TTL).trim());
+            negativeTtl =
+                    Long.parseLong(getInitParameter(filterConfig,
+                            PARAM_CORS_ORIGIN_RESOLVER_CACHE_NEGATIVE_TTL,
+                            DEFAULT_ORIGIN_RESOLVER_CACHE_NEGATIVE_TTL).trim());
+            capacity =
+                    Integer.parseInt(getInitParameter(filterConfig,
+                            PARAM_CORS_ORIGIN_RESOLVER_CACHE_CAPACITY,
+                            DEFAULT_ORIGIN_RESOLVER_CACHE_CAPACITY).trim());
+            timeout =
+                    Long.parseLong(getInitParameter(filterConfig,
+                            PARAM_CORS_ORIGIN_RESOLVER_TIMEOUT,
+                            DEFAULT_ORIGIN_RESOLVER_TIMEOUT).trim());
+            threads =
+                    Integer.parseInt(getInitParameter(filterConfig,
+                            PARAM_CORS_ORIGIN_RESOLVER_THREADS,
+                            DEFAULT_ORIGIN_RESOLVER_THREADS).trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Unable to parse originResolver params",
+                    e);
+        }
+        // For any value other then 'true' these will be false.
+        boolean failOpen =
+                Boolean.parseBoolean(getInitParameter(filterConfig,
+                        PARAM_CORS_ORIGIN_RESOLVER_FAIL_OPEN,
+                        DEFAULT_ORIGIN_RESOLVER_FAIL_OPEN).trim());
+        boolean async =
+                Boolean.parseBoolean(getInitParameter(filterConfig,
+                        PARAM_CORS_ORIGIN_RESOLVER_ASYNC,
+                        DEFAULT_ORIGIN_RESOLVER_ASYNC).trim());
+
+        OriginResolver resolver;
+        try {
+            ClassLoader classLoader =
+                    Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) {
+                classLoader = CORSFilter.class.getClassLoader();
+            }
+            resolver =
+                    Class.forName(className, true, classLoader)
+                            .asSubclass(OriginResolver.class)
+                            .getConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new ServletException("Unable to create originResolver "
+                    + className, e);
+        } catch (ClassCastException e) {
+            throw new ServletException("Unable to create originResolver "
+                    + className + ": not an OriginResolver", e);
+        } catch (NoSuchMethodException e) {
+            throw new ServletException("Unable to create originResolver "
+                    + className + ": no public no-arg constructor", e);
+        } catch (InstantiationException e) {
+            throw new ServletException("Unable to create originResolver "
+                    + className, e);
+        } catch (IllegalAccessException e) {
+            throw new ServletException("Unable to create originResolver "
+                    + className, e);
+        } catch (InvocationTargetException e) {
+            // Thrown by the constructor.
+            throw new ServletException("Unable to create originResolver "
+                    + className, e.getCause());
+        }
+
+        CachingOriginResolver cachingResolver;
+        try {
+            cachingResolver =
+                    new CachingOriginResolver(resolver, ttl * 1000,
+                            negativeTtl * 1000, capacity, timeout, failOpen,
+                            threads, async);
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("Unable to parse originResolver params",
+                    e);
+        }
+        try {
+            cachingResolver.init(filterConfig);
+        } catch (ServletException e) {
+            cachingResolver.destroy();
+            throw e;
+        }
+        return cachingResolver;
+    }
+
+    /**
+     * Parses origin decision cache params, and creates a new cache
+     * accordingly.
+     * 
+     * @param capacity
+     *            Maximum number of cached origins; caching is disabled if it's
+     *            zero.
+     * @param eviction
+     *            Name of the {@link SetAssociativeCache.EvictionPolicy}.
+     * @return The {@link OriginDecisionCache}; <code>null</code> if caching is
+     *         disabled.
+     * @throws ServletException
+     */
+    private static OriginDecisionCache parseOriginCache(final String capacity,
+            final String eviction) throws ServletException {
+        int cacheCapacity;
+        try {
+            cacheCapacity =
+                    Integer.parseInt(capacity != null && !capacity.isEmpty()
+                            ? capacity.trim()
+                            : DEFAULT_ORIGIN_CACHE_CAPACITY);
+        } catch (NumberFormatException e) {
+            throw new ServletException(
+                    "Unable to parse origin cache capacity", e);
+        }
+        if (cacheCapacity < 0) {
+            throw new ServletException(
+                    "Origin cache capacity can't be negative");
+        }
+
+        SetAssociativeCache.EvictionPolicy evictionPolicy;
+        try {
+            evictionPolicy =
+                    SetAssociativeCache.EvictionPolicy
+                            .valueOf((eviction != null && !eviction.isEmpty()
+                                    ? eviction.trim()
+                                    : DEFAULT_ORIGIN_CACHE_EVICTION)
+                                    .toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(
+                    "Unable to parse origin cache eviction policy", e);
+        }
+
+        return cacheCapacity > 0 ? new OriginDecisionCache(cacheCapacity,
+                evictionPolicy) : null;
     }
 
     /**
-     * Checks if the Origin is allowed to make a CORS request.
+     * Checks if a default policy, or any policy of specific virtual hosts or
+     * paths, enables logging.
      * 
-     * @param origin
-     *            The Origin.
-     * @return <code>true</code> if origin is allowed; <code>false</code>
-     *         otherwise.
+     * @param defaultPolicy
+     *            The default {@link CorsPolicy}.
+     * @return <code>true</code> if one does; <code>false</code> otherwise.
      */
-    private boolean isOriginAllowed(final String origin) {
-        if (anyOriginAllowed) {
+    private static boolean isLoggingEnabled(final CorsPolicy defaultPolicy) {
+        if (defaultPolicy.isLoggingEnabled()) {
             return true;
         }
-
-        // If 'Origin' header is a case-sensitive match of any of allowed
-        // origins, then return true, else return false.
-        return allowedOrigins.contains(origin);
-    }
-
-    private void log(String message) {
-        if (loggingEnabled) {
-            filterConfig.getServletContext().log(message);
+        for (CorsPolicy selectedPolicy : defaultPolicy.getSelectedPolicies()) {
+            if (selectedPolicy.isLoggingEnabled()) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
-     * Parses each param-value and populates configuration variables. If a param
-     * is provided, it overrides the default.
+     * Parses asynchronous logging params, and starts or stops the
+     * {@link RejectionLog} accordingly. It's only started if logging is
+     * enabled by any policy.
      * 
-     * @param allowedOrigins
-     *            A {@link String} of comma separated origins.
-     * @param allowedHttpMethods
-     *            A {@link String} of comma separated HTTP methods.
-     * @param allowedHttpHeaders
-     *            A {@link String} of comma separated HTTP headers.
-     * @param exposedHeaders
-     *            A {@link String} of comma separated headers that needs to be
-     *            exposed.
-     * @param supportsCredentials
-     *            "true" if support credentials needs to be enabled.
-     * @param preflightMaxAge
-     *            The amount of seconds the user agent is allowed to cache the
-     *            result of the pre-flight request.
      * @param loggingEnabled
-     *            Flag to control logging to access log.
+     *            Whether rejected requests are logged at all, under any
+     *            policy.
+     * @param async
+     *            "true" if rejected requests should be logged off the request
+     *            thread.
+     * @param bufferSize
+     *            Maximum number of pending log messages.
+     * @param rateLimit
+     *            Maximum number of messages logged per origin per second; 0 if
+     *            unlimited.
      * @throws ServletException
      */
-    private void parseAndStore(final String allowedOrigins,
-            final String allowedHttpMethods, final String allowedHttpHeaders,
-            final String exposedHeaders, final String supportsCredentials,
-            final String preflightMaxAge, final String loggingEnabled,
-            final String decorateRequest)
+    private void parseAndStoreRejectionLog(final boolean loggingEnabled,
+            final String async,
+            final String bufferSize, final String rateLimit)
             throws ServletException {
-        if (allowedOrigins != null) {
-            if (allowedOrigins.trim().equals("*")) {
-                this.anyOriginAllowed = true;
-            } else {
-                this.anyOriginAllowed = false;
-                Set<String> setAllowedOrigins =
-                        parseStringToSet(allowedOrigins);
-                this.allowedOrigins.clear();
-                this.allowedOrigins.addAll(setAllowedOrigins);
-            }
-        }
-
-        if (allowedHttpMethods != null) {
-            Set<String> setAllowedHttpMethods =
-                    parseStringToSet(allowedHttpMethods);
-            this.allowedHttpMethods.clear();
-            this.allowedHttpMethods.addAll(setAllowedHttpMethods);
-        }
-
-        if (allowedHttpHeaders != null) {
-            Set<String> setAllowedHttpHeaders =
-                    parseStringToSet(allowedHttpHeaders);
-            Set<String> lowerCaseHeaders = new HashSet<String>();
-            for (String header : setAllowedHttpHeaders) {
-                String lowerCase = header.toLowerCase();
-                lowerCaseHeaders.add(lowerCase);
-            }
-            this.allowedHttpHeaders.clear();
-            this.allowedHttpHeaders.addAll(lowerCaseHeaders);
-        }
-
-        if (exposedHeaders != null) {
-            Set<String> setExposedHeaders = parseStringToSet(exposedHeaders);
-            this.exposedHeaders.clear();
-            this.exposedHeaders.addAll(setExposedHeaders);
-        }
-
-        if (supportsCredentials != null) {
-            // For any value other then 'true' this will be false.
-            this.supportsCredentials =
-                    Boolean.parseBoolean(supportsCredentials);
+        // For any value other then 'true' this will be false.
+        boolean asyncEnabled =
+                Boolean.parseBoolean(async != null ? async.trim()
+                        : DEFAULT_LOGGING_ASYNC);
+        int logBufferSize;
+        int logRateLimit;
+        try {
+            logBufferSize =
+                    Integer.parseInt(bufferSize != null
+                            && !bufferSize.isEmpty() ? bufferSize.trim()
+                            : DEFAULT_LOGGING_BUFFER_SIZE);
+            logRateLimit =
+                    Integer.parseInt(rateLimit != null && !rateLimit.isEmpty()
+                            ? rateLimit.trim() : DEFAULT_LOGGING_RATE_LIMIT);
+        } catch (NumberFormatException e) {
+            throw new ServletException("Unable to parse logging params", e);
         }
-
-        if (preflightMaxAge != null) {
-            try {
-                if (!preflightMaxAge.isEmpty()) {
-                    this.preflightMaxAge = Long.parseLong(preflightMaxAge);
-                } else {
-                    this.preflightMaxAge = 0L;
-                }
-            } catch (NumberFormatException e) {
-                throw new ServletException("Unable to parse preflightMaxAge", e);
-            }
+        if (logBufferSize <= 0 || logRateLimit < 0) {
+            throw new ServletException(
+                    "Logging buffer size must be positive, and rate limit"
+                            + " can't be negative");
         }
 
-        if (loggingEnabled != null) {
-            // For any value other then 'true' this will be false.
-            this.loggingEnabled = Boolean.parseBoolean(loggingEnabled);
+        RejectionLog previousLog = rejectionLog;
+        if (previousLog != null) {
+            previousLog.stop();
+            rejectionLog = null;
         }
-
-        if (decorateRequest != null) {
-            // For any value other then 'true' this will be false.
-            this.decorateRequest = Boolean.parseBoolean(decorateRequest);
+        if (loggingEnabled && asyncEnabled && filterConfig != null) {
+            RejectionLog asyncLog =
+                    new RejectionLog(filterConfig.getServletContext(),
+                            logBufferSize, logRateLimit);
+            asyncLog.start();
+            this.rejectionLog = asyncLog;
         }
     }
 
@@ -774,7 +1720,7 @@ public final class CORSFilter implements Filter {
      *            A comma separated list of strings.
      * @return Set<String>
      */
-    private Set<String> parseStringToSet(final String data) {
+    private static Set<String> parseStringToSet(final String data) {
         String[] splits;
 
         if (data != null && data.length() > 0) {
@@ -793,44 +1739,43 @@ public final class CORSFilter implements Filter {
         return set;
     }
 
+    /**
+     * Returns the value of an init param.
+     * 
+     * @param filterConfig
+     *            The {@link FilterConfig}; may be <code>null</code>.
+     * @param name
+     *            Name of the init param.
+     * @return The value; <code>null</code> if it's not provided.
+     */
+    private static String getInitParameter(final FilterConfig filterConfig,
+            final String name) {
+        return filterConfig != null ? filterConfig.getInitParameter(name)
+                : null;
+    }
+
+    private static String getInitParameter(final FilterConfig filterConfig,
+            final String name, final String defaultValue) {
+        String value = getInitParameter(filterConfig, name);
+        return value != null ? value : defaultValue;
+    }
+
     /**
      * Checks if a given origin is valid or not. Criteria:
      * <ul>
      * <li>If an encoded character is present in origin, it's not valid.</li>
-     * <li>Origin should be a valid {@link URI}</li>
+     * <li>Origin should be a serialized origin as per RFC6454, i.e.
+     * <code>scheme "://" host [ ":" port ]</code>.</li>
+     * <li>"null" and <code>file://</code> origins are valid.</li>
      * </ul>
      * 
      * @param origin
      * @see <a href="http://tools.ietf.org/html/rfc952">RFC952</a>
+     * @see <a href="http://tools.ietf.org/html/rfc6454">RFC6454</a>
      * @return
      */
     public static boolean isValidOrigin(String origin) {
-    	// Checks for encoded characters. Helps prevent CRLF injection.
-        if (origin.contains("%")) {
-            return false;
-        }
-
-        // "null" is a valid origin
-        if ("null".equals(origin)) {
-            return true;
-        }
-
-        // RFC6454, section 4. "If uri-scheme is file, the implementation MAY
-        // return an implementation-defined value.". No limits are placed on
-        // that value so treat all file URIs as valid origins.
-        if (origin.startsWith("file://")) {
-            return true;
-        }
-        
-        URI originURI;
-        try {
-            originURI = new URI(origin);
-        } catch (URISyntaxException e) {
-            return false;
-        }
-        // If scheme for URI is null, return false. Return true otherwise.
-        return originURI.getScheme() != null;
-
+        return OriginValidator.isValid(origin);
     }
 
     // -------------------------------------------------------------- Accessors
@@ -840,7 +1785,18 @@ public final class CORSFilter implements Filter {
      * @return <code>true</code> if it's enabled; false otherwise.
      */
     public boolean isLoggingEnabled() {
-        return loggingEnabled;
+        return policy.isLoggingEnabled();
+    }
+
+    /**
+     * Returns the number of rejected request messages dropped by asynchronous
+     * logging, because its buffer was full.
+     * 
+     * @return The count; 0 if logging isn't asynchronous.
+     */
+    public long getDroppedLogMessageCount() {
+        RejectionLog asyncLog = rejectionLog;
+        return asyncLog != null ? asyncLog.getDroppedCount() : 0L;
     }
 
     /**
@@ -849,16 +1805,17 @@ public final class CORSFilter implements Filter {
      * @return <code>true</code> if it's enabled; false otherwise.
      */
     public boolean isAnyOriginAllowed() {
-        return anyOriginAllowed;
+        return policy.isAnyOriginAllowed();
     }
 
     /**
-     * Returns a {@link Set} of headers that should be exposed by browser.
+     * Returns an immutable {@link Set} of headers that should be exposed by
+     * browser.
      * 
      * @return
      */
     public Collection<String> getExposedHeaders() {
-        return exposedHeaders;
+        return policy.getExposedHeaders();
     }
 
     /**
@@ -867,7 +1824,7 @@ public final class CORSFilter implements Filter {
      * @return
      */
     public boolean isSupportsCredentials() {
-        return supportsCredentials;
+        return policy.isSupportsCredentials();
     }
 
     /**
@@ -876,35 +1833,127 @@ public final class CORSFilter implements Filter {
      * @return Time to cache in seconds.
      */
     public long getPreflightMaxAge() {
-        return preflightMaxAge;
+        return policy.getPreflightMaxAge();
     }
 
     /**
-     * Returns the {@link Set} of allowed origins that are allowed to make
-     * requests.
+     * Returns the immutable {@link Set} of allowed origins that are allowed to
+     * make requests.
      * 
      * @return {@link Set}
      */
     public Collection<String> getAllowedOrigins() {
-        return allowedOrigins;
+        return policy.getAllowedOrigins();
     }
 
     /**
-     * Returns a {@link Set} of HTTP methods that are allowed to make requests.
+     * Returns the regex origin rules, in the order they are tried.
+     * 
+     * @return An immutable {@link List}; empty if there are none.
+     */
+    public List<String> getAllowedOriginRegexes() {
+        return policy.getAllowedOriginRegexes();
+    }
+
+    /**
+     * Returns an immutable {@link Set} of HTTP methods that are allowed to make
+     * requests.
      * 
      * @return {@link Set}
      */
     public Collection<String> getAllowedHttpMethods() {
-        return allowedHttpMethods;
+        return policy.getAllowedHttpMethods();
+    }
+
+    /**
+     * Returns the maximum number of origins whose decision is cached.
+     * 
+     * @return The capacity; 0 if origin decision caching is disabled.
+     */
+    public int getOriginCacheCapacity() {
+        OriginDecisionCache cache = policy.getOriginDecisionCache();
+        return cache != null ? cache.capacity() : 0;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the prebuilt response headers
+     * kept with the cached origin decisions, under the current policies: the
+     * arrays, and the header names and values they hold. Arrays and strings
+     * shared by several origins, e.g. when any origin is allowed without
+     * credentials, are counted once.
+     * 
+     * @return The number of bytes; 0 if origin decision caching is disabled.
+     */
+    public long getOriginCacheResponseHeadersBytes() {
+        final CorsPolicy current = policy;
+        List<CorsPolicy> policies = new ArrayList<CorsPolicy>();
+        policies.add(current);
+        policies.addAll(current.getSelectedPolicies());
+        long bytes = 0;
+        for (CorsPolicy each : policies) {
+            OriginDecisionCache cache = each.getOriginDecisionCache();
+            if (cache != null) {
+                bytes += cache.responseHeadersBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the maximum number of pre-flights whose decision is cached,
+     * under the default policy.
+     * 
+     * @return The capacity; 0 if pre-flight decision caching is disabled.
+     */
+    public int getPreflightCacheCapacity() {
+        PreflightDecisionCache cache = policy.getPreflightDecisionCache();
+        return cache != null ? cache.capacity() : 0;
+    }
+
+    /**
+     * Returns the number of pre-flights whose decision was found cached,
+     * under the current policies, i.e. since the filter was last configured
+     * or its origin file reloaded.
+     * 
+     * @return The number of hits.
+     */
+    public long getPreflightCacheHits() {
+        return countPreflightCacheLookups(true);
+    }
+
+    /**
+     * Returns the number of pre-flights whose decision wasn't found cached,
+     * under the current policies.
+     * 
+     * @return The number of misses.
+     */
+    public long getPreflightCacheMisses() {
+        return countPreflightCacheLookups(false);
+    }
+
+    private long countPreflightCacheLookups(final boolean hits) {
+        final CorsPolicy current = policy;
+        List<CorsPolicy> policies = new ArrayList<CorsPolicy>();
+        policies.add(current);
+        policies.addAll(current.getSelectedPolicies());
+        long count = 0;
+        for (CorsPolicy each : policies) {
+            PreflightDecisionCache cache = each.getPreflightDecisionCache();
+            if (cache != null) {
+                count += hits ? cache.getHits() : cache.getMisses();
+            }
+        }
+        return count;
     }
 
     /**
-     * Returns a {@link Set} of headers support by resource.
+     * Returns an immutable {@link Set} of headers support by resource, as
+     * lower-cased names. Its <code>contains</code> is case in-sensitive.
      * 
      * @return {@link Set}
      */
     public Collection<String> getAllowedHttpHeaders() {
-        return allowedHttpHeaders;
+        return policy.getAllowedHttpHeaders();
     }
 
     // -------------------------------------------------- CORS Response Headers
@@ -955,6 +2004,13 @@ public final class CORSFilter implements Filter {
     public static final String RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_HEADERS =
             "Access-Control-Allow-Headers";
 
+    /**
+     * The Cache-Control header lets shared caches store a pre-flight
+     * response, when pre-flights are made cacheable.
+     */
+    public static final String RESPONSE_HEADER_CACHE_CONTROL =
+            "Cache-Control";
+
     // -------------------------------------------------- CORS Request Headers
     /**
      * The Origin header indicates where the cross-origin request or preflight
@@ -1007,6 +2063,56 @@ public final class CORSFilter implements Filter {
     public static final String HTTP_REQUEST_ATTRIBUTE_REQUEST_HEADERS =
             HTTP_REQUEST_ATTRIBUTE_PREFIX + "request.headers";
 
+    /**
+     * Holds the {@link OriginDecision} of a request that was suspended while
+     * its origin was resolved, until it's evaluated. Internal to the filter.
+     */
+    static final String RESOLVED_ORIGIN_DECISION = CORSFilter.class
+            .getName() + ".resolvedOriginDecision";
+
+    /**
+     * Marks a request that was handled once its origin was resolved, and
+     * dispatched again, to be let through; holds the tokens to keep in the
+     * 'Vary' response header, if any. Internal to the filter.
+     */
+    static final String RESUMED_REQUEST = CORSFilter.class.getName()
+            + ".resumedRequest";
+
+    /**
+     * Passes a resumed request down the filter chain, by dispatching it again
+     * to its URI.
+     */
+    private static final class DispatchingFilterChain implements FilterChain {
+        private final AsyncSupport asyncSupport;
+
+        private final Object asyncContext;
+
+        private boolean dispatched;
+
+        DispatchingFilterChain(final AsyncSupport asyncSupport,
+                final Object asyncContext) {
+            this.asyncSupport = asyncSupport;
+            this.asyncContext = asyncContext;
+        }
+
+        @Override
+        public void doFilter(final ServletRequest request,
+                final ServletResponse response) {
+            // The dispatch passes the container's response down the chain,
+            // so the filter wraps it again.
+            if (response instanceof VaryMergingResponse) {
+                request.setAttribute(RESUMED_REQUEST,
+                        ((VaryMergingResponse) response).getTokens());
+            }
+            dispatched = true;
+            asyncSupport.dispatch(asyncContext);
+        }
+
+        boolean isDispatched() {
+            return dispatched;
+        }
+    }
+
     // -------------------------------------------------------------- Constants
     /**
      * Enumerates varies types of CORS requests. Also, provides utility methods
@@ -1038,19 +2144,21 @@ public final class CORSFilter implements Filter {
     }
 
     /**
-     * {@link Collection} of HTTP methods. Case sensitive.
+     * {@link Collection} of HTTP methods. Case sensitive. Extension methods
+     * listed in 'cors.allowed.methods' are accepted in addition to these.
      * 
      * @see http://tools.ietf.org/html/rfc2616#section-5.1.1
+     * @see http://tools.ietf.org/html/rfc5789
      */
     public static final Collection<String> HTTP_METHODS = new HashSet<String>(
             Arrays.asList("OPTIONS", "GET", "HEAD", "POST", "PUT", "DELETE",
-                    "TRACE", "CONNECT"));
+                    "TRACE", "CONNECT", "PATCH"));
     /**
      * {@link Collection} of non-simple HTTP methods. Case sensitive.
      */
     public static final Collection<String> COMPLEX_HTTP_METHODS =
-            new HashSet<String>(
-                    Arrays.asList("PUT", "DELETE", "TRACE", "CONNECT"));
+            new HashSet<String>(Arrays.asList("PUT", "DELETE", "TRACE",
+                    "CONNECT", "PATCH"));
     /**
      * {@link Collection} of Simple HTTP methods. Case sensitive.
      * 
@@ -1081,6 +2189,8 @@ public final class CORSFilter implements Filter {
 
     /**
      * {@link Collection} of Simple HTTP request headers. Case in-sensitive.
+     * Media type parameters (e.g. charset) don't affect whether a
+     * 'Content-Type' value is simple.
      * 
      * @see http://www.w3.org/TR/cors/#terminology
      */
@@ -1095,6 +2205,85 @@ public final class CORSFilter implements Filter {
      */
     public static final String DEFAULT_ALLOWED_ORIGINS = "*";
 
+    /**
+     * By default, there are no policies of specific paths.
+     */
+    public static final String DEFAULT_POLICIES = "";
+
+    /**
+     * By default, no path is excluded from CORS processing.
+     */
+    public static final String DEFAULT_EXCLUDED_PATHS = "";
+
+    /**
+     * By default, no origin is allowed by a regex rule.
+     */
+    public static final String DEFAULT_ALLOWED_ORIGINS_REGEX = "";
+
+    /**
+     * By default, allowed origins are indexed from 1000 of them on.
+     */
+    public static final String DEFAULT_ALLOWED_ORIGINS_INDEX_THRESHOLD =
+            "1000";
+
+    /**
+     * By default, there's no origin index file.
+     */
+    public static final String DEFAULT_ALLOWED_ORIGINS_FILE = "";
+
+    /**
+     * By default, the origin index file is checked for changes every 5
+     * seconds.
+     */
+    public static final String DEFAULT_ALLOWED_ORIGINS_FILE_RELOAD_INTERVAL =
+            "5000";
+
+    /**
+     * By default, there's no origin resolver.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER = "";
+
+    /**
+     * By default, allowed origins are cached by the origin resolver for a
+     * minute.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_CACHE_TTL = "60";
+
+    /**
+     * By default, denied origins are cached by the origin resolver for 10
+     * seconds.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_CACHE_NEGATIVE_TTL =
+            "10";
+
+    /**
+     * By default, the origin resolver caches up to 10000 origins.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_CACHE_CAPACITY =
+            "10000";
+
+    /**
+     * By default, requests wait for the origin resolver for up to 100
+     * milliseconds.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_TIMEOUT = "100";
+
+    /**
+     * By default, an origin is denied when the origin resolver fails or times
+     * out.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_FAIL_OPEN = "false";
+
+    /**
+     * By default, the origin resolver is called from 4 threads.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_THREADS = "4";
+
+    /**
+     * By default, requests wait for the origin resolver.
+     */
+    public static final String DEFAULT_ORIGIN_RESOLVER_ASYNC = "false";
+
     /**
      * By default, following methods are supported: GET, POST, HEAD and OPTIONS.
      */
@@ -1106,6 +2295,22 @@ public final class CORSFilter implements Filter {
      */
     public static final String DEFAULT_PREFLIGHT_MAXAGE = "1800";
 
+    /**
+     * By default, pre-flight responses aren't made cacheable by shared caches.
+     */
+    public static final String DEFAULT_PREFLIGHT_CACHEABLE = "false";
+
+    /**
+     * By default, accepted pre-flights are answered with the container's
+     * default status.
+     */
+    public static final String DEFAULT_PREFLIGHT_NO_CONTENT = "false";
+
+    /**
+     * By default, accepted pre-flights only allow the requested method.
+     */
+    public static final String DEFAULT_PREFLIGHT_ALL_METHODS = "false";
+
     /**
      * By default, support credentials is turned on.
      */
@@ -1136,6 +2341,37 @@ public final class CORSFilter implements Filter {
      */
     public static final String DEFAULT_DECORATE_REQUEST = "true";
 
+    /**
+     * By default, rejected requests are logged on the request thread.
+     */
+    public static final String DEFAULT_LOGGING_ASYNC = "false";
+
+    /**
+     * By default, up to 1024 log messages can be pending, when logging is
+     * asynchronous.
+     */
+    public static final String DEFAULT_LOGGING_BUFFER_SIZE = "1024";
+
+    /**
+     * By default, messages aren't rate limited per origin.
+     */
+    public static final String DEFAULT_LOGGING_RATE_LIMIT = "0";
+
+    /**
+     * By default, origin decisions are not cached.
+     */
+    public static final String DEFAULT_ORIGIN_CACHE_CAPACITY = "0";
+
+    /**
+     * By default, origin decision cache evicts using second chance (clock).
+     */
+    public static final String DEFAULT_ORIGIN_CACHE_EVICTION = "clock";
+
+    /**
+     * By default, pre-flight decisions aren't cached.
+     */
+    public static final String DEFAULT_PREFLIGHT_CACHE_CAPACITY = "0";
+
     // ----------------------------------------Filter Config Init param-name(s)
     /**
      * Key to retrieve allowed origins from {@link FilterConfig}.
@@ -1143,6 +2379,91 @@ public final class CORSFilter implements Filter {
     public static final String PARAM_CORS_ALLOWED_ORIGINS =
             "cors.allowed.origins";
 
+    /**
+     * Key to retrieve whitespace separated regex origin rules from
+     * {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ALLOWED_ORIGINS_REGEX =
+            "cors.allowed.origins.regex";
+
+    /**
+     * Key to retrieve the number of allowed origins from which they are kept
+     * in a compact index, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ALLOWED_ORIGINS_INDEX_THRESHOLD =
+            "cors.allowed.origins.index.threshold";
+
+    /**
+     * Key to retrieve the path of an origin index file, as compiled by
+     * {@link OriginIndexCompiler}, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ALLOWED_ORIGINS_FILE =
+            "cors.allowed.origins.file";
+
+    /**
+     * Key to retrieve the interval, in milliseconds, between checks of the
+     * origin index file for changes, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ALLOWED_ORIGINS_FILE_RELOAD_INTERVAL =
+            "cors.allowed.origins.file.reload.interval";
+
+    /**
+     * Key to retrieve the class name of an {@link OriginResolver} from
+     * {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER =
+            "cors.origin.resolver";
+
+    /**
+     * Key to retrieve the time to live, in seconds, of the allowed origins
+     * cached by the origin resolver, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_CACHE_TTL =
+            "cors.origin.resolver.cache.ttl";
+
+    /**
+     * Key to retrieve the time to live, in seconds, of the denied origins
+     * cached by the origin resolver, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_CACHE_NEGATIVE_TTL =
+            "cors.origin.resolver.cache.negative.ttl";
+
+    /**
+     * Key to retrieve the maximum number of origins cached by the origin
+     * resolver from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_CACHE_CAPACITY =
+            "cors.origin.resolver.cache.capacity";
+
+    /**
+     * Key to retrieve the time, in milliseconds, requests wait for the origin
+     * resolver, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_TIMEOUT =
+            "cors.origin.resolver.timeout";
+
+    /**
+     * Key to retrieve whether origins are allowed when the origin resolver
+     * fails or times out, from {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_FAIL_OPEN =
+            "cors.origin.resolver.fail.open";
+
+    /**
+     * Key to retrieve the number of threads calling the origin resolver from
+     * {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_THREADS =
+            "cors.origin.resolver.threads";
+
+    /**
+     * Key to retrieve whether requests are suspended, rather than waiting,
+     * while the origin resolver looks up their origin, from
+     * {@link FilterConfig}.
+     */
+    public static final String PARAM_CORS_ORIGIN_RESOLVER_ASYNC =
+            "cors.origin.resolver.async";
+
     /**
      * Key to retrieve support credentials from {@link FilterConfig}.
      */
@@ -1173,15 +2494,95 @@ public final class CORSFilter implements Filter {
     public static final String PARAM_CORS_PREFLIGHT_MAXAGE =
             "cors.preflight.maxage";
 
+    /**
+     * Key to determine if accepted pre-flight responses are made cacheable by
+     * shared caches.
+     */
+    public static final String PARAM_CORS_PREFLIGHT_CACHEABLE =
+            "cors.preflight.cacheable";
+
+    /**
+     * Key to determine if accepted pre-flights are answered with 204 (No
+     * Content), and committed at once.
+     */
+    public static final String PARAM_CORS_PREFLIGHT_NO_CONTENT =
+            "cors.preflight.no.content";
+
+    /**
+     * Key to determine if accepted pre-flights list all the allowed methods,
+     * rather than only the requested one.
+     */
+    public static final String PARAM_CORS_PREFLIGHT_ALL_METHODS =
+            "cors.preflight.all.methods";
+
     /**
      * Key to retrieve access log logging flag.
      */
     public static final String PARAM_CORS_LOGGING_ENABLED =
             "cors.logging.enabled";
 
+    /**
+     * Key to determine if rejected requests are logged off the request
+     * thread.
+     */
+    public static final String PARAM_CORS_LOGGING_ASYNC =
+            "cors.logging.async";
+
+    /**
+     * Key to retrieve maximum number of pending log messages, when logging is
+     * asynchronous.
+     */
+    public static final String PARAM_CORS_LOGGING_BUFFER_SIZE =
+            "cors.logging.buffer.size";
+
+    /**
+     * Key to retrieve maximum number of messages logged per origin per
+     * second, when logging is asynchronous.
+     */
+    public static final String PARAM_CORS_LOGGING_RATE_LIMIT =
+            "cors.logging.rate.limit";
+
     /**
      * Key to determine if request should be decorated.
      */
     public static final String PARAM_CORS_REQUEST_DECORATE =
             "cors.request.decorate";
+
+    /**
+     * Key to retrieve maximum number of origins whose decision is cached.
+     */
+    public static final String PARAM_CORS_ORIGIN_CACHE_CAPACITY =
+            "cors.origin.cache.capacity";
+
+    /**
+     * Key to retrieve the names of the policies of specific paths. The paths
+     * of a policy are set by <code>cors.policy.&lt;name&gt;.paths</code>, and
+     * any other param <code>cors.x</code> is overridden for it by
+     * <code>cors.policy.&lt;name&gt;.x</code>.
+     */
+    public static final String PARAM_CORS_POLICIES = "cors.policies";
+
+    /**
+     * Prefix of the params of a policy of specific paths.
+     */
+    public static final String PARAM_CORS_POLICY_PREFIX = "cors.policy.";
+
+    /**
+     * Key to retrieve the path patterns excluded from CORS processing.
+     */
+    public static final String PARAM_CORS_EXCLUDED_PATHS =
+            "cors.excluded.paths";
+
+    /**
+     * Key to retrieve maximum number of pre-flights whose decision is cached.
+     */
+    public static final String PARAM_CORS_PREFLIGHT_CACHE_CAPACITY =
+            "cors.preflight.cache.capacity";
+
+    /**
+     * Key to retrieve eviction policy of origin decision cache:
+     * <code>clock</code> or <code>random</code>.
+     */
+    public static final String PARAM_CORS_ORIGIN_CACHE_EVICTION =
+            "cors.origin.cache.eviction";
 }
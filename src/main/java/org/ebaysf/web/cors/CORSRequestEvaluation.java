@@ -0,0 +1,165 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>
+ * The outcome of inspecting a {@link HttpServletRequest} once, as per CORS
+ * specification. It holds the {@link CORSFilter.CORSRequestType} along with
+ * the request headers that were read to determine it, so that the handlers and
+ * the request decoration don't need to re-read or re-classify the request.
+ * </p>
+ * 
+ * <p>
+ * Instances are immutable, and are created by
+ * {@link CORSFilter#evaluate(HttpServletRequest)}.
+ * </p>
+ * 
+ * @see CORSFilter#evaluate(HttpServletRequest)
+ */
+public final class CORSRequestEvaluation {
+    /**
+     * Type of the request.
+     */
+    private final CORSFilter.CORSRequestType requestType;
+
+    /**
+     * Value of 'Origin' request header; <code>null</code> if absent.
+     */
+    private final String origin;
+
+    /**
+     * The HTTP method of the request.
+     */
+    private final String method;
+
+    /**
+     * Id of the HTTP method, as per the {@link HttpMethodRegistry} of the
+     * filter that evaluated the request.
+     */
+    private final int methodId;
+
+    /**
+     * Value of 'Access-Control-Request-Method' request header;
+     * <code>null</code> if absent, or if it wasn't required to determine the
+     * request type.
+     */
+    private final String accessControlRequestMethod;
+
+    /**
+     * Value of 'Access-Control-Request-Headers' request header;
+     * <code>null</code> if absent, or if the request isn't a CORS request.
+     */
+    private final String accessControlRequestHeaders;
+
+    /**
+     * The cached {@link OriginDecision} for the origin; <code>null</code> if
+     * origin decision caching is disabled.
+     */
+    private final OriginDecision originDecision;
+
+    /**
+     * The cached pre-flight decision, as per {@link PreflightDecisionCache};
+     * <code>null</code> if it wasn't cached.
+     */
+    private final String[] preflightDecision;
+
+    /**
+     * The {@link CorsPolicy} the request was evaluated against, and is to be
+     * handled with.
+     */
+    private final CorsPolicy policy;
+
+    CORSRequestEvaluation(final CORSFilter.CORSRequestType requestType,
+            final String origin, final String method, final int methodId,
+            final String accessControlRequestMethod,
+            final String accessControlRequestHeaders,
+            final OriginDecision originDecision,
+            final String[] preflightDecision, final CorsPolicy policy) {
+        this.requestType = requestType;
+        this.origin = origin;
+        this.method = method;
+        this.methodId = methodId;
+        this.accessControlRequestMethod = accessControlRequestMethod;
+        this.accessControlRequestHeaders = accessControlRequestHeaders;
+        this.originDecision = originDecision;
+        this.preflightDecision = preflightDecision;
+        this.policy = policy;
+    }
+
+    /**
+     * Returns the type of the request.
+     * 
+     * @return {@link CORSFilter.CORSRequestType}
+     */
+    public CORSFilter.CORSRequestType getRequestType() {
+        return requestType;
+    }
+
+    /**
+     * Returns the value of 'Origin' request header.
+     * 
+     * @return The origin; <code>null</code> if absent.
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Returns the HTTP method of the request.
+     * 
+     * @return The method.
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the value of 'Access-Control-Request-Method' request header.
+     * 
+     * @return The requested method; <code>null</code> if absent.
+     */
+    public String getAccessControlRequestMethod() {
+        return accessControlRequestMethod;
+    }
+
+    /**
+     * Returns the value of 'Access-Control-Request-Headers' request header.
+     * 
+     * @return The requested headers; <code>null</code> if absent.
+     */
+    public String getAccessControlRequestHeaders() {
+        return accessControlRequestHeaders;
+    }
+
+    int getMethodId() {
+        return methodId;
+    }
+
+    OriginDecision getOriginDecision() {
+        return originDecision;
+    }
+
+    String[] getPreflightDecision() {
+        return preflightDecision;
+    }
+
+    CorsPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,483 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * <p>
+ * Decorates an {@link OriginResolver} with a cache, and bounds the time a
+ * request waits for it.
+ * </p>
+ * 
+ * <p>
+ * Answers are cached for a time to live, negative ones for their own, usually
+ * shorter, time to live. A miss starts a lookup on a small pool of daemon
+ * threads; concurrent misses for the same origin wait for that one lookup,
+ * rather than each querying the resolver. A request waits no longer than the
+ * timeout, and then gets the failure answer: allowed if failing open, denied
+ * if failing closed. The lookup still completes in the background, and its
+ * answer is cached for the next requests. Failed lookups aren't cached. Once
+ * full, the cache drops expired entries, and then arbitrary ones.
+ * </p>
+ * 
+ * <p>
+ * With asynchronous resolution, requests don't wait at all:
+ * {@link #resolve(String, Callback)} calls back once the lookup completes,
+ * or with the failure answer once the timeout elapses, from a lookup or timer
+ * thread.
+ * </p>
+ */
+final class CachingOriginResolver implements OriginResolver {
+    /**
+     * Maximum number of lookups queued for the pool, beyond which a miss gets
+     * the failure answer.
+     */
+    private static final int MAX_QUEUED_LOOKUPS = 1024;
+
+    private final OriginResolver delegate;
+
+    private final long ttlNanos;
+
+    private final long negativeTtlNanos;
+
+    private final int capacity;
+
+    private final long timeoutNanos;
+
+    private final boolean failOpen;
+
+    private final ConcurrentHashMap<String, Lookup> cache;
+
+    private final ThreadPoolExecutor executor;
+
+    private final boolean async;
+
+    /**
+     * Fires the timeouts of asynchronous resolutions; <code>null</code> if
+     * resolution is synchronous.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Receives the answer of an asynchronous resolution.
+     */
+    interface Callback {
+        /**
+         * Called once, with the answer for the origin.
+         * 
+         * @param allowed
+         *            <code>true</code> if the origin is allowed, or if its
+         *            lookup failed and the resolver fails open;
+         *            <code>false</code> otherwise.
+         */
+        void resolved(boolean allowed);
+    }
+
+    /**
+     * @param delegate
+     *            The {@link OriginResolver} to decorate.
+     * @param ttlMillis
+     *            Time to live of allowed answers, in milliseconds.
+     * @param negativeTtlMillis
+     *            Time to live of denied answers, in milliseconds; 0 to not
+     *            cache them.
+     * @param capacity
+     *            Maximum number of cached origins.
+     * @param timeoutMillis
+     *            Maximum time a request waits for a lookup, in milliseconds.
+     * @param failOpen
+     *            Whether an origin is allowed when its lookup fails or times
+     *            out.
+     * @param threads
+     *            Number of lookup threads.
+     * @param async
+     *            Whether requests are suspended while their origin is
+     *            resolved, rather than waiting for it.
+     */
+    CachingOriginResolver(final OriginResolver delegate,
+            final long ttlMillis, final long negativeTtlMillis,
+            final int capacity, final long timeoutMillis,
+            final boolean failOpen, final int threads, final boolean async) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("OriginResolver object is null");
+        }
+        if (ttlMillis < 0 || negativeTtlMillis < 0 || timeoutMillis < 0) {
+            throw new IllegalArgumentException(
+                    "time to live and timeout can't be negative");
+        }
+        if (capacity <= 0 || threads <= 0) {
+            throw new IllegalArgumentException(
+                    "capacity and threads must be positive");
+        }
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos =
+                TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.capacity = capacity;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.failOpen = failOpen;
+        this.cache = new ConcurrentHashMap<String, Lookup>();
+        this.async = async;
+        this.executor =
+                new ThreadPoolExecutor(threads, threads, 0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_LOOKUPS),
+                        new DaemonThreadFactory("CORSFilter-origin-resolver-"));
+        this.timer =
+                async ? new ScheduledThreadPoolExecutor(1,
+                        new DaemonThreadFactory(
+                                "CORSFilter-origin-resolver-timer-")) : null;
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) throws ServletException {
+        delegate.init(filterConfig);
+    }
+
+    /**
+     * Checks if an origin is allowed, from the cache, or else by the decorated
+     * resolver. Never throws, and never waits longer than the timeout.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if it is allowed, or if its lookup failed and
+     *         the resolver fails open; <code>false</code> otherwise.
+     */
+    @Override
+    public boolean isOriginAllowed(final String origin) {
+        Lookup lookup = lookup(origin);
+        if (lookup == null) {
+            return failOpen;
+        }
+        try {
+            return lookup.get(timeoutNanos, TimeUnit.NANOSECONDS)
+                    .booleanValue();
+        } catch (TimeoutException e) {
+            return failOpen;
+        } catch (ExecutionException e) {
+            return failOpen;
+        } catch (CancellationException e) {
+            return failOpen;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failOpen;
+        }
+    }
+
+    /**
+     * Returns the cached answer for an origin, without waiting.
+     * 
+     * @param origin
+     *            The origin.
+     * @return The answer; <code>null</code> if it isn't cached, or a lookup
+     *         is in progress.
+     */
+    Boolean getCached(final String origin) {
+        Lookup lookup = cache.get(origin);
+        return lookup != null && !lookup.isStale(System.nanoTime())
+                && lookup.isCached() ? Boolean.valueOf(lookup.allowed) : null;
+    }
+
+    /**
+     * Resolves an origin without waiting: the callback is called once the
+     * lookup completes, or with the failure answer once the timeout elapses,
+     * whichever comes first. It may be called before this method returns, if
+     * the answer is at hand.
+     * 
+     * @param origin
+     *            The origin.
+     * @param callback
+     *            The {@link Callback}.
+     */
+    void resolve(final String origin, final Callback callback) {
+        final Lookup lookup = lookup(origin);
+        if (lookup == null) {
+            callback.resolved(failOpen);
+            return;
+        }
+        final AtomicBoolean called = new AtomicBoolean();
+        final AtomicReference<ScheduledFuture<?>> timeout =
+                new AtomicReference<ScheduledFuture<?>>();
+        if (timer != null && !lookup.isDone()) {
+            try {
+                timeout.set(timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (called.compareAndSet(false, true)) {
+                            callback.resolved(failOpen);
+                        }
+                    }
+                }, timeoutNanos, TimeUnit.NANOSECONDS));
+            } catch (RejectedExecutionException e) {
+                // Destroyed; the lookup has been cancelled.
+            }
+        }
+        lookup.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (called.compareAndSet(false, true)) {
+                    ScheduledFuture<?> scheduled = timeout.get();
+                    if (scheduled != null) {
+                        scheduled.cancel(false);
+                    }
+                    callback.resolved(lookup.answer());
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks if requests are suspended while their origin is resolved.
+     * 
+     * @return <code>true</code> if they are; <code>false</code> if they wait.
+     */
+    boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Returns the lookup of an origin, cached or in progress, or else starts
+     * one.
+     * 
+     * @return The lookup; <code>null</code> if it couldn't be started.
+     */
+    private Lookup lookup(final String origin) {
+        Lookup lookup = cache.get(origin);
+        if (lookup != null && lookup.isStale(System.nanoTime())) {
+            cache.remove(origin, lookup);
+            lookup = null;
+        }
+        if (lookup == null) {
+            Lookup created = new Lookup(origin);
+            lookup = cache.putIfAbsent(origin, created);
+            if (lookup == null) {
+                lookup = created;
+                if (cache.size() > capacity) {
+                    evict(created);
+                }
+                try {
+                    executor.execute(created);
+                } catch (RejectedExecutionException e) {
+                    // Saturated, or destroyed.
+                    cache.remove(origin, created);
+                    created.cancel(false);
+                    return null;
+                }
+            }
+        }
+        return lookup;
+    }
+
+    @Override
+    public void destroy() {
+        for (Runnable queued : executor.shutdownNow()) {
+            // Calls back the asynchronous resolutions waiting for it.
+            ((Future<?>) queued).cancel(false);
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        cache.clear();
+        delegate.destroy();
+    }
+
+    /**
+     * Returns the number of cached origins, lookups in progress included.
+     * 
+     * @return The size.
+     */
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * Drops expired entries, and then arbitrary completed ones, until the
+     * cache is back to its capacity.
+     */
+    private void evict(final Lookup keep) {
+        final long now = System.nanoTime();
+        for (Iterator<Lookup> i = cache.values().iterator(); i.hasNext();) {
+            if (i.next().isStale(now)) {
+                i.remove();
+            }
+        }
+        for (Iterator<Lookup> i = cache.values().iterator(); i.hasNext()
+                && cache.size() > capacity;) {
+            Lookup lookup = i.next();
+            if (lookup != keep && lookup.isCached()) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * A lookup of an origin by the decorated resolver, and then its cached
+     * answer until it expires.
+     */
+    private final class Lookup extends FutureTask<Boolean> {
+        private final String origin;
+
+        /**
+         * When the answer expires, as per {@link System#nanoTime()}; only
+         * meaningful once {@link #cached}.
+         */
+        private volatile long expiresAt;
+
+        /**
+         * The answer of a successful lookup.
+         */
+        private volatile boolean allowed;
+
+        /**
+         * Called once the lookup is done; guarded by this.
+         */
+        private List<Runnable> listeners = new ArrayList<Runnable>(1);
+
+        /**
+         * Whether the lookup succeeded with an answer to be cached, and
+         * {@link #expiresAt} is set.
+         */
+        private volatile boolean cached;
+
+        Lookup(final String origin) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return Boolean.valueOf(delegate.isOriginAllowed(origin));
+                }
+            });
+            this.origin = origin;
+        }
+
+        /**
+         * Stamps the answer before the lookup completes, so that it's never
+         * seen done but not yet cached.
+         */
+        @Override
+        protected void set(final Boolean answer) {
+            allowed = answer.booleanValue();
+            long ttl = allowed ? ttlNanos : negativeTtlNanos;
+            if (ttl > 0) {
+                expiresAt = System.nanoTime() + ttl;
+                cached = true;
+            }
+            super.set(answer);
+        }
+
+        @Override
+        protected void done() {
+            if (!cached) {
+                // Failed, or not to be cached.
+                cache.remove(origin, this);
+            }
+            List<Runnable> done;
+            synchronized (this) {
+                done = listeners;
+                listeners = null;
+            }
+            for (Runnable listener : done) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Runs a listener once the lookup is done, or right away if it is.
+         */
+        void whenDone(final Runnable listener) {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Returns the answer of a lookup that is done.
+         */
+        boolean answer() {
+            try {
+                get();
+                return allowed;
+            } catch (ExecutionException e) {
+                return failOpen;
+            } catch (CancellationException e) {
+                return failOpen;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return failOpen;
+            }
+        }
+
+        /**
+         * Checks if this lookup's answer can no longer be used for other
+         * requests: it expired, failed or isn't to be cached.
+         */
+        boolean isStale(final long now) {
+            return cached ? now - expiresAt >= 0 : isDone();
+        }
+
+        boolean isCached() {
+            return cached;
+        }
+    }
+
+    /**
+     * Creates named daemon threads.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread =
+                    new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
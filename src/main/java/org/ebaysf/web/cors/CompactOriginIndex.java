@@ -0,0 +1,516 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * A compact, read-only index of a large number of allowed origins, each
+ * naming a single scheme and port. Origins are matched by components, as by
+ * {@link StructuredOriginMatcher}, through their canonical form.
+ * </p>
+ * 
+ * <p>
+ * The canonical origins, which are ASCII, are packed into a single array of
+ * bytes, one per character, so that they compare with a queried origin
+ * character by character. They are ordered by a minimal perfect hash
+ * function built with the hash and displace method: an origin hashes to a
+ * bucket, whose displacement gives the slot of the origin. Each slot also
+ * keeps a 16 bit fingerprint of its origin, so most lookups of an origin that
+ * isn't allowed are rejected without comparing bytes. A lookup hashes the origin in place, and costs a
+ * constant number of array reads; it doesn't allocate.
+ * </p>
+ * 
+ * <p>
+ * An origin takes its length in bytes, plus 10 bytes, where a
+ * {@link java.util.HashSet} of {@link String}s takes well over 100 bytes.
+ * Instances are immutable.
+ * </p>
+ */
+final class CompactOriginIndex extends AbstractSet<String> {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Displacements tried for a bucket, before starting over with another
+     * seed.
+     */
+    private static final int MAX_DISPLACEMENT = 1 << 16;
+
+    private static final int MAX_SEEDS = 64;
+
+    private final int size;
+
+    private final long seed;
+
+    /**
+     * The canonical origins, in slot order.
+     */
+    private final byte[] keys;
+
+    /**
+     * Offset of each slot's origin in {@link #keys}; the last element is the
+     * length of {@link #keys}.
+     */
+    private final int[] offsets;
+
+    /**
+     * Displacement of each bucket: positive if the bucket holds several
+     * origins; <code>-(slot + 1)</code> if it holds a single one; 0 if it's
+     * empty.
+     */
+    private final int[] displacements;
+
+    private final short[] fingerprints;
+
+    /**
+     * Builds an index of the given origins. Duplicates, including origins
+     * that only differ by case or by an explicit default port, are kept once.
+     * 
+     * @param origins
+     *            The allowed origins.
+     * @throws IllegalArgumentException
+     *             If an origin doesn't name a single scheme and port, as per
+     *             {@link StructuredOriginMatcher#canonicalize(String)}, or
+     *             isn't ASCII.
+     */
+    CompactOriginIndex(final Collection<String> origins) {
+        String[] canonical = new String[origins.size()];
+        int count = 0;
+        for (String origin : origins) {
+            String key = StructuredOriginMatcher.canonicalize(origin);
+            if (key == null) {
+                throw new IllegalArgumentException("Not a single origin: "
+                        + origin);
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) >= 0x80) {
+                    throw new IllegalArgumentException(
+                            "Not an ASCII origin: " + origin);
+                }
+            }
+            canonical[count++] = key;
+        }
+
+        long candidateSeed = 0L;
+        String[] unique = null;
+        int[] slotOf = null;
+        int[] bucketDisplacements = null;
+        for (int attempt = 0; attempt < MAX_SEEDS
+                && bucketDisplacements == null; attempt++) {
+            candidateSeed = mix(attempt + 1, 0x5DEECE66DL);
+            unique = deduplicate(canonical, candidateSeed);
+            if (unique == null) {
+                // Distinct origins with the same 64 bit hash.
+                continue;
+            }
+            slotOf = new int[unique.length];
+            bucketDisplacements = place(unique, candidateSeed, slotOf);
+        }
+        if (bucketDisplacements == null) {
+            throw new IllegalArgumentException(
+                    "Unable to build a perfect hash of the origins");
+        }
+
+        this.size = unique.length;
+        this.seed = candidateSeed;
+        this.displacements = bucketDisplacements;
+        this.offsets = new int[size + 1];
+        this.fingerprints = new short[size];
+        byte[][] encoded = new byte[size][];
+        int[] keyOfSlot = new int[size];
+        for (int i = 0; i < size; i++) {
+            keyOfSlot[slotOf[i]] = i;
+        }
+        int length = 0;
+        for (int slot = 0; slot < size; slot++) {
+            String key = unique[keyOfSlot[slot]];
+            encoded[slot] = key.getBytes(US_ASCII);
+            fingerprints[slot] = (short) hash(key, key.length(), seed);
+            offsets[slot] = length;
+            length += encoded[slot].length;
+        }
+        offsets[size] = length;
+        this.keys = new byte[length];
+        for (int slot = 0; slot < size; slot++) {
+            System.arraycopy(encoded[slot], 0, keys, offsets[slot],
+                    encoded[slot].length);
+        }
+    }
+
+    /**
+     * Checks if an origin is allowed.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if it is; <code>false</code> otherwise.
+     */
+    boolean containsOrigin(final String origin) {
+        if (size == 0) {
+            return false;
+        }
+        final int end = canonicalEnd(origin);
+        if (end < 0) {
+            // Unusual, e.g. a port with leading zeros.
+            String canonical = StructuredOriginMatcher.canonicalize(origin);
+            return canonical != null && find(canonical, canonical.length());
+        }
+        return find(origin, end);
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o instanceof String && containsOrigin((String) o);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                int slot = next++;
+                return new String(keys, offsets[slot], offsets[slot + 1]
+                        - offsets[slot], US_ASCII);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate heap footprint of this index.
+     * 
+     * @return The size in bytes.
+     */
+    long sizeInBytes() {
+        return 16L * 5 + keys.length + 4L * offsets.length + 4L
+                * displacements.length + 2L * fingerprints.length;
+    }
+
+    /**
+     * Writes this index in the binary layout read by
+     * {@link MappedOriginIndex}.
+     * 
+     * @param out
+     *            The output.
+     * @throws IOException
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(MappedOriginIndex.MAGIC);
+        out.writeInt(MappedOriginIndex.VERSION);
+        out.writeInt(size);
+        out.writeLong(seed);
+        out.writeInt(keys.length);
+        for (int displacement : displacements) {
+            out.writeInt(displacement);
+        }
+        for (short fingerprint : fingerprints) {
+            out.writeShort(fingerprint);
+        }
+        if ((size & 1) != 0) {
+            // Aligns the offsets.
+            out.writeShort(0);
+        }
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        out.write(keys);
+    }
+
+    private boolean find(final String origin, final int end) {
+        final long h = hash(origin, end, seed);
+        final int slot = slot(h, displacements[bucket(h, size)], size);
+        if (fingerprints[slot] != (short) h) {
+            return false;
+        }
+        int offset = offsets[slot];
+        if (offsets[slot + 1] - offset != end) {
+            return false;
+        }
+        for (int i = 0; i < end; i++) {
+            if (keys[offset + i] != toLowerCase(origin.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length of the canonical form of an ASCII origin, whose
+     * canonical form is itself lower-cased, less a default port if any.
+     * 
+     * @return The length; -1 if the origin needs to be canonicalized.
+     */
+    static int canonicalEnd(final String origin) {
+        final int length = origin.length();
+        final int schemeEnd = origin.indexOf("://");
+        if (schemeEnd <= 0) {
+            return -1;
+        }
+        int i = schemeEnd + 3;
+        if (i < length && origin.charAt(i) == '[') {
+            i = origin.indexOf(']', i);
+            if (i < 0) {
+                return -1;
+            }
+        }
+        int colon = -1;
+        for (int j = 0; j < length; j++) {
+            char c = origin.charAt(j);
+            if (c >= 0x80) {
+                return -1;
+            }
+            if (colon < 0 && c == ':' && j > i) {
+                colon = j;
+            }
+        }
+        if (colon < 0) {
+            return length;
+        }
+        int portLength = length - colon - 1;
+        if (portLength == 0 || portLength > 5
+                || (portLength > 1 && origin.charAt(colon + 1) == '0')) {
+            return -1;
+        }
+        int port = 0;
+        for (int j = colon + 1; j < length; j++) {
+            char c = origin.charAt(j);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port == StructuredOriginMatcher.defaultPort(origin, 0,
+                schemeEnd) ? colon : length;
+    }
+
+    /**
+     * Removes duplicates, only comparing the origins whose hashes collide.
+     * 
+     * @return The distinct origins; <code>null</code> if two of them have the
+     *         same hash under this seed.
+     */
+    private static String[] deduplicate(final String[] origins,
+            final long seed) {
+        long[] hashes = new long[origins.length];
+        for (int i = 0; i < origins.length; i++) {
+            hashes[i] = hash(origins[i], origins[i].length(), seed);
+        }
+        long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        Set<Long> collisions = new HashSet<Long>();
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] == sorted[i - 1]) {
+                collisions.add(Long.valueOf(sorted[i]));
+            }
+        }
+        if (collisions.isEmpty()) {
+            return origins;
+        }
+
+        List<String> unique = new ArrayList<String>(origins.length);
+        Set<Long> seenHashes = new HashSet<Long>();
+        Set<String> seenOrigins = new HashSet<String>();
+        for (int i = 0; i < origins.length; i++) {
+            Long h = Long.valueOf(hashes[i]);
+            if (collisions.contains(h)) {
+                if (!seenOrigins.add(origins[i])) {
+                    continue;
+                }
+                if (!seenHashes.add(h)) {
+                    return null;
+                }
+            }
+            unique.add(origins[i]);
+        }
+        return unique.toArray(new String[unique.size()]);
+    }
+
+    /**
+     * Places each origin in its own slot, processing buckets from the
+     * largest down, and finding for each one a displacement that moves all
+     * of its origins to free slots. Single origin buckets take the remaining
+     * free slots directly.
+     * 
+     * @return The displacements; <code>null</code> if a bucket couldn't be
+     *         placed.
+     */
+    private static int[] place(final String[] origins, final long seed,
+            final int[] slotOf) {
+        final int n = origins.length;
+        long[] hashes = new long[n];
+        int[] bucketSizes = new int[n];
+        int[] bucketOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(origins[i], origins[i].length(), seed);
+            bucketOf[i] = bucket(hashes[i], n);
+            bucketSizes[bucketOf[i]]++;
+        }
+
+        // Origins grouped by bucket.
+        int[] bucketStarts = new int[n + 1];
+        for (int b = 0; b < n; b++) {
+            bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+        }
+        int[] members = new int[n];
+        int[] fill = bucketStarts.clone();
+        for (int i = 0; i < n; i++) {
+            members[fill[bucketOf[i]]++] = i;
+        }
+
+        // Buckets sorted by decreasing size, with a counting sort.
+        int maxSize = 0;
+        for (int b = 0; b < n; b++) {
+            maxSize = Math.max(maxSize, bucketSizes[b]);
+        }
+        int[] sizeStarts = new int[maxSize + 2];
+        for (int b = 0; b < n; b++) {
+            sizeStarts[maxSize - bucketSizes[b] + 1]++;
+        }
+        for (int k = 1; k < sizeStarts.length; k++) {
+            sizeStarts[k] += sizeStarts[k - 1];
+        }
+        int[] order = new int[n];
+        for (int b = 0; b < n; b++) {
+            order[sizeStarts[maxSize - bucketSizes[b]]++] = b;
+        }
+
+        int[] displacements = new int[n];
+        boolean[] taken = new boolean[n];
+        int[] candidate = new int[Math.max(maxSize, 1)];
+        int nextFree = 0;
+        for (int bucket : order) {
+            int start = bucketStarts[bucket];
+            int bucketSize = bucketSizes[bucket];
+            if (bucketSize == 0) {
+                break;
+            }
+            if (bucketSize == 1) {
+                while (taken[nextFree]) {
+                    nextFree++;
+                }
+                taken[nextFree] = true;
+                slotOf[members[start]] = nextFree;
+                displacements[bucket] = -nextFree - 1;
+                continue;
+            }
+            int displacement = 1;
+            search: while (true) {
+                if (displacement > MAX_DISPLACEMENT) {
+                    return null;
+                }
+                for (int k = 0; k < bucketSize; k++) {
+                    int slot =
+                            slot(hashes[members[start + k]], displacement, n);
+                    if (taken[slot]) {
+                        displacement++;
+                        continue search;
+                    }
+                    for (int j = 0; j < k; j++) {
+                        if (candidate[j] == slot) {
+                            displacement++;
+                            continue search;
+                        }
+                    }
+                    candidate[k] = slot;
+                }
+                break;
+            }
+            for (int k = 0; k < bucketSize; k++) {
+                taken[candidate[k]] = true;
+                slotOf[members[start + k]] = candidate[k];
+            }
+            displacements[bucket] = displacement;
+        }
+        return displacements;
+    }
+
+    /**
+     * Hashes the first <code>end</code> characters of an ASCII string,
+     * lower-cased, as FNV-1a followed by a final mix.
+     */
+    static long hash(final String value, final int end,
+            final long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < end; i++) {
+            h ^= toLowerCase(value.charAt(i));
+            h *= 0x100000001b3L;
+        }
+        return mix(h, 0);
+    }
+
+    /**
+     * Returns the bucket of a hash.
+     */
+    static int bucket(final long h, final int n) {
+        return reduce((int) (h >>> 32), n);
+    }
+
+    /**
+     * Returns the slot of a hash, given the displacement of its bucket.
+     */
+    static int slot(final long h, final int displacement, final int n) {
+        return displacement < 0 ? -displacement - 1 : reduce(
+                (int) (mix(h, displacement) >>> 32), n);
+    }
+
+    private static long mix(final long h, final long displacement) {
+        long x = h + displacement * 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    /**
+     * Maps a 32 bit hash to [0, n) without a division.
+     */
+    private static int reduce(final int hash, final int n) {
+        return (int) (((hash & 0xFFFFFFFFL) * n) >>> 32);
+    }
+
+    static int toLowerCase(final char c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
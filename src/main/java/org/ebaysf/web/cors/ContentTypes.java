@@ -0,0 +1,182 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+/**
+ * Classifies 'Content-Type' request header values, in place and without
+ * allocating. Only the type/subtype (the essence) of a media type is
+ * inspected; parameters such as <code>charset</code> are ignored.
+ * 
+ * @see <a href="https://fetch.spec.whatwg.org/#cors-safelisted-request-header">
+ *      Fetch, CORS-safelisted request-header</a>
+ */
+final class ContentTypes {
+    /**
+     * Longest 'Content-Type' value that can be CORS-safelisted.
+     */
+    private static final int MAX_SIMPLE_LENGTH = 128;
+
+    private ContentTypes() {
+        // Utility class
+    }
+
+    /**
+     * Checks if a 'Content-Type' value is CORS-safelisted, i.e. it's a valid
+     * media type whose essence is
+     * <code>application/x-www-form-urlencoded</code>,
+     * <code>multipart/form-data</code> or <code>text/plain</code>, in any
+     * case, with or without parameters.
+     * 
+     * @param contentType
+     *            The 'Content-Type' value.
+     * @return <code>true</code> if it's safelisted; <code>false</code>
+     *         otherwise.
+     */
+    static boolean isSimple(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final int length = contentType.length();
+        if (length > MAX_SIMPLE_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (isUnsafeByte(contentType.charAt(i))) {
+                return false;
+            }
+        }
+
+        int i = 0;
+        while (i < length && isWhitespace(contentType.charAt(i))) {
+            i++;
+        }
+
+        // type
+        final int typeStart = i;
+        while (i < length && contentType.charAt(i) != '/') {
+            if (!isTokenChar(contentType.charAt(i))) {
+                return false;
+            }
+            i++;
+        }
+        final int typeEnd = i;
+        if (typeEnd == typeStart || i == length) {
+            return false;
+        }
+        i++;
+
+        // subtype
+        final int subtypeStart = i;
+        while (i < length && contentType.charAt(i) != ';') {
+            i++;
+        }
+        int subtypeEnd = i;
+        while (subtypeEnd > subtypeStart
+                && isWhitespace(contentType.charAt(subtypeEnd - 1))) {
+            subtypeEnd--;
+        }
+        if (subtypeEnd == subtypeStart) {
+            return false;
+        }
+        for (int j = subtypeStart; j < subtypeEnd; j++) {
+            if (!isTokenChar(contentType.charAt(j))) {
+                return false;
+            }
+        }
+
+        return (matches(contentType, typeStart, typeEnd, "application")
+                && matches(contentType, subtypeStart, subtypeEnd,
+                        "x-www-form-urlencoded"))
+                || (matches(contentType, typeStart, typeEnd, "multipart")
+                && matches(contentType, subtypeStart, subtypeEnd, "form-data"))
+                || (matches(contentType, typeStart, typeEnd, "text")
+                && matches(contentType, subtypeStart, subtypeEnd, "plain"));
+    }
+
+    /**
+     * Compares a range of characters, ASCII case in-sensitively, with a
+     * lower-case literal.
+     */
+    private static boolean matches(final String value, final int start,
+            final int end, final String lowerCaseLiteral) {
+        final int length = end - start;
+        return length == lowerCaseLiteral.length()
+                && value.regionMatches(true, start, lowerCaseLiteral, 0,
+                        length);
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * Checks for a CORS-unsafe request-header byte, as per Fetch.
+     */
+    private static boolean isUnsafeByte(final char c) {
+        if (c < 0x20) {
+            return c != '\t';
+        }
+        switch (c) {
+        case '"':
+        case '(':
+        case ')':
+        case ':':
+        case '<':
+        case '>':
+        case '?':
+        case '@':
+        case '[':
+        case '\\':
+        case ']':
+        case '{':
+        case '}':
+        case 0x7f:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Checks for a token character, as per RFC7230.
+     */
+    private static boolean isTokenChar(final char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')) {
+            return true;
+        }
+        switch (c) {
+        case '!':
+        case '#':
+        case '$':
+        case '%':
+        case '&':
+        case '\'':
+        case '*':
+        case '+':
+        case '-':
+        case '.':
+        case '^':
+        case '_':
+        case '`':
+        case '|':
+        case '~':
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,964 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * An immutable, compiled snapshot of the CORS configuration of a
+ * {@link CORSFilter}: the parsed init params, along with everything derived
+ * from them once, such as the method bitmask, the header name set, the
+ * response header values and the origin decision cache.
+ * </p>
+ * 
+ * <p>
+ * The filter publishes a policy through a single volatile reference, and a
+ * request is evaluated and handled against the one policy it read first.
+ * Reconfiguring the filter compiles a new policy and swaps the reference, so
+ * requests in flight never see a partially applied configuration.
+ * </p>
+ */
+final class CorsPolicy {
+    /**
+     * The policy of a filter that hasn't been initialized: no origin, method
+     * or header is allowed.
+     */
+    static final CorsPolicy EMPTY = new CorsPolicy(false,
+            Collections.<String> emptySet(), 0, null, null, null,
+            Collections.<String> emptySet(), HttpMethodRegistry.STANDARD,
+            Collections.<String> emptySet(),
+            Collections.<String> emptySet(), false, 0L, false, false, false,
+            false, false, null, null, null);
+
+    private final boolean anyOriginAllowed;
+
+    /**
+     * The allowed origins, as configured, wildcard patterns included; the
+     * indexed ones in their canonical form.
+     */
+    private final Set<String> allowedOrigins;
+
+    /**
+     * The allowed origins that are matched exactly, as strings, i.e. that are
+     * neither structured, nor wildcard patterns; e.g. "null".
+     */
+    private final Set<String> exactOrigins;
+
+    /**
+     * The allowed origins that are matched by (scheme, host, port);
+     * <code>null</code> if there are none.
+     */
+    private final StructuredOriginMatcher structuredOrigins;
+
+    /**
+     * The allowed origins that name a single scheme and port, when there are
+     * at least as many allowed origins as the index threshold;
+     * <code>null</code> otherwise.
+     */
+    private final CompactOriginIndex originIndex;
+
+    /**
+     * The compiled wildcard patterns among the allowed origins;
+     * <code>null</code> if there are none.
+     */
+    private final OriginPatternTrie originPatterns;
+
+    /**
+     * The compiled regex origin rules; <code>null</code> if there are none.
+     */
+    private final OriginRegexSet originRegexes;
+
+    /**
+     * The mapped origin index file; <code>null</code> if none is configured.
+     */
+    private final MappedOriginIndex originFile;
+
+    private final Set<String> allowedHttpMethods;
+
+    private final HttpMethodRegistry httpMethodRegistry;
+
+    /**
+     * {@link #allowedHttpMethods} as a bitmask of {@link #httpMethodRegistry}
+     * ids.
+     */
+    private final long allowedHttpMethodsMask;
+
+    private final HeaderNameSet allowedHttpHeaders;
+
+    private final Set<String> exposedHeaders;
+
+    private final boolean supportsCredentials;
+
+    private final long preflightMaxAge;
+
+    /**
+     * Value of 'Access-Control-Expose-Headers' response header;
+     * <code>null</code> if there are no exposed headers.
+     */
+    private final String exposedHeadersValue;
+
+    /**
+     * Value of 'Access-Control-Allow-Headers' response header;
+     * <code>null</code> if there are no allowed headers.
+     */
+    private final String allowedHttpHeadersValue;
+
+    /**
+     * Value of 'Access-Control-Max-Age' response header; <code>null</code> if
+     * the max age isn't positive.
+     */
+    private final String preflightMaxAgeValue;
+
+    /**
+     * Value of 'Cache-Control' response header of accepted pre-flights, that
+     * shared caches may then store; <code>null</code> if they aren't made
+     * cacheable, or the max age isn't positive.
+     */
+    private final String preflightCacheControlValue;
+
+    /**
+     * Tokens added to 'Vary' response header of accepted pre-flights.
+     */
+    private final String preflightVaryValue;
+
+    /**
+     * Whether accepted pre-flights are answered with 204 (No Content), and
+     * committed at once.
+     */
+    private final boolean preflightNoContent;
+
+    /**
+     * Value of 'Access-Control-Allow-Methods' response header, listing all
+     * the allowed methods; <code>null</code> if pre-flights only echo the
+     * requested method.
+     */
+    private final String allowedHttpMethodsValue;
+
+    /**
+     * Response headers of allowed simple and actual requests, when any origin
+     * is allowed without credentials: the same for every origin, so shared by
+     * their decisions; <code>null</code> otherwise.
+     */
+    private final String[] anyOriginResponseHeaders;
+
+    /**
+     * Response headers of allowed simple and actual requests, by allowed
+     * origin, for the exact origins, and the structured ones naming a single
+     * scheme and port, by their canonical form; empty when
+     * {@link #anyOriginResponseHeaders} are shared by all origins.
+     */
+    private final Map<String, String[]> originResponseHeaders;
+
+    private final boolean loggingEnabled;
+
+    private final boolean decorateRequest;
+
+    /**
+     * Caches the decision for recently seen origins under this policy;
+     * <code>null</code> if disabled. A new policy comes with a new cache,
+     * unless it's a copy with the same configuration and origin file, so
+     * decisions never outlive the configuration they were made under.
+     */
+    private final OriginDecisionCache originDecisionCache;
+
+    /**
+     * Caches the decision for recently seen pre-flights under this policy;
+     * <code>null</code> if disabled. As {@link #originDecisionCache}, it's
+     * only shared with copies of the same configuration and origin file.
+     */
+    private final PreflightDecisionCache preflightDecisionCache;
+
+    /**
+     * Decides on the origins that the configuration doesn't allow, with its
+     * own cache and timeout; <code>null</code> if none is configured.
+     */
+    private final CachingOriginResolver originResolver;
+
+    /**
+     * The policies of specific paths, that this policy is the default of;
+     * <code>null</code> if there are none.
+     */
+    private final PathPolicyTrie pathPolicies;
+
+    /**
+     * The policies of specific virtual hosts, that this policy is the default
+     * of; <code>null</code> if there are none.
+     */
+    private final HostPolicyMap hostPolicies;
+
+    /**
+     * Compiles a policy.
+     * 
+     * @param anyOriginAllowed
+     *            Whether any origin is allowed.
+     * @param allowedOrigins
+     *            The allowed origins, if not any origin is allowed.
+     * @param originIndexThreshold
+     *            The number of allowed origins from which they are kept in a
+     *            {@link CompactOriginIndex}; 0 to never index them.
+     * @param originPatterns
+     *            The wildcard patterns among the allowed origins, compiled;
+     *            <code>null</code> if there are none.
+     * @param originRegexes
+     *            The compiled regex origin rules; <code>null</code> if there
+     *            are none.
+     * @param originFile
+     *            The mapped origin index file; <code>null</code> if none is
+     *            configured.
+     * @param allowedHttpMethods
+     *            The allowed methods.
+     * @param httpMethodRegistry
+     *            Registry of the standard methods, and the extension methods
+     *            among the allowed ones.
+     * @param allowedHttpHeaders
+     *            The allowed header field names.
+     * @param exposedHeaders
+     *            The exposed header field names.
+     * @param supportsCredentials
+     *            Whether user credentials are supported.
+     * @param preflightMaxAge
+     *            Pre-flight max age, in seconds.
+     * @param preflightCacheable
+     *            Whether accepted pre-flights are made cacheable by shared
+     *            caches.
+     * @param preflightNoContent
+     *            Whether accepted pre-flights are answered with 204 (No
+     *            Content), and committed at once.
+     * @param preflightAllMethods
+     *            Whether accepted pre-flights list all the allowed methods,
+     *            rather than only the requested one.
+     * @param loggingEnabled
+     *            Whether rejected requests are logged.
+     * @param decorateRequest
+     *            Whether requests are decorated with CORS attributes.
+     * @param originDecisionCache
+     *            A new, empty {@link OriginDecisionCache}; <code>null</code> to
+     *            disable origin decision caching.
+     * @param preflightDecisionCache
+     *            A new, empty {@link PreflightDecisionCache};
+     *            <code>null</code> to disable pre-flight decision caching.
+     * @param originResolver
+     *            The {@link CachingOriginResolver}; <code>null</code> if no
+     *            {@link OriginResolver} is configured.
+     */
+    CorsPolicy(final boolean anyOriginAllowed,
+            final Collection<String> allowedOrigins,
+            final int originIndexThreshold,
+            final OriginPatternTrie originPatterns,
+            final OriginRegexSet originRegexes,
+            final MappedOriginIndex originFile,
+            final Collection<String> allowedHttpMethods,
+            final HttpMethodRegistry httpMethodRegistry,
+            final Collection<String> allowedHttpHeaders,
+            final Collection<String> exposedHeaders,
+            final boolean supportsCredentials, final long preflightMaxAge,
+            final boolean preflightCacheable,
+            final boolean preflightNoContent,
+            final boolean preflightAllMethods,
+            final boolean loggingEnabled, final boolean decorateRequest,
+            final OriginDecisionCache originDecisionCache,
+            final PreflightDecisionCache preflightDecisionCache,
+            final CachingOriginResolver originResolver) {
+        if (httpMethodRegistry == null) {
+            throw new IllegalArgumentException(
+                    "HttpMethodRegistry object is null");
+        }
+        this.anyOriginAllowed = anyOriginAllowed;
+        final boolean indexed =
+                originIndexThreshold > 0
+                        && allowedOrigins.size() >= originIndexThreshold;
+        Set<String> origins = new HashSet<String>();
+        List<String> structured = new ArrayList<String>();
+        List<String> single = new ArrayList<String>();
+        Set<String> notIndexed = new HashSet<String>();
+        for (String origin : allowedOrigins) {
+            if (indexed
+                    && StructuredOriginMatcher.canonicalize(origin) != null) {
+                single.add(origin);
+                continue;
+            }
+            notIndexed.add(origin);
+            if (OriginPatternTrie.isPattern(origin)) {
+                continue;
+            }
+            if (StructuredOriginMatcher.isStructured(origin)) {
+                structured.add(origin);
+            } else {
+                origins.add(origin);
+            }
+        }
+        this.exactOrigins = origins;
+        this.structuredOrigins =
+                structured.isEmpty() ? null : new StructuredOriginMatcher(
+                        structured);
+        if (indexed) {
+            // The index stands in for the configured origins, rather than
+            // being kept alongside a copy of them.
+            this.originIndex = new CompactOriginIndex(single);
+            this.allowedOrigins =
+                    Collections.unmodifiableSet(new IndexedOriginSet(
+                            originIndex, notIndexed));
+        } else {
+            this.originIndex = null;
+            this.allowedOrigins = Collections.unmodifiableSet(notIndexed);
+        }
+        this.originPatterns = originPatterns;
+        this.originRegexes = originRegexes;
+        this.originFile = originFile;
+        this.allowedHttpMethods = immutableCopy(allowedHttpMethods);
+        this.httpMethodRegistry = httpMethodRegistry;
+        this.allowedHttpMethodsMask =
+                httpMethodRegistry.maskOf(this.allowedHttpMethods);
+        this.allowedHttpHeaders = new HeaderNameSet(allowedHttpHeaders);
+        this.exposedHeaders = immutableCopy(exposedHeaders);
+        this.supportsCredentials = supportsCredentials;
+        this.preflightMaxAge = preflightMaxAge;
+        this.preflightNoContent = preflightNoContent;
+        this.loggingEnabled = loggingEnabled;
+        this.decorateRequest = decorateRequest;
+        this.originDecisionCache = originDecisionCache;
+        this.preflightDecisionCache = preflightDecisionCache;
+        this.originResolver = originResolver;
+        this.pathPolicies = null;
+        this.hostPolicies = null;
+
+        // Response header values only depend on the configuration, so they
+        // are built once here rather than on every request.
+        this.exposedHeadersValue =
+                this.exposedHeaders.isEmpty() ? null : CORSFilter.join(
+                        this.exposedHeaders, ",");
+        this.allowedHttpHeadersValue =
+                this.allowedHttpHeaders.isEmpty() ? null : CORSFilter.join(
+                        this.allowedHttpHeaders, ",");
+        this.preflightMaxAgeValue =
+                preflightMaxAge > 0 ? String.valueOf(preflightMaxAge) : null;
+        this.allowedHttpMethodsValue =
+                preflightAllMethods && !this.allowedHttpMethods.isEmpty()
+                        ? CORSFilter.join(new TreeSet<String>(
+                                this.allowedHttpMethods), ",") : null;
+        this.anyOriginResponseHeaders =
+                anyOriginAllowed && !supportsCredentials
+                        ? buildResponseHeaders("*") : null;
+        Map<String, String[]> responseHeaders =
+                new HashMap<String, String[]>();
+        if (this.anyOriginResponseHeaders == null) {
+            for (String origin : origins) {
+                responseHeaders.put(origin,
+                        buildResponseHeaders(getAllowOriginValue(origin)));
+            }
+            // The value reflects the request's origin, so only that of a
+            // canonical origin can be prebuilt; other rules match origins
+            // that are spelled differently.
+            for (String origin : structured) {
+                String canonical = StructuredOriginMatcher.canonicalize(origin);
+                if (canonical != null) {
+                    responseHeaders.put(canonical, buildResponseHeaders(
+                            getAllowOriginValue(canonical)));
+                }
+            }
+        }
+        this.originResponseHeaders = responseHeaders;
+        this.preflightCacheControlValue =
+                preflightCacheable && preflightMaxAge > 0 ? "public, max-age="
+                        + preflightMaxAge : null;
+        // An accepted pre-flight always depends on the requested method and
+        // headers, which decide whether it's accepted, and the method may be
+        // echoed; a cacheable one is also stored by its origin.
+        String requestVaryValue =
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD + ", "
+                + CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS;
+        this.preflightVaryValue =
+                preflightCacheable || isOriginReflected()
+                        ? CORSFilter.REQUEST_HEADER_ORIGIN + ", "
+                                + requestVaryValue : requestVaryValue;
+    }
+
+    private CorsPolicy(final CorsPolicy base,
+            final MappedOriginIndex originFile,
+            final PathPolicyTrie pathPolicies,
+            final HostPolicyMap hostPolicies) {
+        this.anyOriginAllowed = base.anyOriginAllowed;
+        this.allowedOrigins = base.allowedOrigins;
+        this.exactOrigins = base.exactOrigins;
+        this.structuredOrigins = base.structuredOrigins;
+        this.originIndex = base.originIndex;
+        this.originPatterns = base.originPatterns;
+        this.originRegexes = base.originRegexes;
+        this.originFile = originFile;
+        this.allowedHttpMethods = base.allowedHttpMethods;
+        this.httpMethodRegistry = base.httpMethodRegistry;
+        this.allowedHttpMethodsMask = base.allowedHttpMethodsMask;
+        this.allowedHttpHeaders = base.allowedHttpHeaders;
+        this.exposedHeaders = base.exposedHeaders;
+        this.supportsCredentials = base.supportsCredentials;
+        this.preflightMaxAge = base.preflightMaxAge;
+        this.preflightNoContent = base.preflightNoContent;
+        this.allowedHttpMethodsValue = base.allowedHttpMethodsValue;
+        this.loggingEnabled = base.loggingEnabled;
+        this.decorateRequest = base.decorateRequest;
+        if (originFile == base.originFile) {
+            this.originDecisionCache = base.originDecisionCache;
+            this.preflightDecisionCache = base.preflightDecisionCache;
+        } else {
+            // Decisions made under the previous origin file are dropped.
+            this.originDecisionCache =
+                    base.originDecisionCache == null ? null
+                            : new OriginDecisionCache(
+                                    base.originDecisionCache.capacity(),
+                                    base.originDecisionCache
+                                            .getEvictionPolicy());
+            this.preflightDecisionCache =
+                    base.preflightDecisionCache == null ? null
+                            : new PreflightDecisionCache(
+                                    base.preflightDecisionCache.capacity());
+        }
+        this.originResolver = base.originResolver;
+        this.pathPolicies = pathPolicies;
+        this.hostPolicies = hostPolicies;
+        this.exposedHeadersValue = base.exposedHeadersValue;
+        this.allowedHttpHeadersValue = base.allowedHttpHeadersValue;
+        this.preflightMaxAgeValue = base.preflightMaxAgeValue;
+        this.preflightCacheControlValue = base.preflightCacheControlValue;
+        this.preflightVaryValue = base.preflightVaryValue;
+        this.anyOriginResponseHeaders = base.anyOriginResponseHeaders;
+        this.originResponseHeaders = base.originResponseHeaders;
+    }
+
+    /**
+     * Checks if the Origin is allowed to make a CORS request.
+     * 
+     * @param origin
+     *            The Origin.
+     * @return <code>true</code> if origin is allowed; <code>false</code>
+     *         otherwise.
+     */
+    boolean isOriginAllowed(final String origin) {
+        return isOriginAllowedByConfiguration(origin)
+                || (originResolver != null && resolve(origin));
+    }
+
+    /**
+     * Checks if the Origin is allowed by the configuration, regardless of the
+     * {@link OriginResolver}.
+     */
+    private boolean isOriginAllowedByConfiguration(final String origin) {
+        if (anyOriginAllowed) {
+            return true;
+        }
+
+        // If 'Origin' header matches any of allowed origins, by components
+        // or else exactly, or a wildcard pattern, or a regex rule, then
+        // return true, else return false.
+        return exactOrigins.contains(origin)
+                || (originIndex != null && originIndex.containsOrigin(origin))
+                || (structuredOrigins != null && structuredOrigins
+                        .matches(origin))
+                || (originPatterns != null && originPatterns.matches(origin))
+                || (originRegexes != null && originRegexes.match(origin) >= 0)
+                || (originFile != null && originFile.containsOrigin(origin));
+    }
+
+    /**
+     * Returns a copy of this policy, and of the policies of specific virtual
+     * hosts and paths, with another version of an origin index file. The
+     * policies that use it get empty decision caches of the same capacities;
+     * the others keep theirs.
+     * 
+     * @param previousOriginFile
+     *            The {@link MappedOriginIndex} being replaced.
+     * @param newOriginFile
+     *            The new {@link MappedOriginIndex}.
+     * @return The new policy.
+     */
+    CorsPolicy withOriginFile(final MappedOriginIndex previousOriginFile,
+            final MappedOriginIndex newOriginFile) {
+        Map<CorsPolicy, CorsPolicy> replacements =
+                new HashMap<CorsPolicy, CorsPolicy>();
+        for (CorsPolicy selectedPolicy : getSelectedPolicies()) {
+            if (selectedPolicy.originFile == previousOriginFile) {
+                replacements.put(selectedPolicy, new CorsPolicy(
+                        selectedPolicy, newOriginFile, null, null));
+            }
+        }
+        return new CorsPolicy(this,
+                originFile == previousOriginFile ? newOriginFile : originFile,
+                pathPolicies != null ? pathPolicies.withPolicies(replacements)
+                        : null,
+                hostPolicies != null ? hostPolicies.withPolicies(replacements)
+                        : null);
+    }
+
+    /**
+     * Returns the distinct origin index files of this policy, and of the
+     * policies of specific virtual hosts and paths.
+     * 
+     * @return The {@link MappedOriginIndex}es; empty if there are none.
+     */
+    Set<MappedOriginIndex> getOriginFiles() {
+        Set<MappedOriginIndex> originFiles = new HashSet<MappedOriginIndex>();
+        if (originFile != null) {
+            originFiles.add(originFile);
+        }
+        for (CorsPolicy selectedPolicy : getSelectedPolicies()) {
+            if (selectedPolicy.originFile != null) {
+                originFiles.add(selectedPolicy.originFile);
+            }
+        }
+        return originFiles;
+    }
+
+    /**
+     * Returns a copy of this policy, as the default policy of the virtual
+     * hosts and paths that other policies aren't mapped to.
+     * 
+     * @param newPathPolicies
+     *            The policies of specific paths; <code>null</code> if there
+     *            are none.
+     * @param newHostPolicies
+     *            The policies of specific virtual hosts; <code>null</code> if
+     *            there are none.
+     * @return The new policy.
+     */
+    CorsPolicy withSelectedPolicies(final PathPolicyTrie newPathPolicies,
+            final HostPolicyMap newHostPolicies) {
+        return new CorsPolicy(this, originFile, newPathPolicies,
+                newHostPolicies);
+    }
+
+    /**
+     * Checks if policies of specific virtual hosts or paths are configured,
+     * i.e. if a request may be handled under another policy than this one.
+     * 
+     * @return <code>true</code> if they are; <code>false</code> otherwise.
+     */
+    boolean hasSelectedPolicies() {
+        return pathPolicies != null || hostPolicies != null;
+    }
+
+    /**
+     * Checks if policies of specific paths are configured.
+     * 
+     * @return <code>true</code> if they are; <code>false</code> otherwise.
+     */
+    boolean hasPathPolicies() {
+        return pathPolicies != null;
+    }
+
+    /**
+     * Selects the policy of a virtual host.
+     * 
+     * @param hostName
+     *            The host name of the request; may be <code>null</code>.
+     * @return The {@link CorsPolicy} mapped to the host name, or this one if
+     *         none is.
+     */
+    CorsPolicy forHost(final String hostName) {
+        return hostPolicies != null ? hostPolicies.select(hostName, this)
+                : this;
+    }
+
+    /**
+     * Selects the policy of a request path, once policies of specific paths
+     * are configured.
+     * 
+     * @param path
+     *            The path within the web application.
+     * @param hostPolicy
+     *            The policy of the request's virtual host, that applies to
+     *            the paths no other policy is mapped to.
+     * @return The {@link CorsPolicy} mapped to the path, or the host's one if
+     *         none is; <code>null</code> if the path is excluded from CORS
+     *         processing.
+     */
+    CorsPolicy forPath(final String path, final CorsPolicy hostPolicy) {
+        return pathPolicies.select(path, hostPolicy);
+    }
+
+    /**
+     * Returns the value of 'Access-Control-Allow-Origin' response header for
+     * an allowed origin.
+     * 
+     * @param origin
+     *            The Origin.
+     * @return '*' if any origin is allowed and resource doesn't support
+     *         credentials; the origin otherwise.
+     */
+    String getAllowOriginValue(final String origin) {
+        if (anyOriginAllowed && !supportsCredentials) {
+            // If resource doesn't support credentials and if any origin is
+            // allowed to make CORS request, return header with '*'.
+            return "*";
+        }
+        // If the resource supports credentials, or only specific origins are
+        // allowed, return the value of the Origin header as value.
+        return origin;
+    }
+
+    /**
+     * Computes the {@link OriginDecision} for an origin, under this policy.
+     * 
+     * @param origin
+     *            The origin.
+     * @return The {@link OriginDecision}.
+     */
+    OriginDecision decideOrigin(final String origin) {
+        boolean valid = OriginValidator.isValid(origin);
+        boolean allowed = valid && isOriginAllowedByConfiguration(origin);
+        // The resolver's answers expire, so decisions that depend on them
+        // aren't cacheable.
+        boolean cacheable = allowed || !valid || originResolver == null;
+        if (!cacheable) {
+            allowed = resolve(origin);
+        }
+        return decision(valid, allowed, origin, cacheable);
+    }
+
+    /**
+     * Checks if deciding on an origin would wait for the
+     * {@link OriginResolver}, i.e. the origin is valid, but neither allowed by
+     * the configuration, nor already resolved.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if it would; <code>false</code> otherwise.
+     */
+    boolean needsResolution(final String origin) {
+        return originResolver != null
+                && (originDecisionCache == null || originDecisionCache
+                        .get(origin) == null)
+                && OriginValidator.isValid(origin)
+                && !isOriginAllowedByConfiguration(origin)
+                && originResolver.getCached(origin) == null;
+    }
+
+    /**
+     * Returns the {@link OriginDecision} for a valid origin, given the answer
+     * of the {@link OriginResolver}.
+     * 
+     * @param origin
+     *            The origin.
+     * @param allowed
+     *            Whether the resolver allows it.
+     * @return The {@link OriginDecision}.
+     */
+    OriginDecision decideResolvedOrigin(final String origin,
+            final boolean allowed) {
+        return decision(true, allowed, origin, false);
+    }
+
+    private OriginDecision decision(final boolean valid,
+            final boolean allowed, final String origin,
+            final boolean cacheable) {
+        if (!allowed) {
+            return new OriginDecision(valid, false, null, null, cacheable);
+        }
+        String[] responseHeaders = getResponseHeaders(origin);
+        // The first value is always that of 'Access-Control-Allow-Origin'.
+        return new OriginDecision(valid, true, responseHeaders[1],
+                responseHeaders, cacheable);
+    }
+
+    /**
+     * Returns the response headers of an allowed simple or actual request.
+     * 
+     * @param origin
+     *            The Origin.
+     * @return 'Access-Control-Allow-Origin', and
+     *         'Access-Control-Allow-Credentials' and
+     *         'Access-Control-Expose-Headers' if applicable, as alternating
+     *         names and values, in an array that must not be modified.
+     */
+    String[] getResponseHeaders(final String origin) {
+        if (anyOriginResponseHeaders != null) {
+            return anyOriginResponseHeaders;
+        }
+        // Origins allowed by a pattern, a regex, a rule of several schemes
+        // or ports, the origin file, the index or the resolver, or spelled
+        // other than canonically, have theirs built on demand.
+        String[] responseHeaders = originResponseHeaders.get(origin);
+        return responseHeaders != null ? responseHeaders
+                : buildResponseHeaders(getAllowOriginValue(origin));
+    }
+
+    private String[] buildResponseHeaders(final String allowOriginValue) {
+        // Section 6.1.3 and Section 6.1.4
+        int length = 2;
+        if (supportsCredentials) {
+            length += 2;
+        }
+        if (exposedHeadersValue != null) {
+            length += 2;
+        }
+        String[] responseHeaders = new String[length];
+        int i = 0;
+        responseHeaders[i++] =
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN;
+        responseHeaders[i++] = allowOriginValue;
+        if (supportsCredentials) {
+            responseHeaders[i++] =
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_CREDENTIALS;
+            responseHeaders[i++] = "true";
+        }
+        if (exposedHeadersValue != null) {
+            responseHeaders[i++] =
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_EXPOSE_HEADERS;
+            responseHeaders[i++] = exposedHeadersValue;
+        }
+        return responseHeaders;
+    }
+
+    /**
+     * Checks if the 'Access-Control-Allow-Origin' response header reflects
+     * the request's origin, rather than being '*' for any origin.
+     * 
+     * @return <code>true</code> if it does; <code>false</code> otherwise.
+     */
+    boolean isOriginReflected() {
+        return anyOriginResponseHeaders == null;
+    }
+
+    /**
+     * Asks the {@link OriginResolver} about an origin.
+     */
+    private boolean resolve(final String origin) {
+        // The caching resolver never throws, and applies the failure policy
+        // itself.
+        return originResolver.isOriginAllowed(origin);
+    }
+
+    /**
+     * Releases the resources of this policy, once it's been replaced: its
+     * {@link OriginResolver}, if any, and those of the policies of specific
+     * virtual hosts and paths.
+     */
+    void destroy() {
+        if (originResolver != null) {
+            originResolver.destroy();
+        }
+        for (CorsPolicy selectedPolicy : getSelectedPolicies()) {
+            selectedPolicy.destroy();
+        }
+    }
+
+    /**
+     * Returns the policies of specific virtual hosts and paths.
+     * 
+     * @return The distinct policies; empty if there are none.
+     */
+    Set<CorsPolicy> getSelectedPolicies() {
+        // A policy may be mapped to both hosts and paths.
+        Set<CorsPolicy> selectedPolicies = new HashSet<CorsPolicy>();
+        if (pathPolicies != null) {
+            selectedPolicies.addAll(pathPolicies.getPolicies());
+        }
+        if (hostPolicies != null) {
+            selectedPolicies.addAll(hostPolicies.getPolicies());
+        }
+        return selectedPolicies;
+    }
+
+    /**
+     * Checks if every header field name of an 'Access-Control-Request-Headers'
+     * value is allowed. The value is walked in place: each comma separated
+     * token is trimmed and looked up in the allowed headers by its index
+     * range, without creating substrings or lower-cased copies. Empty tokens
+     * are ignored.
+     * 
+     * @param accessControlRequestHeaders
+     *            Value of 'Access-Control-Request-Headers' request header; may
+     *            be <code>null</code>.
+     * @return <code>true</code> if all headers are allowed; <code>false</code>
+     *         as soon as one isn't.
+     */
+    boolean areRequestHeadersAllowed(final String accessControlRequestHeaders) {
+        if (accessControlRequestHeaders == null) {
+            return true;
+        }
+        final int length = accessControlRequestHeaders.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length
+                    && accessControlRequestHeaders.charAt(i) <= ' ') {
+                i++;
+            }
+            final int start = i;
+            while (i < length && accessControlRequestHeaders.charAt(i) != ',') {
+                i++;
+            }
+            int end = i;
+            while (end > start
+                    && accessControlRequestHeaders.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (end > start
+                    && !allowedHttpHeaders.contains(
+                            accessControlRequestHeaders, start, end)) {
+                return false;
+            }
+            // Skips the ','
+            i++;
+        }
+        return true;
+    }
+
+    boolean isAnyOriginAllowed() {
+        return anyOriginAllowed;
+    }
+
+    Set<String> getAllowedOrigins() {
+        return allowedOrigins;
+    }
+
+    List<String> getAllowedOriginRegexes() {
+        return originRegexes != null ? originRegexes.getRules() : Collections
+                .<String> emptyList();
+    }
+
+    Set<String> getAllowedHttpMethods() {
+        return allowedHttpMethods;
+    }
+
+    HttpMethodRegistry getHttpMethodRegistry() {
+        return httpMethodRegistry;
+    }
+
+    long getAllowedHttpMethodsMask() {
+        return allowedHttpMethodsMask;
+    }
+
+    HeaderNameSet getAllowedHttpHeaders() {
+        return allowedHttpHeaders;
+    }
+
+    Set<String> getExposedHeaders() {
+        return exposedHeaders;
+    }
+
+    boolean isSupportsCredentials() {
+        return supportsCredentials;
+    }
+
+    long getPreflightMaxAge() {
+        return preflightMaxAge;
+    }
+
+    String getAllowedHttpHeadersValue() {
+        return allowedHttpHeadersValue;
+    }
+
+    String getPreflightMaxAgeValue() {
+        return preflightMaxAgeValue;
+    }
+
+    String getPreflightCacheControlValue() {
+        return preflightCacheControlValue;
+    }
+
+    String getPreflightVaryValue() {
+        return preflightVaryValue;
+    }
+
+    boolean isPreflightNoContent() {
+        return preflightNoContent;
+    }
+
+    String getAllowedHttpMethodsValue() {
+        return allowedHttpMethodsValue;
+    }
+
+    boolean isLoggingEnabled() {
+        return loggingEnabled;
+    }
+
+    boolean isDecorateRequest() {
+        return decorateRequest;
+    }
+
+    CachingOriginResolver getOriginResolver() {
+        return originResolver;
+    }
+
+    OriginDecisionCache getOriginDecisionCache() {
+        return originDecisionCache;
+    }
+
+    PreflightDecisionCache getPreflightDecisionCache() {
+        return preflightDecisionCache;
+    }
+
+    private static Set<String> immutableCopy(final Collection<String> values) {
+        return Collections.unmodifiableSet(new HashSet<String>(values));
+    }
+
+    /**
+     * The allowed origins of a policy that indexes them: the indexed origins,
+     * in their canonical form, followed by the others.
+     */
+    private static final class IndexedOriginSet extends AbstractSet<String> {
+        private final CompactOriginIndex index;
+
+        private final Set<String> others;
+
+        IndexedOriginSet(final CompactOriginIndex index,
+                final Set<String> others) {
+            this.index = index;
+            this.others = others;
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return index.contains(o) || others.contains(o);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<String> indexed = index.iterator();
+            final Iterator<String> rest = others.iterator();
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return indexed.hasNext() || rest.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return indexed.hasNext() ? indexed.next() : rest.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return index.size() + others.size();
+        }
+    }
+}
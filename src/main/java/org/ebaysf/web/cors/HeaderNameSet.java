@@ -0,0 +1,224 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * An immutable {@link Set} of HTTP header field names, that are compared
+ * ASCII case in-sensitively, as per RFC7230. Names are stored lower-cased.
+ * </p>
+ * 
+ * <p>
+ * Besides {@link #contains(Object)}, a name can be looked up by a range of
+ * characters of a larger string, e.g. a token of a comma separated header
+ * value, using {@link #contains(CharSequence, int, int)}, or mapped to its
+ * position with {@link #indexOf(CharSequence, int, int)}; no lookup
+ * allocates. Other case in-sensitive names, such as URI schemes and host
+ * names, can be looked up the same way.
+ * </p>
+ */
+final class HeaderNameSet extends AbstractSet<String> {
+    /**
+     * An empty {@link HeaderNameSet}.
+     */
+    static final HeaderNameSet EMPTY = new HeaderNameSet(
+            new LinkedHashSet<String>());
+
+    /**
+     * The lower-cased names, in insertion order.
+     */
+    private final String[] names;
+
+    /**
+     * Open-addressing hash table of lower-cased names; its length is a power
+     * of two, and at least twice the number of names.
+     */
+    private final String[] table;
+
+    /**
+     * Index in {@link #names} of each name in {@link #table}.
+     */
+    private final int[] positions;
+
+    private final int mask;
+
+    /**
+     * Creates a {@link HeaderNameSet} of given names. Names that are equal,
+     * ignoring ASCII case, are kept once.
+     * 
+     * @param headerNames
+     *            The header field names.
+     */
+    HeaderNameSet(final Collection<String> headerNames) {
+        Set<String> lowerCaseNames = new LinkedHashSet<String>();
+        for (String headerName : headerNames) {
+            if (headerName != null) {
+                lowerCaseNames.add(toLowerCase(headerName));
+            }
+        }
+        this.names = lowerCaseNames.toArray(new String[lowerCaseNames.size()]);
+
+        int capacity = 2;
+        while (capacity < 2 * names.length) {
+            capacity <<= 1;
+        }
+        this.table = new String[capacity];
+        this.positions = new int[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            int index = hash(name, 0, name.length()) & mask;
+            while (table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table[index] = name;
+            positions[index] = i;
+        }
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String name = (String) o;
+        return contains(name, 0, name.length());
+    }
+
+    /**
+     * Checks if the header field name, given as the characters of a
+     * {@link CharSequence} from <code>start</code> (inclusive) to
+     * <code>end</code> (exclusive), is in this set. ASCII case in-sensitive.
+     * 
+     * @param chars
+     *            The {@link CharSequence} containing the name.
+     * @param start
+     *            Index of the first character of the name.
+     * @param end
+     *            Index after the last character of the name.
+     * @return <code>true</code> if it's in this set; <code>false</code>
+     *         otherwise.
+     */
+    boolean contains(final CharSequence chars, final int start, final int end) {
+        return indexOf(chars, start, end) >= 0;
+    }
+
+    /**
+     * Returns the position, in iteration order, of a name given as the
+     * characters of a {@link CharSequence} from <code>start</code> (inclusive)
+     * to <code>end</code> (exclusive). ASCII case in-sensitive.
+     * 
+     * @param chars
+     *            The {@link CharSequence} containing the name.
+     * @param start
+     *            Index of the first character of the name.
+     * @param end
+     *            Index after the last character of the name.
+     * @return The position; -1 if it's not in this set.
+     */
+    int indexOf(final CharSequence chars, final int start, final int end) {
+        int index = hash(chars, start, end) & mask;
+        String name;
+        while ((name = table[index]) != null) {
+            if (regionMatches(name, chars, start, end)) {
+                return positions[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < names.length;
+            }
+
+            @Override
+            public String next() {
+                if (next >= names.length) {
+                    throw new NoSuchElementException();
+                }
+                return names[next++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Lower-cases ASCII letters only, independent of the default locale.
+     */
+    static String toLowerCase(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = name.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    chars[j] = toLowerCase(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return name;
+    }
+
+    private static char toLowerCase(final char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int hash(final CharSequence chars, final int start,
+            final int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toLowerCase(chars.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionMatches(final String lowerCaseName,
+            final CharSequence chars, final int start, final int end) {
+        if (lowerCaseName.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (lowerCaseName.charAt(i - start) != toLowerCase(chars
+                    .charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
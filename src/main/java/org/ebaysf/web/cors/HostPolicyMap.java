@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Selects the {@link CorsPolicy} of a request by its host name, among
+ * policies mapped to the virtual hosts that serve the web application. Host
+ * names are compared ASCII case in-sensitively, and looked up in a
+ * {@link HeaderNameSet}, without allocating. Instances are immutable.
+ * </p>
+ */
+final class HostPolicyMap {
+    private final HeaderNameSet hostNames;
+
+    /**
+     * The policy of each host name, by its position in {@link #hostNames}.
+     */
+    private final CorsPolicy[] policies;
+
+    /**
+     * @param policiesByHost
+     *            The policy of each host name; names must be distinct,
+     *            ignoring ASCII case.
+     * @throws IllegalArgumentException
+     *             If two names are equal, ignoring ASCII case.
+     */
+    HostPolicyMap(final Map<String, CorsPolicy> policiesByHost) {
+        if (policiesByHost == null) {
+            throw new IllegalArgumentException("Map object is null");
+        }
+        List<String> names = new ArrayList<String>(policiesByHost.keySet());
+        this.hostNames = new HeaderNameSet(names);
+        if (hostNames.size() != names.size()) {
+            throw new IllegalArgumentException("Duplicate host name: "
+                    + names);
+        }
+        this.policies = new CorsPolicy[names.size()];
+        for (String name : names) {
+            policies[hostNames.indexOf(name, 0, name.length())] =
+                    policiesByHost.get(name);
+        }
+    }
+
+    private HostPolicyMap(final HeaderNameSet hostNames,
+            final CorsPolicy[] policies) {
+        this.hostNames = hostNames;
+        this.policies = policies;
+    }
+
+    /**
+     * Returns a copy of this map, with some of its policies replaced.
+     * 
+     * @param replacements
+     *            The new policy of each policy to replace.
+     * @return The new {@link HostPolicyMap}.
+     */
+    HostPolicyMap withPolicies(
+            final Map<CorsPolicy, CorsPolicy> replacements) {
+        CorsPolicy[] newPolicies = policies.clone();
+        for (int i = 0; i < newPolicies.length; i++) {
+            CorsPolicy replacement = replacements.get(newPolicies[i]);
+            if (replacement != null) {
+                newPolicies[i] = replacement;
+            }
+        }
+        return new HostPolicyMap(hostNames, newPolicies);
+    }
+
+    /**
+     * Selects the policy of a host.
+     * 
+     * @param hostName
+     *            The host name of the request; may be <code>null</code>.
+     * @param defaultPolicy
+     *            The policy of the hosts that aren't mapped.
+     * @return The {@link CorsPolicy}.
+     */
+    CorsPolicy select(final String hostName, final CorsPolicy defaultPolicy) {
+        if (hostName == null) {
+            return defaultPolicy;
+        }
+        int position = hostNames.indexOf(hostName, 0, hostName.length());
+        return position >= 0 ? policies[position] : defaultPolicy;
+    }
+
+    /**
+     * Returns the policies mapped to host names; a policy mapped to several
+     * names is listed once for each.
+     * 
+     * @return The policies.
+     */
+    Collection<CorsPolicy> getPolicies() {
+        List<CorsPolicy> list = new ArrayList<CorsPolicy>(policies.length);
+        for (CorsPolicy policy : policies) {
+            list.add(policy);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>
+ * Maps HTTP methods to small integer ids, so that a set of methods can be
+ * represented as a bitmask, and a method be checked against it with a single
+ * bit test. Method names are case sensitive.
+ * </p>
+ * 
+ * <p>
+ * The standard methods of RFC7231 and PATCH (RFC5789) have fixed ids. Any
+ * other method, e.g. one from WebDAV, gets an id only if it's registered as an
+ * extension method; every other method is {@link #UNKNOWN}. Instances are
+ * immutable.
+ * </p>
+ */
+final class HttpMethodRegistry {
+    /**
+     * Id of a method that's neither standard, nor a registered extension.
+     */
+    static final int UNKNOWN = -1;
+
+    static final int OPTIONS = 0;
+    static final int GET = 1;
+    static final int HEAD = 2;
+    static final int POST = 3;
+    static final int PUT = 4;
+    static final int DELETE = 5;
+    static final int TRACE = 6;
+    static final int CONNECT = 7;
+    static final int PATCH = 8;
+
+    /**
+     * Maximum number of methods, standard and extension, a registry can hold,
+     * so that every bitmask fits in a <code>long</code>.
+     */
+    static final int MAX_METHODS = 64;
+
+    private static final String[] STANDARD_METHODS = { "OPTIONS", "GET",
+            "HEAD", "POST", "PUT", "DELETE", "TRACE", "CONNECT", "PATCH" };
+
+    /**
+     * A registry of standard methods only.
+     */
+    static final HttpMethodRegistry STANDARD = new HttpMethodRegistry(
+            new ArrayList<String>());
+
+    /**
+     * Method names indexed by id.
+     */
+    private final String[] names;
+
+    /**
+     * Creates a registry of standard methods, and the given extension
+     * methods. Standard methods among them are ignored.
+     * 
+     * @param extensionMethods
+     *            The extension method names.
+     * @throws IllegalArgumentException
+     *             If there are more than {@link #MAX_METHODS} methods in all.
+     */
+    HttpMethodRegistry(final Collection<String> extensionMethods) {
+        List<String> allMethods = new ArrayList<String>();
+        for (String method : STANDARD_METHODS) {
+            allMethods.add(method);
+        }
+        for (String method : extensionMethods) {
+            if (method != null && !method.isEmpty()
+                    && !allMethods.contains(method)) {
+                allMethods.add(method);
+            }
+        }
+        if (allMethods.size() > MAX_METHODS) {
+            throw new IllegalArgumentException("More than " + MAX_METHODS
+                    + " HTTP methods");
+        }
+        this.names = allMethods.toArray(new String[allMethods.size()]);
+    }
+
+    /**
+     * Returns the id of a method.
+     * 
+     * @param method
+     *            The method; may be <code>null</code>.
+     * @return The id; {@link #UNKNOWN} if it's not registered.
+     */
+    int idOf(final String method) {
+        if (method == null) {
+            return UNKNOWN;
+        }
+        int id = standardIdOf(method);
+        if (id != UNKNOWN) {
+            return id;
+        }
+        for (int i = STANDARD_METHODS.length; i < names.length; i++) {
+            if (names[i].equals(method)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns the bitmask of given methods. Methods that aren't registered
+     * are ignored.
+     * 
+     * @param methods
+     *            The method names.
+     * @return The bitmask.
+     */
+    long maskOf(final Collection<String> methods) {
+        long mask = 0L;
+        for (String method : methods) {
+            int id = idOf(method);
+            if (id != UNKNOWN) {
+                mask |= bit(id);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Checks if a method id is in a bitmask.
+     * 
+     * @param mask
+     *            The bitmask.
+     * @param id
+     *            The method id; may be {@link #UNKNOWN}.
+     * @return <code>true</code> if it is; <code>false</code> otherwise.
+     */
+    static boolean contains(final long mask, final int id) {
+        return id != UNKNOWN && (mask & bit(id)) != 0L;
+    }
+
+    static long bit(final int id) {
+        return 1L << id;
+    }
+
+    /**
+     * Resolves a standard method by its length and first character, followed
+     * by a single comparison.
+     */
+    private static int standardIdOf(final String method) {
+        String candidate;
+        int id;
+        switch (method.length()) {
+        case 3:
+            if (method.charAt(0) == 'G') {
+                candidate = "GET";
+                id = GET;
+            } else {
+                candidate = "PUT";
+                id = PUT;
+            }
+            break;
+        case 4:
+            if (method.charAt(0) == 'H') {
+                candidate = "HEAD";
+                id = HEAD;
+            } else {
+                candidate = "POST";
+                id = POST;
+            }
+            break;
+        case 5:
+            if (method.charAt(0) == 'T') {
+                candidate = "TRACE";
+                id = TRACE;
+            } else {
+                candidate = "PATCH";
+                id = PATCH;
+            }
+            break;
+        case 6:
+            candidate = "DELETE";
+            id = DELETE;
+            break;
+        case 7:
+            if (method.charAt(0) == 'O') {
+                candidate = "OPTIONS";
+                id = OPTIONS;
+            } else {
+                candidate = "CONNECT";
+                id = CONNECT;
+            }
+            break;
+        default:
+            return UNKNOWN;
+        }
+        return candidate.equals(method) ? id : UNKNOWN;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A {@link CompactOriginIndex} read from a file, as written by
+ * {@link OriginIndexCompiler}, and memory-mapped rather than loaded: lookups
+ * read the mapped pages directly, so the index lives off the Java heap,
+ * whatever the number of origins.
+ * </p>
+ * 
+ * <p>
+ * The layout is big-endian: a header of the magic number, the version, the
+ * number of origins, the hash seed and the number of key bytes; then the
+ * bucket displacements, the slot fingerprints padded to 4 bytes, the slot
+ * offsets and the packed keys. Instances are immutable; the file must be
+ * replaced, e.g. renamed over, rather than rewritten in place while mapped.
+ * </p>
+ */
+final class MappedOriginIndex {
+    static final int MAGIC = 0x434F5253;
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 24;
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    private final long seed;
+
+    private final int fingerprintsStart;
+
+    private final int offsetsStart;
+
+    private final int keysStart;
+
+    private MappedOriginIndex(final File file, final long lastModified,
+            final long length, final ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_LENGTH
+                || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an origin index: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported origin index version "
+                    + buffer.getInt(4) + ": " + file);
+        }
+        this.size = buffer.getInt(8);
+        this.seed = buffer.getLong(12);
+        final long keysLength = buffer.getInt(20);
+        final long fingerprints = HEADER_LENGTH + 4L * size;
+        final long offsets = fingerprints + 2L * (size + (size & 1));
+        final long keys = offsets + 4L * (size + 1);
+        if (size < 0 || keysLength < 0
+                || keys + keysLength != buffer.capacity()) {
+            throw new IOException("Truncated origin index: " + file);
+        }
+        this.fingerprintsStart = (int) fingerprints;
+        this.offsetsStart = (int) offsets;
+        this.keysStart = (int) keys;
+
+        // Checked once here, so that lookups never read out of bounds.
+        for (int bucket = 0; bucket < size; bucket++) {
+            if (buffer.getInt(HEADER_LENGTH + 4 * bucket) < -size) {
+                throw new IOException("Corrupt origin index: " + file);
+            }
+        }
+        int previous = 0;
+        for (int slot = 0; slot <= size; slot++) {
+            int offset = buffer.getInt(offsetsStart + 4 * slot);
+            if (offset < previous || (slot == 0 && offset != 0)) {
+                throw new IOException("Corrupt origin index: " + file);
+            }
+            previous = offset;
+        }
+        if (previous != keysLength) {
+            throw new IOException("Corrupt origin index: " + file);
+        }
+    }
+
+    /**
+     * Maps an origin index file.
+     * 
+     * @param file
+     *            The file.
+     * @return The {@link MappedOriginIndex}.
+     * @throws IOException
+     *             If the file can't be read, or isn't a valid index.
+     */
+    static MappedOriginIndex open(final File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("File object is null");
+        }
+        // Stamped before mapping, so that a change made meanwhile is seen
+        // by the next check.
+        final long lastModified = file.lastModified();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Origin index too large: " + file);
+            }
+            // The mapping stays valid once the channel is closed.
+            return new MappedOriginIndex(file, lastModified, length,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Checks if an origin is allowed.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if it is; <code>false</code> otherwise.
+     */
+    boolean containsOrigin(final String origin) {
+        if (size == 0) {
+            return false;
+        }
+        final int end = CompactOriginIndex.canonicalEnd(origin);
+        if (end < 0) {
+            String canonical = StructuredOriginMatcher.canonicalize(origin);
+            return canonical != null && find(canonical, canonical.length());
+        }
+        return find(origin, end);
+    }
+
+    /**
+     * Checks if the file has been modified since it was mapped.
+     * 
+     * @return <code>true</code> if it has; <code>false</code> otherwise.
+     */
+    boolean isStale() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private boolean find(final String origin, final int end) {
+        final long h = CompactOriginIndex.hash(origin, end, seed);
+        final int bucket = CompactOriginIndex.bucket(h, size);
+        final int slot =
+                CompactOriginIndex.slot(h, buffer.getInt(HEADER_LENGTH + 4
+                        * bucket), size);
+        if (buffer.getShort(fingerprintsStart + 2 * slot) != (short) h) {
+            return false;
+        }
+        final int offset = buffer.getInt(offsetsStart + 4 * slot);
+        if (buffer.getInt(offsetsStart + 4 * (slot + 1)) - offset != end) {
+            return false;
+        }
+        final int start = keysStart + offset;
+        for (int i = 0; i < end; i++) {
+            if (buffer.get(start + i) != CompactOriginIndex
+                    .toLowerCase(origin.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+/**
+ * The precomputed verdict for an 'Origin' request header value, under the
+ * configuration it was computed with. Immutable.
+ */
+final class OriginDecision {
+    /**
+     * Determines if the origin is syntactically valid.
+     */
+    private final boolean valid;
+
+    /**
+     * Determines if the origin is allowed to make a CORS request.
+     */
+    private final boolean allowed;
+
+    /**
+     * Value of 'Access-Control-Allow-Origin' response header to emit;
+     * <code>null</code> if origin isn't allowed.
+     */
+    private final String allowOriginValue;
+
+    /**
+     * The response headers of a simple or actual request from the origin, as
+     * alternating names and values; <code>null</code> if origin isn't allowed,
+     * or they aren't precomputed.
+     */
+    private final String[] responseHeaders;
+
+    /**
+     * Determines if the decision may be cached for as long as the
+     * configuration, i.e. it doesn't depend on an {@link OriginResolver}.
+     */
+    private final boolean cacheable;
+
+    OriginDecision(final boolean valid, final boolean allowed,
+            final String allowOriginValue) {
+        this(valid, allowed, allowOriginValue, null, true);
+    }
+
+    OriginDecision(final boolean valid, final boolean allowed,
+            final String allowOriginValue, final String[] responseHeaders,
+            final boolean cacheable) {
+        this.valid = valid;
+        this.allowed = allowed;
+        this.allowOriginValue = allowOriginValue;
+        this.responseHeaders = responseHeaders;
+        this.cacheable = cacheable;
+    }
+
+    boolean isValid() {
+        return valid;
+    }
+
+    boolean isAllowed() {
+        return allowed;
+    }
+
+    String getAllowOriginValue() {
+        return allowOriginValue;
+    }
+
+    /**
+     * @return The response headers, as alternating names and values, that
+     *         must not be modified; <code>null</code> if not precomputed.
+     */
+    String[] getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    boolean isCacheable() {
+        return cacheable;
+    }
+}
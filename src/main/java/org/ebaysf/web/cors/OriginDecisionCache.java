@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A bounded, lock-free cache from 'Origin' request header value to its
+ * {@link OriginDecision}, backed by a {@link SetAssociativeCache}.
+ * </p>
+ */
+final class OriginDecisionCache {
+    private final SetAssociativeCache<OriginDecision> table;
+
+    /**
+     * @param capacity
+     *            Maximum number of cached origins; rounded up to a power of
+     *            two, no less than {@link SetAssociativeCache#WAYS}.
+     * @param evictionPolicy
+     *            The {@link SetAssociativeCache.EvictionPolicy}.
+     */
+    OriginDecisionCache(final int capacity,
+            final SetAssociativeCache.EvictionPolicy evictionPolicy) {
+        this.table = new SetAssociativeCache<OriginDecision>(capacity,
+                evictionPolicy);
+    }
+
+    /**
+     * Returns the cached decision for an origin.
+     * 
+     * @param origin
+     *            The origin.
+     * @return The {@link OriginDecision}; <code>null</code> if not cached.
+     */
+    OriginDecision get(final String origin) {
+        return table.get(origin, null, null);
+    }
+
+    /**
+     * Caches the decision for an origin, evicting another origin of the same
+     * bucket if needed.
+     * 
+     * @param origin
+     *            The origin.
+     * @param decision
+     *            The {@link OriginDecision}.
+     */
+    void put(final String origin, final OriginDecision decision) {
+        table.put(origin, null, null, decision);
+    }
+
+    /**
+     * Discards all the cached decisions.
+     */
+    void clear() {
+        table.clear();
+    }
+
+    /**
+     * Returns the maximum number of cached origins.
+     * 
+     * @return The capacity.
+     */
+    int capacity() {
+        return table.capacity();
+    }
+
+    /**
+     * Returns the number of cached origins. Not atomic with respect to
+     * concurrent updates.
+     * 
+     * @return The size.
+     */
+    int size() {
+        return table.size();
+    }
+
+    /**
+     * Estimates the heap used by the response headers of the cached
+     * decisions, with compressed references: each distinct array, and each
+     * distinct header name and value string they hold, counted once however
+     * many decisions share it. Not atomic with respect to concurrent updates.
+     * 
+     * @return The number of bytes.
+     */
+    long responseHeadersBytes() {
+        Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+        long bytes = 0;
+        for (OriginDecision decision : table.values()) {
+            String[] responseHeaders = decision.getResponseHeaders();
+            if (responseHeaders == null
+                    || seen.put(responseHeaders, Boolean.TRUE) != null) {
+                continue;
+            }
+            bytes += arrayBytes(4, responseHeaders.length);
+            for (String value : responseHeaders) {
+                if (seen.put(value, Boolean.TRUE) == null) {
+                    bytes += stringBytes(value);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    SetAssociativeCache.EvictionPolicy getEvictionPolicy() {
+        return table.getEvictionPolicy();
+    }
+
+    /**
+     * Size of an array: a 16 bytes header and its elements, aligned to 8
+     * bytes.
+     */
+    private static long arrayBytes(final int elementBytes, final int length) {
+        return (16 + (long) elementBytes * length + 7) & ~7L;
+    }
+
+    /**
+     * Size of a string: a 24 bytes object, and its array of two bytes per
+     * char.
+     */
+    private static long stringBytes(final String value) {
+        return 24 + arrayBytes(2, value.length());
+    }
+}
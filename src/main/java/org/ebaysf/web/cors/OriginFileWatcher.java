@@ -0,0 +1,160 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+
+/**
+ * <p>
+ * Polls the modification time and length of an origin index file, from a
+ * daemon thread, and has the {@link CORSFilter} swap to a new
+ * {@link MappedOriginIndex} when the file changes. Requests keep using the
+ * previous index until the new one is mapped and validated; an invalid file is
+ * reported once, and the previous index kept.
+ * </p>
+ */
+final class OriginFileWatcher {
+    private final CORSFilter filter;
+
+    private final ServletContext servletContext;
+
+    private final long intervalMillis;
+
+    private final Thread pollThread;
+
+    private volatile boolean running;
+
+    /**
+     * The index the filter currently uses; only accessed by the poll thread,
+     * once started.
+     */
+    private MappedOriginIndex current;
+
+    /**
+     * Modification time of the last file that failed to map; 0 if none.
+     */
+    private long failedLastModified;
+
+    /**
+     * @param filter
+     *            The filter to reload.
+     * @param initial
+     *            The index the filter uses.
+     * @param intervalMillis
+     *            Time between two checks, in milliseconds.
+     * @param servletContext
+     *            The {@link ServletContext} to report failures to; may be
+     *            <code>null</code>.
+     */
+    OriginFileWatcher(final CORSFilter filter,
+            final MappedOriginIndex initial, final long intervalMillis,
+            final ServletContext servletContext) {
+        if (filter == null) {
+            throw new IllegalArgumentException("CORSFilter object is null");
+        }
+        if (initial == null) {
+            throw new IllegalArgumentException(
+                    "MappedOriginIndex object is null");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.filter = filter;
+        this.current = initial;
+        this.intervalMillis = intervalMillis;
+        this.servletContext = servletContext;
+        this.pollThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pollLoop();
+            }
+        }, "CORSFilter-origin-file-watcher");
+        this.pollThread.setDaemon(true);
+    }
+
+    /**
+     * Starts the poll thread.
+     */
+    void start() {
+        running = true;
+        pollThread.start();
+    }
+
+    /**
+     * Has the poll thread stop, without waiting for it; a reload it's making
+     * may still complete.
+     */
+    void cancel() {
+        running = false;
+    }
+
+    /**
+     * Stops the poll thread, and waits for it to end. Mustn't be called while
+     * holding a lock a reload needs, as the thread can't be interrupted while
+     * it waits for it.
+     */
+    void stop() {
+        running = false;
+        pollThread.interrupt();
+        try {
+            pollThread.join(intervalMillis + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pollLoop() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                // Stopped.
+                continue;
+            }
+            check();
+        }
+    }
+
+    /**
+     * Swaps to the file's new version, if it changed.
+     */
+    void check() {
+        if (!current.isStale()) {
+            return;
+        }
+        final long lastModified = current.getFile().lastModified();
+        if (lastModified == failedLastModified) {
+            return;
+        }
+        MappedOriginIndex next;
+        try {
+            next = MappedOriginIndex.open(current.getFile());
+        } catch (IOException e) {
+            failedLastModified = lastModified;
+            if (servletContext != null) {
+                servletContext.log("CORSFilter: Unable to reload "
+                        + current.getFile() + "; keeping the previous"
+                        + " allowed origins", e);
+            }
+            return;
+        }
+        failedLastModified = 0L;
+        filter.swapOriginFile(current, next);
+        current = next;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>
+ * Compiles a list of allowed origins into an index file, for the
+ * <code>cors.allowed.origins.file</code> init param of {@link CORSFilter}.
+ * Each origin must name a single scheme and port, e.g.
+ * <code>https://www.example.com</code>.
+ * </p>
+ * 
+ * <p>
+ * From the command line, it reads one origin per line; blank lines and lines
+ * starting with '#' are ignored:
+ * </p>
+ * 
+ * <pre>
+ * java -cp cors-filter.jar org.ebaysf.web.cors.OriginIndexCompiler \
+ *     origins.txt origins.idx
+ * </pre>
+ */
+public final class OriginIndexCompiler {
+    private OriginIndexCompiler() {
+    }
+
+    /**
+     * Compiles origins into an index file. The index is written next to the
+     * file first, then renamed over it, so a filter watching the file never
+     * maps a partially written index.
+     * 
+     * @param origins
+     *            The allowed origins.
+     * @param file
+     *            The index file.
+     * @throws IOException
+     *             If the file can't be written.
+     * @throws IllegalArgumentException
+     *             If an origin doesn't name a single scheme and port.
+     */
+    public static void compile(final Collection<String> origins,
+            final File file) throws IOException {
+        if (origins == null) {
+            throw new IllegalArgumentException("Collection object is null");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("File object is null");
+        }
+        CompactOriginIndex index = new CompactOriginIndex(origins);
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary =
+                File.createTempFile(file.getName(), ".tmp", directory);
+        boolean renamed = false;
+        try {
+            DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(temporary)));
+            try {
+                index.writeTo(out);
+            } finally {
+                out.close();
+            }
+            renamed = temporary.renameTo(file);
+            if (!renamed && file.delete()) {
+                // Platforms that don't rename over an existing file.
+                renamed = temporary.renameTo(file);
+            }
+            if (!renamed) {
+                throw new IOException("Unable to rename " + temporary
+                        + " to " + file);
+            }
+        } finally {
+            if (!renamed) {
+                temporary.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads allowed origins, one per line.
+     * 
+     * @param file
+     *            The text file, in UTF-8.
+     * @return The origins.
+     * @throws IOException
+     *             If the file can't be read.
+     */
+    static List<String> readOrigins(final File file) throws IOException {
+        List<String> origins = new ArrayList<String>();
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(
+                        file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    origins.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return origins;
+    }
+
+    /**
+     * Compiles a text file of origins into an index file.
+     * 
+     * @param args
+     *            The text file, and the index file.
+     * @throws IOException
+     *             If a file can't be read or written.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java "
+                    + OriginIndexCompiler.class.getName()
+                    + " <origins.txt> <index file>");
+            System.exit(1);
+        }
+        List<String> origins = readOrigins(new File(args[0]));
+        compile(origins, new File(args[1]));
+        System.out.println("Compiled " + origins.size() + " origins into "
+                + args[1]);
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ * Matches origins against wildcard subdomain patterns, such as
+ * <code>https://*.example.com</code> or
+ * <code>https://*.example.com:8443</code>.
+ * A pattern matches an origin of the same scheme and port, whose host is a
+ * subdomain, at any depth, of the pattern's domain; the domain itself isn't
+ * matched. Schemes and hosts are compared ASCII case in-sensitively, and a
+ * missing port is the default port of the scheme.
+ * </p>
+ * 
+ * <p>
+ * Patterns are compiled into a trie keyed on the labels of their domain, from
+ * the top-level label down. An origin's host is walked label by label from its
+ * end, in place, so matching costs time proportional to the length of the
+ * origin, regardless of the number of patterns, and doesn't allocate.
+ * Instances are immutable once constructed.
+ * </p>
+ */
+final class OriginPatternTrie {
+    private static final String SCHEME_SEPARATOR = "://";
+
+    private static final String WILDCARD_LABEL = "*.";
+
+    private static final int NO_PORT = StructuredOriginMatcher.NO_PORT;
+
+    private final Node root = new Node();
+
+    private final int size;
+
+    /**
+     * Compiles the given patterns.
+     * 
+     * @param patterns
+     *            The wildcard origin patterns.
+     * @throws IllegalArgumentException
+     *             If a pattern is malformed.
+     */
+    OriginPatternTrie(final Collection<String> patterns) {
+        int count = 0;
+        for (String pattern : patterns) {
+            add(pattern);
+            count++;
+        }
+        this.size = count;
+    }
+
+    /**
+     * Checks if an allowed origin, as configured, is a wildcard pattern
+     * rather than an origin, i.e. its host starts with <code>*.</code>.
+     * 
+     * @param origin
+     *            The configured origin.
+     * @return <code>true</code> if it's a pattern; <code>false</code>
+     *         otherwise.
+     */
+    static boolean isPattern(final String origin) {
+        int i = origin.indexOf(SCHEME_SEPARATOR);
+        return i > 0
+                && origin.startsWith(WILDCARD_LABEL,
+                        i + SCHEME_SEPARATOR.length());
+    }
+
+    /**
+     * Checks if an origin matches any pattern.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if it does; <code>false</code> otherwise.
+     */
+    boolean matches(final String origin) {
+        final int schemeEnd = origin.indexOf(SCHEME_SEPARATOR);
+        if (schemeEnd <= 0) {
+            return false;
+        }
+        final int hostStart = schemeEnd + SCHEME_SEPARATOR.length();
+        final int length = origin.length();
+        int hostEnd = hostStart;
+        char c;
+        char previous = '.';
+        while (hostEnd < length && (c = origin.charAt(hostEnd)) != ':') {
+            if (c == '.' ? previous == '.' : !isLabelChar(c)) {
+                // Not a domain name, e.g. an IP-literal, a '*' that isn't
+                // meant as a wildcard in an origin, or an empty label.
+                return false;
+            }
+            previous = c;
+            hostEnd++;
+        }
+        if (previous == '.') {
+            // An empty host, or an empty last label.
+            return false;
+        }
+        int port = parsePort(origin, hostEnd, length);
+        if (port == Integer.MIN_VALUE) {
+            return false;
+        }
+        if (port == NO_PORT) {
+            port = StructuredOriginMatcher.defaultPort(origin, 0, schemeEnd);
+        }
+
+        Node node = root;
+        int end = hostEnd;
+        while (true) {
+            int dot = end - 1;
+            while (dot >= hostStart && origin.charAt(dot) != '.') {
+                dot--;
+            }
+            node = node.child(origin, dot + 1, end);
+            if (node == null || dot < hostStart) {
+                // No pattern's domain, or no label left for the wildcard.
+                return false;
+            }
+            if (dot > hostStart && node.matches(origin, schemeEnd, port)) {
+                return true;
+            }
+            end = dot;
+        }
+    }
+
+    /**
+     * Returns the number of patterns.
+     * 
+     * @return The size.
+     */
+    int size() {
+        return size;
+    }
+
+    private void add(final String pattern) {
+        if (pattern == null || !isPattern(pattern)) {
+            throw new IllegalArgumentException("Not an origin pattern: "
+                    + pattern);
+        }
+        final int schemeEnd = pattern.indexOf(SCHEME_SEPARATOR);
+        for (int i = 0; i < schemeEnd; i++) {
+            if (!isSchemeChar(pattern.charAt(i))) {
+                throw new IllegalArgumentException("Invalid scheme: "
+                        + pattern);
+            }
+        }
+        final int domainStart =
+                schemeEnd + SCHEME_SEPARATOR.length() + WILDCARD_LABEL.length();
+        final int length = pattern.length();
+        int domainEnd = domainStart;
+        while (domainEnd < length && pattern.charAt(domainEnd) != ':') {
+            domainEnd++;
+        }
+        int port = parsePort(pattern, domainEnd, length);
+        if (port == Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("Invalid port: " + pattern);
+        }
+        if (port == NO_PORT) {
+            port = StructuredOriginMatcher.defaultPort(pattern, 0, schemeEnd);
+        }
+
+        Node node = root;
+        int end = domainEnd;
+        while (end > domainStart - 1) {
+            int dot = end - 1;
+            while (dot >= domainStart && pattern.charAt(dot) != '.') {
+                dot--;
+            }
+            if (dot + 1 == end) {
+                throw new IllegalArgumentException("Empty label: " + pattern);
+            }
+            for (int i = dot + 1; i < end; i++) {
+                if (!isLabelChar(pattern.charAt(i))) {
+                    throw new IllegalArgumentException("Invalid host: "
+                            + pattern);
+                }
+            }
+            node = node.addChild(HeaderNameSet.toLowerCase(pattern.substring(
+                    dot + 1, end)));
+            end = dot;
+        }
+        node.addEntry(HeaderNameSet.toLowerCase(pattern
+                .substring(0, schemeEnd)), port);
+    }
+
+    /**
+     * Parses the optional port that follows a host.
+     * 
+     * @return The port; {@link #NO_PORT} if there's none;
+     *         {@link Integer#MIN_VALUE} if it's malformed.
+     */
+    private static int parsePort(final String value, final int colon,
+            final int length) {
+        if (colon == length) {
+            return NO_PORT;
+        }
+        if (colon + 1 == length || length - colon - 1 > 5) {
+            return Integer.MIN_VALUE;
+        }
+        int port = 0;
+        for (int i = colon + 1; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return Integer.MIN_VALUE;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port;
+    }
+
+    private static boolean isSchemeChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.';
+    }
+
+    private static boolean isLabelChar(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '-' || c == '_';
+    }
+
+    private static char toLowerCase(final char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int hash(final String chars, final int start,
+            final int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toLowerCase(chars.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionMatches(final String lowerCaseLabel,
+            final String chars, final int start, final int end) {
+        return lowerCaseLabel.length() == end - start
+                && chars.regionMatches(true, start, lowerCaseLabel, 0,
+                        end - start);
+    }
+
+    /**
+     * A domain: its child labels in an open-addressing table, and the
+     * (scheme, port) of the patterns for its subdomains.
+     */
+    private static final class Node {
+        private String[] labels = new String[2];
+
+        private Node[] children = new Node[2];
+
+        private int childCount;
+
+        private String[] schemes = new String[0];
+
+        private int[] ports = new int[0];
+
+        Node child(final String chars, final int start, final int end) {
+            final int mask = labels.length - 1;
+            int index = hash(chars, start, end) & mask;
+            String label;
+            while ((label = labels[index]) != null) {
+                if (regionMatches(label, chars, start, end)) {
+                    return children[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        Node addChild(final String lowerCaseLabel) {
+            Node child =
+                    child(lowerCaseLabel, 0, lowerCaseLabel.length());
+            if (child != null) {
+                return child;
+            }
+            if (2 * (childCount + 1) > labels.length) {
+                String[] oldLabels = labels;
+                Node[] oldChildren = children;
+                labels = new String[oldLabels.length << 1];
+                children = new Node[oldLabels.length << 1];
+                for (int i = 0; i < oldLabels.length; i++) {
+                    if (oldLabels[i] != null) {
+                        put(oldLabels[i], oldChildren[i]);
+                    }
+                }
+            }
+            child = new Node();
+            put(lowerCaseLabel, child);
+            childCount++;
+            return child;
+        }
+
+        private void put(final String lowerCaseLabel, final Node child) {
+            final int mask = labels.length - 1;
+            int index = hash(lowerCaseLabel, 0, lowerCaseLabel.length()) & mask;
+            while (labels[index] != null) {
+                index = (index + 1) & mask;
+            }
+            labels[index] = lowerCaseLabel;
+            children[index] = child;
+        }
+
+        void addEntry(final String lowerCaseScheme, final int port) {
+            final int count = schemes.length;
+            String[] newSchemes = new String[count + 1];
+            int[] newPorts = new int[count + 1];
+            System.arraycopy(schemes, 0, newSchemes, 0, count);
+            System.arraycopy(ports, 0, newPorts, 0, count);
+            newSchemes[count] = lowerCaseScheme;
+            newPorts[count] = port;
+            schemes = newSchemes;
+            ports = newPorts;
+        }
+
+        /**
+         * Checks the scheme and port of an origin, against the patterns of
+         * this domain.
+         */
+        boolean matches(final String origin, final int schemeEnd,
+                final int port) {
+            for (int i = 0; i < schemes.length; i++) {
+                if (ports[i] == port
+                        && regionMatches(schemes[i], origin, 0, schemeEnd)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,692 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A set of regular expression origin rules, compiled together into a single
+ * deterministic finite automaton (DFA). An origin is matched by running the
+ * DFA over its characters once: matching takes time linear in the length of
+ * the origin, regardless of the number of rules, and never backtracks, so a
+ * hostile 'Origin' header can't cause catastrophic backtracking. The match
+ * reports the first rule, in configuration order, that matches the whole
+ * origin.
+ * </p>
+ * 
+ * <p>
+ * Rules are matched against the whole origin, case sensitively, and support
+ * the regular subset of {@link java.util.regex.Pattern} syntax: literals and
+ * escaped literals, <code>.</code>, character classes (<code>[a-z0-9-]</code>,
+ * <code>[^.]</code>, <code>\d</code>, <code>\w</code>, <code>\s</code> and
+ * their negations), groups (<code>(...)</code>, <code>(?:...)</code>),
+ * alternation, the quantifiers <code>* + ? {n} {n,} {n,m}</code>, and a
+ * leading <code>^</code> or trailing <code>$</code>. Constructs that aren't
+ * regular, such as back-references and look-arounds, are rejected. Only ASCII
+ * characters can be matched, as a valid origin has no others.
+ * </p>
+ * 
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+final class OriginRegexSet {
+    /**
+     * Number of characters in the alphabet of the automaton.
+     */
+    private static final int ALPHABET_SIZE = 128;
+
+    /**
+     * Maximum count of a bounded quantifier.
+     */
+    private static final int MAX_REPEAT = 255;
+
+    /**
+     * Maximum number of DFA states, to bound memory and compile time.
+     */
+    static final int MAX_STATES = 10000;
+
+    /**
+     * Maximum number of NFA states, as nested bounded quantifiers multiply
+     * the states of what they repeat before the DFA is ever built.
+     */
+    static final int MAX_NFA_STATES = 4 * MAX_STATES;
+
+    private static final int DEAD = -1;
+
+    private final List<String> rules;
+
+    /**
+     * Equivalence class of each ASCII character: characters that no rule
+     * tells apart share a class, and a column of {@link #transitions}.
+     */
+    private final int[] classOf;
+
+    private final int classCount;
+
+    /**
+     * Next state, indexed by <code>state * classCount + class</code>;
+     * {@link #DEAD} if no rule can match anymore.
+     */
+    private final int[] transitions;
+
+    /**
+     * Index of the rule an accepting state matches; -1 if the state isn't
+     * accepting.
+     */
+    private final int[] accepts;
+
+    /**
+     * Compiles the given rules into a single DFA.
+     * 
+     * @param rules
+     *            The regular expressions.
+     * @throws IllegalArgumentException
+     *             If a rule is malformed or not supported, or if the rules
+     *             need more than {@link #MAX_NFA_STATES} NFA states or
+     *             {@link #MAX_STATES} DFA states.
+     */
+    OriginRegexSet(final Collection<String> rules) {
+        this.rules =
+                Collections.unmodifiableList(new ArrayList<String>(rules));
+
+        // Thompson construction of a single NFA, whose start state has an
+        // epsilon edge to the start of each rule.
+        Nfa nfa = new Nfa();
+        int start = nfa.newState();
+        for (int i = 0; i < this.rules.size(); i++) {
+            String rule = this.rules.get(i);
+            if (rule == null) {
+                throw new IllegalArgumentException("Regex object is null");
+            }
+            Node node = new Parser(rule).parse();
+            int[] fragment = node.build(nfa);
+            nfa.epsilon(start, fragment[0]);
+            nfa.accept(fragment[1], i);
+        }
+
+        // Characters are partitioned by the sets of edges they appear on.
+        int[] classes = new int[ALPHABET_SIZE];
+        int count = 1;
+        for (BitSet set : nfa.sets) {
+            if (set == null) {
+                continue;
+            }
+            Map<Long, Integer> split = new HashMap<Long, Integer>();
+            int next = 0;
+            for (int c = 0; c < ALPHABET_SIZE; c++) {
+                Long key = Long.valueOf(((long) classes[c] << 1)
+                        | (set.get(c) ? 1 : 0));
+                Integer cls = split.get(key);
+                if (cls == null) {
+                    cls = Integer.valueOf(next++);
+                    split.put(key, cls);
+                }
+                classes[c] = cls.intValue();
+            }
+            count = next;
+        }
+        this.classOf = classes;
+        this.classCount = count;
+        int[] representatives = new int[count];
+        Arrays.fill(representatives, -1);
+        for (int c = 0; c < ALPHABET_SIZE; c++) {
+            if (representatives[classes[c]] < 0) {
+                representatives[classes[c]] = c;
+            }
+        }
+
+        // Subset construction.
+        List<BitSet> states = new ArrayList<BitSet>();
+        Map<BitSet, Integer> stateIds = new HashMap<BitSet, Integer>();
+        int[] table = new int[16 * count];
+        BitSet initial = new BitSet();
+        initial.set(start);
+        nfa.closure(initial);
+        states.add(initial);
+        stateIds.put(initial, Integer.valueOf(0));
+        for (int s = 0; s < states.size(); s++) {
+            BitSet current = states.get(s);
+            for (int cls = 0; cls < count; cls++) {
+                BitSet target = nfa.move(current, representatives[cls]);
+                int targetId = DEAD;
+                if (!target.isEmpty()) {
+                    nfa.closure(target);
+                    Integer id = stateIds.get(target);
+                    if (id == null) {
+                        if (states.size() >= MAX_STATES) {
+                            throw new IllegalArgumentException(
+                                    "Origin regexes need more than "
+                                            + MAX_STATES + " states");
+                        }
+                        id = Integer.valueOf(states.size());
+                        states.add(target);
+                        stateIds.put(target, id);
+                    }
+                    targetId = id.intValue();
+                }
+                int index = s * count + cls;
+                if (index >= table.length) {
+                    table = Arrays.copyOf(table, table.length << 1);
+                }
+                table[index] = targetId;
+            }
+        }
+        this.transitions = Arrays.copyOf(table, states.size() * count);
+        this.accepts = new int[states.size()];
+        for (int s = 0; s < states.size(); s++) {
+            accepts[s] = nfa.acceptOf(states.get(s));
+        }
+    }
+
+    /**
+     * Finds the first rule that matches the whole origin.
+     * 
+     * @param origin
+     *            The origin.
+     * @return Index of the rule; -1 if none matches.
+     */
+    int match(final String origin) {
+        final int length = origin.length();
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char c = origin.charAt(i);
+            if (c >= ALPHABET_SIZE) {
+                return -1;
+            }
+            state = transitions[state * classCount + classOf[c]];
+            if (state == DEAD) {
+                return -1;
+            }
+        }
+        return accepts[state];
+    }
+
+    /**
+     * Returns the rules, in configuration order.
+     * 
+     * @return An immutable {@link List}.
+     */
+    List<String> getRules() {
+        return rules;
+    }
+
+    /**
+     * A non-deterministic automaton under construction. A state has either
+     * epsilon edges, or a single edge on a set of characters.
+     */
+    private static final class Nfa {
+        final List<int[]> epsilons = new ArrayList<int[]>();
+        final List<BitSet> sets = new ArrayList<BitSet>();
+        final List<Integer> targets = new ArrayList<Integer>();
+        final List<Integer> rules = new ArrayList<Integer>();
+
+        int newState() {
+            if (epsilons.size() >= MAX_NFA_STATES) {
+                throw new IllegalArgumentException(
+                        "Origin regexes need more than " + MAX_NFA_STATES
+                                + " NFA states");
+            }
+            epsilons.add(new int[0]);
+            sets.add(null);
+            targets.add(Integer.valueOf(DEAD));
+            rules.add(Integer.valueOf(-1));
+            return epsilons.size() - 1;
+        }
+
+        void epsilon(final int from, final int to) {
+            int[] edges = epsilons.get(from);
+            int[] newEdges = Arrays.copyOf(edges, edges.length + 1);
+            newEdges[edges.length] = to;
+            epsilons.set(from, newEdges);
+        }
+
+        void edge(final int from, final BitSet set, final int to) {
+            sets.set(from, set);
+            targets.set(from, Integer.valueOf(to));
+        }
+
+        void accept(final int state, final int rule) {
+            rules.set(state, Integer.valueOf(rule));
+        }
+
+        void closure(final BitSet states) {
+            int[] stack = new int[epsilons.size()];
+            int top = 0;
+            for (int s = states.nextSetBit(0); s >= 0; s =
+                    states.nextSetBit(s + 1)) {
+                stack[top++] = s;
+            }
+            while (top > 0) {
+                for (int to : epsilons.get(stack[--top])) {
+                    if (!states.get(to)) {
+                        states.set(to);
+                        stack[top++] = to;
+                    }
+                }
+            }
+        }
+
+        BitSet move(final BitSet states, final int c) {
+            BitSet result = new BitSet();
+            for (int s = states.nextSetBit(0); s >= 0; s =
+                    states.nextSetBit(s + 1)) {
+                BitSet set = sets.get(s);
+                if (set != null && set.get(c)) {
+                    result.set(targets.get(s).intValue());
+                }
+            }
+            return result;
+        }
+
+        int acceptOf(final BitSet states) {
+            int rule = -1;
+            for (int s = states.nextSetBit(0); s >= 0; s =
+                    states.nextSetBit(s + 1)) {
+                int r = rules.get(s).intValue();
+                if (r >= 0 && (rule < 0 || r < rule)) {
+                    rule = r;
+                }
+            }
+            return rule;
+        }
+    }
+
+    /**
+     * A node of the syntax tree of a rule. It can be built into the NFA more
+     * than once, e.g. when expanding a bounded quantifier.
+     */
+    private abstract static class Node {
+        /**
+         * Builds a fragment of the NFA.
+         * 
+         * @return Its start and end states.
+         */
+        abstract int[] build(Nfa nfa);
+    }
+
+    private static final class CharSetNode extends Node {
+        final BitSet set;
+
+        CharSetNode(final BitSet set) {
+            this.set = set;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            int from = nfa.newState();
+            int to = nfa.newState();
+            nfa.edge(from, set, to);
+            return new int[] { from, to };
+        }
+    }
+
+    private static final class ConcatNode extends Node {
+        final List<Node> nodes;
+
+        ConcatNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            int start = nfa.newState();
+            int end = start;
+            for (Node node : nodes) {
+                int[] fragment = node.build(nfa);
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            return new int[] { start, end };
+        }
+    }
+
+    private static final class AltNode extends Node {
+        final List<Node> nodes;
+
+        AltNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            for (Node node : nodes) {
+                int[] fragment = node.build(nfa);
+                nfa.epsilon(start, fragment[0]);
+                nfa.epsilon(fragment[1], end);
+            }
+            return new int[] { start, end };
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        final Node node;
+        final int min;
+        /**
+         * Maximum count; -1 if unbounded.
+         */
+        final int max;
+
+        RepeatNode(final Node node, final int min, final int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        int[] build(final Nfa nfa) {
+            int start = nfa.newState();
+            int end = start;
+            for (int i = 0; i < min; i++) {
+                int[] fragment = node.build(nfa);
+                nfa.epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            if (max < 0) {
+                int[] fragment = node.build(nfa);
+                int loopEnd = nfa.newState();
+                nfa.epsilon(end, fragment[0]);
+                nfa.epsilon(end, loopEnd);
+                nfa.epsilon(fragment[1], fragment[0]);
+                nfa.epsilon(fragment[1], loopEnd);
+                return new int[] { start, loopEnd };
+            }
+            int optionalEnd = nfa.newState();
+            for (int i = min; i < max; i++) {
+                int[] fragment = node.build(nfa);
+                nfa.epsilon(end, fragment[0]);
+                nfa.epsilon(end, optionalEnd);
+                end = fragment[1];
+            }
+            nfa.epsilon(end, optionalEnd);
+            return new int[] { start, optionalEnd };
+        }
+    }
+
+    /**
+     * Recursive descent parser of a rule.
+     */
+    private static final class Parser {
+        private final String regex;
+        private int position;
+
+        Parser(final String regex) {
+            this.regex = regex;
+        }
+
+        Node parse() {
+            int end = regex.length();
+            if (regex.startsWith("^")) {
+                position = 1;
+            }
+            if (end > position && regex.charAt(end - 1) == '$'
+                    && !isEscaped(end - 1)) {
+                end--;
+            }
+            Node node = parseAlternation(end);
+            if (position != end) {
+                throw error("Unexpected ')'");
+            }
+            return node;
+        }
+
+        private boolean isEscaped(final int index) {
+            int backslashes = 0;
+            for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+                backslashes++;
+            }
+            return (backslashes & 1) == 1;
+        }
+
+        private Node parseAlternation(final int end) {
+            List<Node> alternatives = new ArrayList<Node>();
+            alternatives.add(parseConcatenation(end));
+            while (position < end && regex.charAt(position) == '|') {
+                position++;
+                alternatives.add(parseConcatenation(end));
+            }
+            return alternatives.size() == 1 ? alternatives.get(0)
+                    : new AltNode(alternatives);
+        }
+
+        private Node parseConcatenation(final int end) {
+            List<Node> nodes = new ArrayList<Node>();
+            while (position < end) {
+                char c = regex.charAt(position);
+                if (c == '|' || c == ')') {
+                    break;
+                }
+                nodes.add(parseRepetition(end));
+            }
+            return new ConcatNode(nodes);
+        }
+
+        private Node parseRepetition(final int end) {
+            Node node = parseAtom(end);
+            while (position < end) {
+                char c = regex.charAt(position);
+                if (c == '*') {
+                    position++;
+                    node = new RepeatNode(node, 0, -1);
+                } else if (c == '+') {
+                    position++;
+                    node = new RepeatNode(node, 1, -1);
+                } else if (c == '?') {
+                    position++;
+                    node = new RepeatNode(node, 0, 1);
+                } else if (c == '{') {
+                    position++;
+                    int min = parseNumber(end);
+                    int max = min;
+                    if (position < end && regex.charAt(position) == ',') {
+                        position++;
+                        max = position < end && regex.charAt(position) == '}'
+                                ? -1 : parseNumber(end);
+                    }
+                    expect('}', end);
+                    if (max >= 0 && max < min) {
+                        throw error("Invalid quantifier");
+                    }
+                    node = new RepeatNode(node, min, max);
+                } else {
+                    break;
+                }
+            }
+            return node;
+        }
+
+        private int parseNumber(final int end) {
+            int start = position;
+            int value = 0;
+            while (position < end && regex.charAt(position) >= '0'
+                    && regex.charAt(position) <= '9') {
+                value = value * 10 + (regex.charAt(position++) - '0');
+                if (value > MAX_REPEAT) {
+                    throw error("Quantifier exceeds " + MAX_REPEAT);
+                }
+            }
+            if (position == start) {
+                throw error("Expected a number");
+            }
+            return value;
+        }
+
+        private Node parseAtom(final int end) {
+            char c = regex.charAt(position++);
+            switch (c) {
+            case '(':
+                if (regex.startsWith("?", position)) {
+                    if (!regex.startsWith("?:", position)) {
+                        throw error("Unsupported group construct");
+                    }
+                    position += 2;
+                }
+                Node group = parseAlternation(end);
+                expect(')', end);
+                return group;
+            case '[':
+                return new CharSetNode(parseClass(end));
+            case '.':
+                BitSet any = new BitSet();
+                any.set(0, ALPHABET_SIZE);
+                any.clear('\n');
+                any.clear('\r');
+                return new CharSetNode(any);
+            case '\\':
+                return new CharSetNode(parseEscape(end));
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw error("Dangling quantifier");
+            case '^':
+            case '$':
+                throw error("Anchors are only supported at the ends");
+            default:
+                return new CharSetNode(single(c));
+            }
+        }
+
+        private BitSet parseClass(final int end) {
+            boolean negated = false;
+            if (position < end && regex.charAt(position) == '^') {
+                negated = true;
+                position++;
+            }
+            BitSet set = new BitSet();
+            boolean first = true;
+            while (true) {
+                if (position >= end) {
+                    throw error("Unclosed character class");
+                }
+                char c = regex.charAt(position);
+                if (c == ']' && !first) {
+                    position++;
+                    break;
+                }
+                first = false;
+                position++;
+                BitSet item;
+                char low;
+                if (c == '\\') {
+                    item = parseEscape(end);
+                    low = item.cardinality() == 1 ? (char) item.nextSetBit(0)
+                            : 0;
+                } else if (c == '[') {
+                    throw error("Nested character classes are not supported");
+                } else {
+                    item = single(c);
+                    low = c;
+                }
+                if (low != 0 && position + 1 < end
+                        && regex.charAt(position) == '-'
+                        && regex.charAt(position + 1) != ']') {
+                    position++;
+                    char high = regex.charAt(position++);
+                    if (high == '\\') {
+                        BitSet escaped = parseEscape(end);
+                        if (escaped.cardinality() != 1) {
+                            throw error("Invalid range");
+                        }
+                        high = (char) escaped.nextSetBit(0);
+                    }
+                    if (high < low) {
+                        throw error("Invalid range");
+                    }
+                    item = new BitSet();
+                    item.set(low, Math.min(high + 1, ALPHABET_SIZE));
+                }
+                set.or(item);
+            }
+            if (negated) {
+                set.flip(0, ALPHABET_SIZE);
+            }
+            return set;
+        }
+
+        private BitSet parseEscape(final int end) {
+            if (position >= end) {
+                throw error("Trailing backslash");
+            }
+            char c = regex.charAt(position++);
+            BitSet set = new BitSet();
+            switch (c) {
+            case 'd':
+            case 'D':
+                set.set('0', '9' + 1);
+                break;
+            case 'w':
+            case 'W':
+                set.set('a', 'z' + 1);
+                set.set('A', 'Z' + 1);
+                set.set('0', '9' + 1);
+                set.set('_');
+                break;
+            case 's':
+            case 'S':
+                set.set(' ');
+                set.set('\t', '\r' + 1);
+                break;
+            case 't':
+                return single('\t');
+            case 'n':
+                return single('\n');
+            case 'r':
+                return single('\r');
+            default:
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                        || (c >= '0' && c <= '9')) {
+                    throw error("Unsupported escape \\" + c);
+                }
+                return single(c);
+            }
+            if (Character.isUpperCase(c)) {
+                set.flip(0, ALPHABET_SIZE);
+            }
+            return set;
+        }
+
+        private BitSet single(final char c) {
+            BitSet set = new BitSet();
+            if (c < ALPHABET_SIZE) {
+                set.set(c);
+            }
+            return set;
+        }
+
+        private void expect(final char c, final int end) {
+            if (position >= end || regex.charAt(position) != c) {
+                throw error("Expected '" + c + "'");
+            }
+            position++;
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException(message + " at index "
+                    + position + " of regex " + regex);
+        }
+    }
+}
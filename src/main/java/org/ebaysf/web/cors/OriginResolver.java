@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.io.IOException;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * <p>
+ * Decides if origins are allowed, against a source outside of the filter's
+ * configuration, such as a tenant registry in a database. An implementation is
+ * configured with the <code>cors.origin.resolver</code> init param of
+ * {@link CORSFilter}, and must have a public no-arg constructor.
+ * </p>
+ * 
+ * <p>
+ * The filter only asks the resolver about origins that its configuration
+ * doesn't allow. It caches the answers, coalesces concurrent lookups of the
+ * same origin, and calls the resolver off the request thread, waiting no
+ * longer than a timeout; so a resolver may block, but must be thread-safe.
+ * </p>
+ */
+public interface OriginResolver {
+    /**
+     * Called once by the filter, before the resolver is used.
+     * 
+     * @param filterConfig
+     *            The {@link FilterConfig} of the filter; may be
+     *            <code>null</code>.
+     * @throws ServletException
+     *             If the resolver can't be initialized.
+     */
+    void init(FilterConfig filterConfig) throws ServletException;
+
+    /**
+     * Checks if an origin is allowed.
+     * 
+     * @param origin
+     *            The value of the 'Origin' request header, syntactically valid.
+     * @return <code>true</code> if it is allowed; <code>false</code> otherwise.
+     * @throws IOException
+     *             If the lookup fails; the filter then applies its failure
+     *             policy, and doesn't cache the answer.
+     */
+    boolean isOriginAllowed(String origin) throws IOException;
+
+    /**
+     * Called once by the filter, when the resolver is no longer used.
+     */
+    void destroy();
+}
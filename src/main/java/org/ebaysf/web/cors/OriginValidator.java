@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+/**
+ * <p>
+ * Validates the syntax of an 'Origin' request header value, in a single pass
+ * and without allocating. An origin is valid, if it's a serialized origin as
+ * per RFC6454, i.e. <code>scheme "://" host [ ":" port ]</code>, where:
+ * <ul>
+ * <li>scheme is <code>ALPHA *( ALPHA / DIGIT / "+" / "-" / "." )</code></li>
+ * <li>host is a non-empty reg-name, IPv4 address or a bracketed IP-literal</li>
+ * <li>port is one or more digits</li>
+ * </ul>
+ * Additionally, "null" and any <code>file://</code> origin are valid. An
+ * origin containing an encoded character ('%') or a control character is never
+ * valid, which helps prevent CRLF injection.
+ * </p>
+ * 
+ * @see <a href="http://tools.ietf.org/html/rfc6454#section-6.1">RFC6454,
+ *      Serializing an Origin</a>
+ */
+final class OriginValidator {
+    /**
+     * Scheme of file URIs.
+     */
+    private static final String FILE_SCHEME_PREFIX = "file://";
+
+    private OriginValidator() {
+        // Utility class
+    }
+
+    /**
+     * Checks if a given origin is syntactically valid.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if origin is valid; <code>false</code>
+     *         otherwise.
+     */
+    static boolean isValid(final String origin) {
+        if (origin == null) {
+            return false;
+        }
+        final int length = origin.length();
+
+        // "null" is a valid origin
+        if (length == 4 && origin.equals("null")) {
+            return true;
+        }
+
+        // RFC6454, section 4. "If uri-scheme is file, the implementation MAY
+        // return an implementation-defined value.". No limits are placed on
+        // that value so treat all file URIs as valid origins, as long as they
+        // don't carry encoded or control characters.
+        if (origin.startsWith(FILE_SCHEME_PREFIX)) {
+            for (int i = FILE_SCHEME_PREFIX.length(); i < length; i++) {
+                char c = origin.charAt(i);
+                if (c == '%' || c <= ' ' || c >= 0x7f) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // scheme = ALPHA *( ALPHA / DIGIT / "+" / "-" / "." )
+        int i = 0;
+        if (length == 0 || !isAlpha(origin.charAt(0))) {
+            return false;
+        }
+        i++;
+        while (i < length) {
+            char c = origin.charAt(i);
+            if (isAlpha(c) || isDigit(c) || c == '+' || c == '-' || c == '.') {
+                i++;
+            } else {
+                break;
+            }
+        }
+
+        // "://"
+        if (i + 3 > length || origin.charAt(i) != ':'
+                || origin.charAt(i + 1) != '/' || origin.charAt(i + 2) != '/') {
+            return false;
+        }
+        i += 3;
+
+        // host = IP-literal / IPv4address / reg-name
+        int hostStart = i;
+        if (i < length && origin.charAt(i) == '[') {
+            i++;
+            while (i < length && origin.charAt(i) != ']') {
+                char c = origin.charAt(i);
+                if (!(isHexDigit(c) || c == ':' || c == '.')) {
+                    return false;
+                }
+                i++;
+            }
+            if (i == length || i == hostStart + 1) {
+                // Unterminated or empty IP-literal
+                return false;
+            }
+            i++;
+        } else {
+            while (i < length) {
+                char c = origin.charAt(i);
+                if (isRegNameChar(c)) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            if (i == hostStart) {
+                return false;
+            }
+        }
+
+        // [ ":" port ]
+        if (i < length && origin.charAt(i) == ':') {
+            i++;
+            int portStart = i;
+            while (i < length && isDigit(origin.charAt(i))) {
+                i++;
+            }
+            if (i == portStart) {
+                return false;
+            }
+        }
+
+        // Nothing else, i.e. no path, query, fragment or user-info.
+        return i == length;
+    }
+
+    private static boolean isAlpha(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(final char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    /**
+     * reg-name = *( unreserved / sub-delims ), pct-encoded is deliberately
+     * excluded.
+     */
+    private static boolean isRegNameChar(final char c) {
+        if (isAlpha(c) || isDigit(c)) {
+            return true;
+        }
+        switch (c) {
+        case '-':
+        case '.':
+        case '_':
+        case '~':
+        case '!':
+        case '$':
+        case '&':
+        case '\'':
+        case '(':
+        case ')':
+        case '*':
+        case '+':
+        case ',':
+        case ';':
+        case '=':
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Selects the {@link CorsPolicy} of a request by its path, within the web
+ * application, among policies mapped to path patterns. A pattern is a path of
+ * '/' separated segments, each either literal or '*', matching any one
+ * segment; a pattern ending with <code>/*</code> is a prefix, that matches the
+ * path before it and any path below it, e.g. <code>/api/*</code> matches
+ * <code>/api</code> and <code>/api/v1/users</code>. Segments are compared case
+ * sensitively. A pattern may also be mapped to no policy at all, excluding its
+ * paths from CORS processing.
+ * </p>
+ * 
+ * <p>
+ * Patterns are compiled into a trie of segments, which a path walks once, in
+ * place, from its first segment, preferring a literal segment to '*' at each
+ * level; the most specific pattern matched along the way applies: an exact
+ * pattern at the end of the path, or else the longest prefix. Instances are
+ * immutable once constructed.
+ * </p>
+ */
+final class PathPolicyTrie {
+    private static final String WILDCARD = "*";
+
+    private static final String PREFIX_SUFFIX = "/*";
+
+    /**
+     * Marks the paths excluded from CORS processing.
+     */
+    private static final Object EXCLUDED = new Object();
+
+    private final Node root;
+
+    private final List<CorsPolicy> policies;
+
+    PathPolicyTrie() {
+        this.root = new Node();
+        this.policies = new ArrayList<CorsPolicy>();
+    }
+
+    private PathPolicyTrie(final Node root, final List<CorsPolicy> policies) {
+        this.root = root;
+        this.policies = policies;
+    }
+
+    /**
+     * Maps a path pattern to a policy.
+     * 
+     * @param pattern
+     *            The path pattern.
+     * @param policy
+     *            The {@link CorsPolicy}; <code>null</code> to exclude the
+     *            paths from CORS processing.
+     * @throws IllegalArgumentException
+     *             If the pattern is malformed, or already mapped.
+     */
+    void add(final String pattern, final CorsPolicy policy) {
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Invalid path pattern: "
+                    + pattern);
+        }
+        final boolean prefix = pattern.endsWith(PREFIX_SUFFIX);
+        final int end =
+                prefix ? pattern.length() - PREFIX_SUFFIX.length() : pattern
+                        .length();
+        Node node = root;
+        int start = 1;
+        while (end > 1 && start <= end) {
+            int slash = pattern.indexOf('/', start);
+            if (slash < 0 || slash > end) {
+                slash = end;
+            }
+            String segment = pattern.substring(start, slash);
+            if (segment.indexOf('*') >= 0 && !segment.equals(WILDCARD)) {
+                throw new IllegalArgumentException("Invalid path pattern: "
+                        + pattern);
+            }
+            node = node.addChild(segment);
+            start = slash + 1;
+        }
+
+        Object target = policy != null ? policy : EXCLUDED;
+        if (prefix ? node.prefixTarget != null : node.exactTarget != null) {
+            throw new IllegalArgumentException("Duplicate path pattern: "
+                    + pattern);
+        }
+        if (prefix) {
+            node.prefixTarget = target;
+        } else {
+            node.exactTarget = target;
+        }
+        if (policy != null && !policies.contains(policy)) {
+            policies.add(policy);
+        }
+    }
+
+    /**
+     * Selects the policy of a path.
+     * 
+     * @param path
+     *            The path within the web application, e.g. the servlet path
+     *            followed by the path info.
+     * @param defaultPolicy
+     *            The policy of the paths that no pattern matches.
+     * @return The {@link CorsPolicy}; <code>null</code> if the path is
+     *         excluded from CORS processing.
+     */
+    CorsPolicy select(final String path, final CorsPolicy defaultPolicy) {
+        final int length = path.length();
+        Node node = root;
+        Object target = root.prefixTarget;
+        int start = length > 0 && path.charAt(0) == '/' ? 1 : 0;
+        if (start == length) {
+            // The root itself.
+            if (root.exactTarget != null) {
+                target = root.exactTarget;
+            }
+            return resolve(target, defaultPolicy);
+        }
+        while (true) {
+            int slash = path.indexOf('/', start);
+            final int end = slash < 0 ? length : slash;
+            Node next = node.child(path, start, end);
+            if (next == null) {
+                next = node.wildcard;
+                if (next == null) {
+                    break;
+                }
+            }
+            node = next;
+            if (end == length) {
+                if (node.exactTarget != null) {
+                    target = node.exactTarget;
+                } else if (node.prefixTarget != null) {
+                    target = node.prefixTarget;
+                }
+                break;
+            }
+            if (node.prefixTarget != null) {
+                target = node.prefixTarget;
+            }
+            start = end + 1;
+        }
+        return resolve(target, defaultPolicy);
+    }
+
+    /**
+     * Returns a copy of this trie, with some of its policies replaced.
+     * 
+     * @param replacements
+     *            The new policy of each policy to replace.
+     * @return The new {@link PathPolicyTrie}.
+     */
+    PathPolicyTrie withPolicies(
+            final Map<CorsPolicy, CorsPolicy> replacements) {
+        List<CorsPolicy> newPolicies =
+                new ArrayList<CorsPolicy>(policies.size());
+        for (CorsPolicy policy : policies) {
+            newPolicies.add((CorsPolicy) replace(policy, replacements));
+        }
+        return new PathPolicyTrie(root.copy(replacements), newPolicies);
+    }
+
+    /**
+     * Returns the distinct policies mapped to patterns.
+     * 
+     * @return The policies.
+     */
+    List<CorsPolicy> getPolicies() {
+        return policies;
+    }
+
+    private static CorsPolicy resolve(final Object target,
+            final CorsPolicy defaultPolicy) {
+        if (target == null) {
+            return defaultPolicy;
+        }
+        return target == EXCLUDED ? null : (CorsPolicy) target;
+    }
+
+    private static Object replace(final Object target,
+            final Map<CorsPolicy, CorsPolicy> replacements) {
+        CorsPolicy replacement = replacements.get(target);
+        return replacement != null ? replacement : target;
+    }
+
+    private static int hash(final String chars, final int start,
+            final int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + chars.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A segment: its literal child segments in an open-addressing table, its
+     * '*' child, and the targets of the patterns ending with it.
+     */
+    private static final class Node {
+        private String[] segments = new String[2];
+
+        private Node[] children = new Node[2];
+
+        private int childCount;
+
+        private Node wildcard;
+
+        /**
+         * Target of the pattern ending exactly here; <code>null</code> if
+         * none.
+         */
+        private Object exactTarget;
+
+        /**
+         * Target of the prefix pattern ending here; <code>null</code> if none.
+         */
+        private Object prefixTarget;
+
+        Node copy(final Map<CorsPolicy, CorsPolicy> replacements) {
+            Node copy = new Node();
+            copy.segments = segments.clone();
+            copy.children = new Node[children.length];
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null) {
+                    copy.children[i] = children[i].copy(replacements);
+                }
+            }
+            copy.childCount = childCount;
+            copy.wildcard =
+                    wildcard != null ? wildcard.copy(replacements) : null;
+            copy.exactTarget = replace(exactTarget, replacements);
+            copy.prefixTarget = replace(prefixTarget, replacements);
+            return copy;
+        }
+
+        Node child(final String chars, final int start, final int end) {
+            final int mask = segments.length - 1;
+            int index = hash(chars, start, end) & mask;
+            String segment;
+            while ((segment = segments[index]) != null) {
+                if (segment.length() == end - start
+                        && chars.regionMatches(start, segment, 0,
+                                end - start)) {
+                    return children[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        Node addChild(final String segment) {
+            if (segment.equals(WILDCARD)) {
+                if (wildcard == null) {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+            Node child = child(segment, 0, segment.length());
+            if (child != null) {
+                return child;
+            }
+            if (2 * (childCount + 1) > segments.length) {
+                String[] oldSegments = segments;
+                Node[] oldChildren = children;
+                segments = new String[oldSegments.length << 1];
+                children = new Node[oldSegments.length << 1];
+                for (int i = 0; i < oldSegments.length; i++) {
+                    if (oldSegments[i] != null) {
+                        put(oldSegments[i], oldChildren[i]);
+                    }
+                }
+            }
+            child = new Node();
+            put(segment, child);
+            childCount++;
+            return child;
+        }
+
+        private void put(final String segment, final Node child) {
+            final int mask = segments.length - 1;
+            int index = hash(segment, 0, segment.length()) & mask;
+            while (segments[index] != null) {
+                index = (index + 1) & mask;
+            }
+            segments[index] = segment;
+            children[index] = child;
+        }
+    }
+}
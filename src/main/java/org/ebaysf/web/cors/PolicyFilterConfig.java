@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.Collections;
+import java.util.Enumeration;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * <p>
+ * The init params of a named policy: <code>cors.policy.&lt;name&gt;.x</code>
+ * overrides <code>cors.x</code>, which otherwise applies, as for the default
+ * policy. E.g. <code>cors.policy.api.allowed.origins</code> sets the allowed
+ * origins of the policy named <code>api</code>. The policy's own params, e.g.
+ * {@link #PATHS}, are looked up by their short name.
+ * </p>
+ */
+final class PolicyFilterConfig implements FilterConfig {
+    /**
+     * The policy's own param listing its path patterns.
+     */
+    static final String PATHS = "paths";
+
+    /**
+     * The policy's own param listing its virtual host names.
+     */
+    static final String HOSTS = "hosts";
+
+    private static final String PARAM_PREFIX = "cors.";
+
+    private final FilterConfig filterConfig;
+
+    private final String prefix;
+
+    /**
+     * @param filterConfig
+     *            The {@link FilterConfig} of the filter; may be
+     *            <code>null</code>.
+     * @param name
+     *            The name of the policy.
+     */
+    PolicyFilterConfig(final FilterConfig filterConfig, final String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name object is null");
+        }
+        this.filterConfig = filterConfig;
+        this.prefix = CORSFilter.PARAM_CORS_POLICY_PREFIX + name + ".";
+    }
+
+    /**
+     * Returns the name of the policy's own init param for a filter init
+     * param.
+     * 
+     * @param name
+     *            The filter init param, e.g. <code>cors.allowed.origins</code>.
+     * @return The policy's init param, e.g.
+     *         <code>cors.policy.api.allowed.origins</code>.
+     */
+    private String getParameterName(final String name) {
+        return prefix
+                + (name.startsWith(PARAM_PREFIX) ? name
+                        .substring(PARAM_PREFIX.length()) : name);
+    }
+
+    @Override
+    public String getInitParameter(final String name) {
+        if (filterConfig == null) {
+            return null;
+        }
+        String value = filterConfig.getInitParameter(getParameterName(name));
+        // The policy's own params, such as its paths, aren't inherited.
+        if (value != null || !name.startsWith(PARAM_PREFIX)) {
+            return value;
+        }
+        return filterConfig.getInitParameter(name);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Enumeration getInitParameterNames() {
+        return filterConfig != null ? filterConfig.getInitParameterNames()
+                : Collections.enumeration(Collections.emptySet());
+    }
+
+    @Override
+    public String getFilterName() {
+        return filterConfig != null ? filterConfig.getFilterName() : null;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return filterConfig != null ? filterConfig.getServletContext() : null;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A bounded, lock-free cache of pre-flight decisions, keyed on the raw
+ * 'Origin', 'Access-Control-Request-Method' and
+ * 'Access-Control-Request-Headers' request header values. A decision is
+ * either the response headers of an accepted pre-flight, as alternating names
+ * and values, or {@link #REJECTED}.
+ * </p>
+ * 
+ * <p>
+ * Like {@link OriginDecisionCache}, the cache is backed by a
+ * {@link SetAssociativeCache}, with
+ * {@link SetAssociativeCache.EvictionPolicy#CLOCK} eviction. Hits and misses
+ * are counted.
+ * </p>
+ */
+final class PreflightDecisionCache {
+    /**
+     * The decision of a rejected pre-flight.
+     */
+    static final String[] REJECTED = new String[0];
+
+    private final SetAssociativeCache<String[]> table;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            Maximum number of cached decisions; rounded up to a power of
+     *            two, no less than {@link SetAssociativeCache#WAYS}.
+     */
+    PreflightDecisionCache(final int capacity) {
+        this.table = new SetAssociativeCache<String[]>(capacity,
+                SetAssociativeCache.EvictionPolicy.CLOCK);
+    }
+
+    /**
+     * Returns the cached decision for a pre-flight, and counts a hit or a
+     * miss.
+     * 
+     * @param origin
+     *            Value of the 'Origin' request header.
+     * @param method
+     *            Value of the 'Access-Control-Request-Method' request header.
+     * @param headers
+     *            Value of the 'Access-Control-Request-Headers' request header;
+     *            may be <code>null</code>.
+     * @return The response headers, as alternating names and values, or
+     *         {@link #REJECTED}; <code>null</code> if not cached. The array
+     *         must not be modified.
+     */
+    String[] get(final String origin, final String method,
+            final String headers) {
+        final String[] decision = table.get(origin, method, headers);
+        if (decision != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return decision;
+    }
+
+    /**
+     * Caches the decision for a pre-flight, evicting another one of the same
+     * bucket if needed.
+     * 
+     * @param origin
+     *            Value of the 'Origin' request header.
+     * @param method
+     *            Value of the 'Access-Control-Request-Method' request header.
+     * @param headers
+     *            Value of the 'Access-Control-Request-Headers' request header;
+     *            may be <code>null</code>.
+     * @param decision
+     *            The response headers, as alternating names and values, or
+     *            {@link #REJECTED}.
+     */
+    void put(final String origin, final String method, final String headers,
+            final String[] decision) {
+        table.put(origin, method, headers, decision);
+    }
+
+    /**
+     * Returns the maximum number of cached decisions.
+     * 
+     * @return The capacity.
+     */
+    int capacity() {
+        return table.capacity();
+    }
+
+    /**
+     * Returns the number of lookups that found a cached decision.
+     * 
+     * @return The number of hits.
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that found no cached decision.
+     * 
+     * @return The number of misses.
+     */
+    long getMisses() {
+        return misses.get();
+    }
+}
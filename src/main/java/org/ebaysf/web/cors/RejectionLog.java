@@ -0,0 +1,304 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.ServletContext;
+
+/**
+ * <p>
+ * Logs rejected CORS requests off the request thread. Request threads put
+ * rejection events on a bounded, lock-free ring buffer; a single background
+ * thread drains it in batches, formats the messages and writes them to the
+ * {@link ServletContext} log.
+ * </p>
+ * 
+ * <p>
+ * When the buffer is full, events are dropped and counted rather than
+ * blocking the request thread. The drain thread can also limit the number of
+ * messages logged per origin and per second, e.g. during a flood of requests
+ * from a bad origin; suppressed messages are summarized once a second.
+ * </p>
+ */
+final class RejectionLog {
+    /**
+     * Maximum number of events drained in one batch.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * How long the drain thread parks, when the buffer is empty.
+     */
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(100);
+
+    /**
+     * Length of the per-origin rate limiting window.
+     */
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ServletContext servletContext;
+
+    private final AtomicReferenceArray<Event> buffer;
+
+    private final int mask;
+
+    /**
+     * Sequence of the next event to be published; advanced by producers.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Sequence of the next event to be drained; advanced by the drain thread
+     * only.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Maximum messages logged per origin per second; 0 if unlimited.
+     */
+    private final int ratePerOrigin;
+
+    /**
+     * Messages logged per origin, in the current rate limiting window. Only
+     * accessed by the drain thread.
+     */
+    private final Map<String, int[]> originCounts =
+            new HashMap<String, int[]>();
+
+    private long windowStart;
+
+    private long suppressed;
+
+    private long droppedReported;
+
+    private final Thread drainThread;
+
+    private volatile boolean running;
+
+    /**
+     * @param servletContext
+     *            The {@link ServletContext} to log to.
+     * @param capacity
+     *            Maximum number of pending events; rounded up to a power of
+     *            two.
+     * @param ratePerOrigin
+     *            Maximum messages logged per origin per second; 0 if
+     *            unlimited.
+     */
+    RejectionLog(final ServletContext servletContext, final int capacity,
+            final int ratePerOrigin) {
+        if (servletContext == null) {
+            throw new IllegalArgumentException("ServletContext object is null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.servletContext = servletContext;
+        this.buffer = new AtomicReferenceArray<Event>(size);
+        this.mask = size - 1;
+        this.ratePerOrigin = ratePerOrigin;
+        this.drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "CORSFilter-rejection-log");
+        this.drainThread.setDaemon(true);
+    }
+
+    /**
+     * Starts the drain thread.
+     */
+    void start() {
+        running = true;
+        windowStart = System.nanoTime();
+        drainThread.start();
+    }
+
+    /**
+     * Stops the drain thread, after it has drained the pending events.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(drainThread);
+        try {
+            drainThread.join(TimeUnit.NANOSECONDS.toMillis(
+                    DRAIN_INTERVAL_NANOS) * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Puts a rejection event on the buffer, without blocking. Nothing is
+     * formatted on the calling thread.
+     * 
+     * @param origin
+     *            Value of 'Origin' request header.
+     * @param method
+     *            The HTTP method.
+     * @param accessControlRequestHeaders
+     *            Value of 'Access-Control-Request-Headers' request header; may
+     *            be <code>null</code>.
+     * @return <code>true</code> if the event was buffered; <code>false</code>
+     *         if it was dropped, because the buffer is full.
+     */
+    boolean offer(final String origin, final String method,
+            final String accessControlRequestHeaders) {
+        final int capacity = buffer.length();
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head.get() >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                buffer.lazySet((int) sequence & mask, new Event(origin,
+                        method, accessControlRequestHeaders));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events dropped, because the buffer was full.
+     * 
+     * @return The count.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Formats the log message of a rejected request.
+     */
+    static String format(final String origin, final String method,
+            final String accessControlRequestHeaders) {
+        StringBuilder message =
+                new StringBuilder("Invalid CORS request; Origin=")
+                        .append(origin).append(";Method=").append(method);
+        if (accessControlRequestHeaders != null) {
+            message.append(";Access-Control-Request-Headers=").append(
+                    accessControlRequestHeaders);
+        }
+        return message.toString();
+    }
+
+    private void drainLoop() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, DRAIN_INTERVAL_NANOS);
+            }
+        }
+        // Drains what's left, once stopped.
+        while (drain() > 0) {
+            // Continue
+        }
+        rollWindow(System.nanoTime());
+    }
+
+    /**
+     * Drains a batch of events.
+     * 
+     * @return Number of events drained.
+     */
+    private int drain() {
+        long now = System.nanoTime();
+        if (now - windowStart >= RATE_WINDOW_NANOS) {
+            rollWindow(now);
+        }
+
+        int drained = 0;
+        long sequence = head.get();
+        while (drained < BATCH_SIZE) {
+            int index = (int) sequence & mask;
+            Event event = buffer.get(index);
+            if (event == null) {
+                // Empty, or the producer hasn't published the event yet.
+                break;
+            }
+            buffer.lazySet(index, null);
+            sequence++;
+            head.lazySet(sequence);
+            drained++;
+
+            if (isRateLimited(event.origin)) {
+                suppressed++;
+            } else {
+                servletContext.log(format(event.origin, event.method,
+                        event.accessControlRequestHeaders));
+            }
+        }
+        return drained;
+    }
+
+    private boolean isRateLimited(final String origin) {
+        if (ratePerOrigin <= 0) {
+            return false;
+        }
+        String key = origin != null ? origin : "";
+        int[] count = originCounts.get(key);
+        if (count == null) {
+            count = new int[1];
+            originCounts.put(key, count);
+        }
+        return ++count[0] > ratePerOrigin;
+    }
+
+    private void rollWindow(final long now) {
+        if (suppressed > 0) {
+            servletContext.log("Suppressed " + suppressed
+                    + " invalid CORS request messages over the per-origin"
+                    + " limit of " + ratePerOrigin + " per second");
+            suppressed = 0;
+        }
+        long droppedCount = dropped.get();
+        if (droppedCount != droppedReported) {
+            servletContext.log("Dropped " + (droppedCount - droppedReported)
+                    + " invalid CORS request messages, as the log buffer"
+                    + " was full");
+            droppedReported = droppedCount;
+        }
+        originCounts.clear();
+        windowStart = now;
+    }
+
+    private static final class Event {
+        final String origin;
+        final String method;
+        final String accessControlRequestHeaders;
+
+        Event(final String origin, final String method,
+                final String accessControlRequestHeaders) {
+            this.origin = origin;
+            this.method = method;
+            this.accessControlRequestHeaders = accessControlRequestHeaders;
+        }
+    }
+}
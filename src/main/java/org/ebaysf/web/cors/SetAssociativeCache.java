@@ -0,0 +1,269 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * A bounded, lock-free cache organized as a set-associative table: a key
+ * hashes to a bucket of {@link #WAYS} slots, so a lookup probes at most that
+ * many slots of a single bucket. When a bucket is full, a victim is chosen
+ * within the bucket as per the {@link EvictionPolicy}.
+ * </p>
+ * 
+ * <p>
+ * A key is made of one to three strings, the last two of which may be
+ * <code>null</code>, so that request header values are looked up as they are,
+ * without building a composite key.
+ * </p>
+ * 
+ * <p>
+ * Slots are updated with compare-and-set only; a lost race simply leaves the
+ * winner's entry in place, as a cached value can always be recomputed.
+ * </p>
+ * 
+ * @param <V>
+ *            Type of the cached values.
+ */
+final class SetAssociativeCache<V> {
+    /**
+     * Number of slots per bucket.
+     */
+    static final int WAYS = 4;
+
+    /**
+     * Enumerates the policies to choose a victim from a full bucket.
+     */
+    static enum EvictionPolicy {
+        /**
+         * Second chance: entries that were hit since the last sweep are
+         * spared once.
+         */
+        CLOCK,
+        /**
+         * Any entry of the bucket.
+         */
+        RANDOM
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+
+    private final int bucketMask;
+
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * @param capacity
+     *            Maximum number of cached values; rounded up to a power of
+     *            two, no less than {@link #WAYS}.
+     * @param evictionPolicy
+     *            The {@link EvictionPolicy}.
+     */
+    SetAssociativeCache(final int capacity,
+            final EvictionPolicy evictionPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (evictionPolicy == null) {
+            throw new IllegalArgumentException("EvictionPolicy object is null");
+        }
+        int buckets = 1;
+        while (buckets * WAYS < capacity) {
+            buckets <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<Entry<V>>(buckets * WAYS);
+        this.bucketMask = buckets - 1;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Returns the cached value for a key.
+     * 
+     * @param key
+     *            First part of the key.
+     * @param key2
+     *            Second part of the key; may be <code>null</code>.
+     * @param key3
+     *            Third part of the key; may be <code>null</code>.
+     * @return The value; <code>null</code> if not cached.
+     */
+    V get(final String key, final String key2, final String key3) {
+        final int hash = hash(key, key2, key3);
+        final int base = (hash & bucketMask) * WAYS;
+        for (int i = 0; i < WAYS; i++) {
+            Entry<V> entry = slots.get(base + i);
+            if (entry != null && entry.matches(hash, key, key2, key3)) {
+                if (!entry.referenced) {
+                    entry.referenced = true;
+                }
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches the value for a key, evicting another key of the same bucket if
+     * needed.
+     * 
+     * @param key
+     *            First part of the key.
+     * @param key2
+     *            Second part of the key; may be <code>null</code>.
+     * @param key3
+     *            Third part of the key; may be <code>null</code>.
+     * @param value
+     *            The value.
+     */
+    void put(final String key, final String key2, final String key3,
+            final V value) {
+        final int hash = hash(key, key2, key3);
+        final int base = (hash & bucketMask) * WAYS;
+        final Entry<V> entry = new Entry<V>(key, key2, key3, hash, value);
+
+        for (int i = 0; i < WAYS; i++) {
+            Entry<V> current = slots.get(base + i);
+            if (current == null || current.matches(hash, key, key2, key3)) {
+                if (slots.compareAndSet(base + i, current, entry)) {
+                    return;
+                }
+            }
+        }
+
+        int victim = -1;
+        switch (evictionPolicy) {
+        case CLOCK:
+            // Clears the referenced flag of entries it passes over, so a full
+            // sweep always finds a victim on the second pass.
+            for (int i = 0; i < 2 * WAYS && victim < 0; i++) {
+                Entry<V> current = slots.get(base + (i & (WAYS - 1)));
+                if (current == null || !current.referenced) {
+                    victim = i & (WAYS - 1);
+                } else {
+                    current.referenced = false;
+                }
+            }
+            break;
+        default:
+            victim = (int) (System.nanoTime() ^ hash) & (WAYS - 1);
+            break;
+        }
+
+        Entry<V> current = slots.get(base + victim);
+        slots.compareAndSet(base + victim, current, entry);
+    }
+
+    /**
+     * Discards all the cached values.
+     */
+    void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * Returns the maximum number of cached values.
+     * 
+     * @return The capacity.
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Returns the number of cached values. Not atomic with respect to
+     * concurrent updates.
+     * 
+     * @return The size.
+     */
+    int size() {
+        int size = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the cached values. Not atomic with respect to concurrent
+     * updates.
+     * 
+     * @return A new list of the values.
+     */
+    List<V> values() {
+        List<V> values = new ArrayList<V>();
+        for (int i = 0; i < slots.length(); i++) {
+            Entry<V> entry = slots.get(i);
+            if (entry != null) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    private static int hash(final String key, final String key2,
+            final String key3) {
+        int h = key.hashCode();
+        if (key2 != null || key3 != null) {
+            h = 31 * h + (key2 != null ? key2.hashCode() : 0);
+            h = 31 * h + (key3 != null ? key3.hashCode() : 0);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static final class Entry<V> {
+        final String key;
+        final String key2;
+        final String key3;
+        final int hash;
+        final V value;
+
+        /**
+         * Set when the entry is hit; cleared by a {@link EvictionPolicy#CLOCK}
+         * sweep. Racy updates are benign.
+         */
+        volatile boolean referenced;
+
+        Entry(final String key, final String key2, final String key3,
+                final int hash, final V value) {
+            this.key = key;
+            this.key2 = key2;
+            this.key3 = key3;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        boolean matches(final int otherHash, final String otherKey,
+                final String otherKey2, final String otherKey3) {
+            return hash == otherHash && key.equals(otherKey)
+                    && equal(key2, otherKey2) && equal(key3, otherKey3);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * Matches origins by their components, (scheme, host, port), rather than as
+ * strings. Schemes and hosts are compared ASCII case in-sensitively, and a
+ * missing port is the default port of the scheme, so
+ * <code>https://a.com</code>, <code>https://a.com:443</code> and
+ * <code>HTTPS://A.COM</code> are the same origin.
+ * </p>
+ * 
+ * <p>
+ * An allowed origin may also name a set of schemes and a range of ports:
+ * <ul>
+ * <li><code>http|https://www.example.com</code>: either scheme, each on its
+ * default port.</li>
+ * <li><code>http://localhost:*</code>: any port.</li>
+ * <li><code>http://localhost:3000-3999</code>: a range of ports.</li>
+ * </ul>
+ * </p>
+ * 
+ * <p>
+ * An origin is parsed in place and looked up in per-component tables: its
+ * scheme and host each in a {@link HeaderNameSet}, then the few (scheme, port
+ * range) rules of that host are scanned. Matching costs about a single hash
+ * lookup, and doesn't allocate. Instances are immutable.
+ * </p>
+ */
+final class StructuredOriginMatcher {
+    /**
+     * Port of an origin without a port, whose scheme has no default port.
+     */
+    static final int NO_PORT = -1;
+
+    private static final int MAX_PORT = 65535;
+
+    private static final String SCHEME_SEPARATOR = "://";
+
+    private final HeaderNameSet schemes;
+
+    /**
+     * Default port of each scheme, by its position in {@link #schemes}.
+     */
+    private final int[] defaultPorts;
+
+    private final HeaderNameSet hosts;
+
+    /**
+     * The rules of each host, by its position in {@link #hosts}, as
+     * consecutive (scheme position, lowest port, highest port) triples.
+     */
+    private final int[][] rules;
+
+    /**
+     * Compiles the given allowed origins.
+     * 
+     * @param origins
+     *            The allowed origins.
+     * @throws IllegalArgumentException
+     *             If an origin isn't structured, as per
+     *             {@link #isStructured(String)}.
+     */
+    StructuredOriginMatcher(final Collection<String> origins) {
+        List<Rule> parsed = new ArrayList<Rule>();
+        Set<String> schemeNames = new LinkedHashSet<String>();
+        Set<String> hostNames = new LinkedHashSet<String>();
+        for (String origin : origins) {
+            Rule rule = parse(origin);
+            if (rule == null) {
+                throw new IllegalArgumentException("Not a structured origin: "
+                        + origin);
+            }
+            parsed.add(rule);
+            for (String scheme : rule.schemes) {
+                schemeNames.add(HeaderNameSet.toLowerCase(scheme));
+            }
+            hostNames.add(HeaderNameSet.toLowerCase(rule.host));
+        }
+        this.schemes = new HeaderNameSet(schemeNames);
+        this.hosts = new HeaderNameSet(hostNames);
+
+        this.defaultPorts = new int[schemes.size()];
+        int position = 0;
+        for (String scheme : schemes) {
+            defaultPorts[position++] =
+                    defaultPort(scheme, 0, scheme.length());
+        }
+
+        this.rules = new int[hosts.size()][];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = new int[0];
+        }
+        for (Rule rule : parsed) {
+            int host = hosts.indexOf(rule.host, 0, rule.host.length());
+            for (String scheme : rule.schemes) {
+                int schemePosition = schemes.indexOf(scheme, 0,
+                        scheme.length());
+                int low = rule.lowPort;
+                int high = rule.highPort;
+                if (low == NO_PORT && high == NO_PORT) {
+                    // Normalized to the default port of each scheme.
+                    low = defaultPorts[schemePosition];
+                    high = low;
+                }
+                int[] hostRules = rules[host];
+                int[] newRules = new int[hostRules.length + 3];
+                System.arraycopy(hostRules, 0, newRules, 0, hostRules.length);
+                newRules[hostRules.length] = schemePosition;
+                newRules[hostRules.length + 1] = low;
+                newRules[hostRules.length + 2] = high;
+                rules[host] = newRules;
+            }
+        }
+    }
+
+    /**
+     * Checks if an allowed origin, as configured, can be matched by
+     * components, i.e. it's <code>schemes "://" host [ ":" ports ]</code>
+     * where schemes is one or more schemes separated by '|', host is a domain
+     * name, an IPv4 address or a bracketed IP-literal, and ports is a port,
+     * a range of ports <code>low "-" high</code>, or '*'.
+     * 
+     * @param origin
+     *            The configured origin.
+     * @return <code>true</code> if it is; <code>false</code> otherwise, e.g.
+     *         for "null", a file origin, or a wildcard pattern.
+     */
+    static boolean isStructured(final String origin) {
+        return parse(origin) != null;
+    }
+
+    /**
+     * Returns the canonical form of an allowed origin that names a single
+     * scheme and a single port, or of an origin: its scheme and host
+     * lower-cased, and its port omitted if it's the default port of the
+     * scheme. Two such origins match by components if, and only if, their
+     * canonical forms are equal.
+     * 
+     * @param origin
+     *            The origin.
+     * @return The canonical form; <code>null</code> if the origin isn't
+     *         structured, names several schemes or ports, or isn't ASCII.
+     */
+    static String canonicalize(final String origin) {
+        Rule rule = parse(origin);
+        if (rule == null || rule.schemes.size() != 1
+                || rule.lowPort != rule.highPort) {
+            return null;
+        }
+        String scheme = HeaderNameSet.toLowerCase(rule.schemes.get(0));
+        StringBuilder canonical =
+                new StringBuilder(origin.length()).append(scheme)
+                        .append(SCHEME_SEPARATOR)
+                        .append(HeaderNameSet.toLowerCase(rule.host));
+        if (rule.lowPort != NO_PORT
+                && rule.lowPort != defaultPort(scheme, 0, scheme.length())) {
+            canonical.append(':').append(rule.lowPort);
+        }
+        for (int i = 0; i < canonical.length(); i++) {
+            if (canonical.charAt(i) >= 0x80) {
+                return null;
+            }
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * Checks if an origin matches any allowed origin.
+     * 
+     * @param origin
+     *            The origin.
+     * @return <code>true</code> if it does; <code>false</code> otherwise.
+     */
+    boolean matches(final String origin) {
+        final int schemeEnd = origin.indexOf(SCHEME_SEPARATOR);
+        if (schemeEnd <= 0) {
+            return false;
+        }
+        final int scheme = schemes.indexOf(origin, 0, schemeEnd);
+        if (scheme < 0) {
+            return false;
+        }
+
+        final int length = origin.length();
+        final int hostStart = schemeEnd + SCHEME_SEPARATOR.length();
+        final int hostEnd = hostEnd(origin, hostStart, length);
+        if (hostEnd < 0) {
+            return false;
+        }
+        int port;
+        if (hostEnd == length) {
+            port = defaultPorts[scheme];
+        } else if (origin.charAt(hostEnd) == ':') {
+            port = parsePort(origin, hostEnd + 1, length);
+            if (port < 0) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+
+        final int host = hosts.indexOf(origin, hostStart, hostEnd);
+        if (host < 0) {
+            return false;
+        }
+        final int[] hostRules = rules[host];
+        for (int i = 0; i < hostRules.length; i += 3) {
+            if (hostRules[i] == scheme && port >= hostRules[i + 1]
+                    && port <= hostRules[i + 2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the default port of a scheme.
+     * 
+     * @param chars
+     *            The {@link CharSequence} containing the scheme.
+     * @param start
+     *            Index of the first character of the scheme.
+     * @param end
+     *            Index after the last character of the scheme.
+     * @return The port; {@link #NO_PORT} if the scheme has none.
+     */
+    static int defaultPort(final CharSequence chars, final int start,
+            final int end) {
+        switch (end - start) {
+        case 2:
+            return regionMatches("ws", chars, start) ? 80 : NO_PORT;
+        case 3:
+            if (regionMatches("wss", chars, start)) {
+                return 443;
+            }
+            return regionMatches("ftp", chars, start) ? 21 : NO_PORT;
+        case 4:
+            return regionMatches("http", chars, start) ? 80 : NO_PORT;
+        case 5:
+            return regionMatches("https", chars, start) ? 443 : NO_PORT;
+        default:
+            return NO_PORT;
+        }
+    }
+
+    private static boolean regionMatches(final String lowerCaseName,
+            final CharSequence chars, final int start) {
+        for (int i = 0; i < lowerCaseName.length(); i++) {
+            char c = chars.charAt(start + i);
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            if (c != lowerCaseName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the end of the host that starts at <code>hostStart</code>.
+     * 
+     * @return Index after the host; -1 if it's empty, or not a domain name,
+     *         IPv4 address or bracketed IP-literal.
+     */
+    private static int hostEnd(final String value, final int hostStart,
+            final int length) {
+        if (hostStart < length && value.charAt(hostStart) == '[') {
+            int close = value.indexOf(']', hostStart);
+            return close < 0 ? -1 : close + 1;
+        }
+        int i = hostStart;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c == ':') {
+                break;
+            }
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '.'
+                    || c == '_')) {
+                return -1;
+            }
+            i++;
+        }
+        return i == hostStart ? -1 : i;
+    }
+
+    /**
+     * Parses a port from <code>start</code> to <code>end</code>.
+     * 
+     * @return The port; -1 if it's malformed or out of range.
+     */
+    private static int parsePort(final String value, final int start,
+            final int end) {
+        if (start == end || end - start > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port <= MAX_PORT ? port : -1;
+    }
+
+    /**
+     * Parses an allowed origin, as configured.
+     * 
+     * @return The {@link Rule}; <code>null</code> if it's not structured.
+     */
+    private static Rule parse(final String origin) {
+        if (origin == null) {
+            return null;
+        }
+        final int schemeEnd = origin.indexOf(SCHEME_SEPARATOR);
+        if (schemeEnd <= 0) {
+            return null;
+        }
+        List<String> schemeList = new ArrayList<String>();
+        int schemeStart = 0;
+        for (int i = 0; i <= schemeEnd; i++) {
+            if (i == schemeEnd || origin.charAt(i) == '|') {
+                if (!isScheme(origin, schemeStart, i)) {
+                    return null;
+                }
+                schemeList.add(origin.substring(schemeStart, i));
+                schemeStart = i + 1;
+            }
+        }
+
+        final int length = origin.length();
+        final int hostStart = schemeEnd + SCHEME_SEPARATOR.length();
+        final int hostEnd = hostEnd(origin, hostStart, length);
+        if (hostEnd < 0) {
+            return null;
+        }
+        int lowPort = NO_PORT;
+        int highPort = NO_PORT;
+        if (hostEnd < length) {
+            if (origin.charAt(hostEnd) != ':') {
+                return null;
+            }
+            int portStart = hostEnd + 1;
+            int dash = origin.indexOf('-', portStart);
+            if (length - portStart == 1 && origin.charAt(portStart) == '*') {
+                lowPort = NO_PORT;
+                highPort = MAX_PORT;
+            } else if (dash > 0) {
+                lowPort = parsePort(origin, portStart, dash);
+                highPort = parsePort(origin, dash + 1, length);
+                if (lowPort < 0 || highPort < lowPort) {
+                    return null;
+                }
+            } else {
+                lowPort = parsePort(origin, portStart, length);
+                highPort = lowPort;
+                if (lowPort < 0) {
+                    return null;
+                }
+            }
+        }
+        return new Rule(schemeList, origin.substring(hostStart, hostEnd),
+                lowPort, highPort);
+    }
+
+    private static boolean isScheme(final String value, final int start,
+            final int end) {
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            boolean alpha = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+            if (!(alpha || (i > start && ((c >= '0' && c <= '9')
+                    || c == '+' || c == '-' || c == '.')))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A parsed allowed origin. Both ports are {@link #NO_PORT} if none was
+     * given.
+     */
+    private static final class Rule {
+        final List<String> schemes;
+        final String host;
+        final int lowPort;
+        final int highPort;
+
+        Rule(final List<String> schemes, final String host, final int lowPort,
+                final int highPort) {
+            this.schemes = schemes;
+            this.host = host;
+            this.lowPort = lowPort;
+            this.highPort = highPort;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Adds tokens to the 'Vary' response header, merging them into the values
+ * already set, without duplicating a token, case in-sensitively, nor adding
+ * any to a '*' value. Values already set can only be read with
+ * <code>HttpServletResponse.getHeaders(String)</code> of Servlet 3.0
+ * containers; the filter is built against the Servlet 2.5 API, so it's looked
+ * up once, reflectively. In a Servlet 2.5 container, tokens are added as
+ * another 'Vary' header, which caches treat alike.
+ * </p>
+ */
+final class VaryHeader {
+    /**
+     * Merges into the container's responses.
+     */
+    static final VaryHeader SERVLET = new VaryHeader(HttpServletResponse.class);
+
+    static final String NAME = "Vary";
+
+    private final Class<?> responseType;
+
+    private final Method getHeaders;
+
+    /**
+     * @param responseType
+     *            The response type declaring <code>getHeaders(String)</code>.
+     */
+    VaryHeader(final Class<?> responseType) {
+        Method getHeadersMethod;
+        try {
+            getHeadersMethod = responseType.getMethod("getHeaders",
+                    String.class);
+        } catch (NoSuchMethodException e) {
+            // Servlet 2.5
+            getHeadersMethod = null;
+        }
+        this.responseType = responseType;
+        this.getHeaders = getHeadersMethod;
+    }
+
+    /**
+     * Adds tokens to the 'Vary' header of a response, unless they're already
+     * listed.
+     * 
+     * @param response
+     *            The response.
+     * @param tokens
+     *            The comma separated tokens, e.g. <code>Origin</code>.
+     */
+    void addTokens(final HttpServletResponse response, final String tokens) {
+        if (!response.containsHeader(NAME)) {
+            response.addHeader(NAME, tokens);
+            return;
+        }
+        Collection<?> values = getHeaders(response);
+        if (values == null) {
+            response.addHeader(NAME, tokens);
+            return;
+        }
+        StringBuilder merged = new StringBuilder();
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+            String existing = value.toString().trim();
+            if (existing.equals("*")) {
+                // Varies on everything already.
+                return;
+            }
+            if (existing.length() > 0) {
+                if (merged.length() > 0) {
+                    merged.append(", ");
+                }
+                merged.append(existing);
+            }
+        }
+        final String existing = merged.toString();
+        boolean missing = false;
+        int start = 0;
+        while (start < tokens.length()) {
+            int end = tokens.indexOf(',', start);
+            if (end < 0) {
+                end = tokens.length();
+            }
+            String token = tokens.substring(start, end).trim();
+            if (token.length() > 0 && !containsToken(existing, token)) {
+                if (merged.length() > 0) {
+                    merged.append(", ");
+                }
+                merged.append(token);
+                missing = true;
+            }
+            start = end + 1;
+        }
+        if (missing) {
+            response.setHeader(NAME, merged.toString());
+        }
+    }
+
+    /**
+     * Checks if a comma separated list contains a token, case in-sensitively.
+     */
+    static boolean containsToken(final String list, final String token) {
+        int start = 0;
+        while (start < list.length()) {
+            int end = list.indexOf(',', start);
+            if (end < 0) {
+                end = list.length();
+            }
+            int tokenStart = start;
+            int tokenEnd = end;
+            while (tokenStart < tokenEnd
+                    && Character.isWhitespace(list.charAt(tokenStart))) {
+                tokenStart++;
+            }
+            while (tokenEnd > tokenStart
+                    && Character.isWhitespace(list.charAt(tokenEnd - 1))) {
+                tokenEnd--;
+            }
+            if (tokenEnd - tokenStart == token.length()
+                    && list.regionMatches(true, tokenStart, token, 0,
+                            token.length())) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private Collection<?> getHeaders(final HttpServletResponse response) {
+        if (getHeaders == null || !responseType.isInstance(response)) {
+            return null;
+        }
+        try {
+            return (Collection<?>) getHeaders.invoke(response, NAME);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>
+ * A response passed down the filter chain, that keeps the filter's tokens in
+ * the 'Vary' response header: the application's 'Vary' values are merged
+ * with them, as per {@link VaryHeader}, rather than replacing them.
+ * </p>
+ */
+final class VaryMergingResponse extends HttpServletResponseWrapper {
+    private final HttpServletResponse response;
+
+    private final VaryHeader varyHeader;
+
+    private final String tokens;
+
+    /**
+     * @param response
+     *            The wrapped response, whose 'Vary' header already lists the
+     *            tokens.
+     * @param varyHeader
+     *            The {@link VaryHeader} merging values.
+     * @param tokens
+     *            The comma separated tokens to keep, e.g. <code>Origin</code>.
+     */
+    VaryMergingResponse(final HttpServletResponse response,
+            final VaryHeader varyHeader, final String tokens) {
+        super(response);
+        this.response = response;
+        this.varyHeader = varyHeader;
+        this.tokens = tokens;
+    }
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        super.setHeader(name, value);
+        if (VaryHeader.NAME.equalsIgnoreCase(name)) {
+            varyHeader.addTokens(response, tokens);
+        }
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        if (VaryHeader.NAME.equalsIgnoreCase(name) && value != null) {
+            varyHeader.addTokens(response, value);
+        } else {
+            super.addHeader(name, value);
+        }
+    }
+
+    String getTokens() {
+        return tokens;
+    }
+}
@@ -15,12 +15,28 @@
  */
 package org.ebaysf.web.cors;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -1419,6 +1435,2253 @@ public class CORSFilterTest {
                 .getAttribute(CORSFilter.HTTP_REQUEST_ATTRIBUTE_REQUEST_TYPE));
     }
 
+    /**
+     * Tests that a pre-flight request is evaluated once, capturing the CORS
+     * request headers along with the request type.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testEvaluatePreFlightRequest() throws ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTP_TOMCAT_APACHE_ORG);
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD,
+                "PUT");
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS,
+                "Content-Type");
+        request.setMethod("OPTIONS");
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        CORSRequestEvaluation evaluation = corsFilter.evaluate(request);
+        Assert.assertEquals(CORSFilter.CORSRequestType.PRE_FLIGHT,
+                evaluation.getRequestType());
+        Assert.assertEquals(TestConfigs.HTTP_TOMCAT_APACHE_ORG,
+                evaluation.getOrigin());
+        Assert.assertEquals("OPTIONS", evaluation.getMethod());
+        Assert.assertEquals("PUT", evaluation.getAccessControlRequestMethod());
+        Assert.assertEquals("Content-Type",
+                evaluation.getAccessControlRequestHeaders());
+    }
+
+    @Test
+    public void testEvaluateNonCORSRequest() throws ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        CORSRequestEvaluation evaluation = corsFilter.evaluate(request);
+        Assert.assertEquals(CORSFilter.CORSRequestType.NOT_CORS,
+                evaluation.getRequestType());
+        Assert.assertNull(evaluation.getOrigin());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHandleSimpleCORSNullEvaluation() throws ServletException,
+            IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        corsFilter.handleSimpleCORS(request, response, filterChain, null);
+    }
+
+    @Test
+    public void testValidOriginWithPort() {
+        Assert.assertTrue(CORSFilter.isValidOrigin("http://www.w3.org:8080"));
+    }
+
+    @Test
+    public void testValidOriginIPLiteral() {
+        Assert.assertTrue(CORSFilter.isValidOrigin("http://[::1]:8080"));
+    }
+
+    @Test
+    public void testInValidOriginNoScheme() {
+        Assert.assertFalse(CORSFilter.isValidOrigin("www.w3.org"));
+    }
+
+    @Test
+    public void testInValidOriginEmptyHost() {
+        Assert.assertFalse(CORSFilter.isValidOrigin("http://"));
+    }
+
+    @Test
+    public void testInValidOriginEmptyPort() {
+        Assert.assertFalse(CORSFilter.isValidOrigin("http://www.w3.org:"));
+    }
+
+    @Test
+    public void testInValidOriginPath() {
+        Assert.assertFalse(CORSFilter.isValidOrigin("http://www.w3.org/TR"));
+    }
+
+    @Test
+    public void testInValidOriginUserInfo() {
+        Assert.assertFalse(CORSFilter.isValidOrigin("http://user@www.w3.org"));
+    }
+
+    @Test
+    public void testInValidOriginFileCRLF() {
+        Assert.assertFalse(CORSFilter.isValidOrigin("file://\r\n"));
+    }
+
+    /**
+     * Tests that decisions for a repeated origin are served from the origin
+     * decision cache, with the same outcome as without the cache.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testDoFilterWithOriginCache() throws IOException,
+            ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "16"));
+        Assert.assertEquals(16, corsFilter.getOriginCacheCapacity());
+
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    TestConfigs.HTTPS_WWW_APACHE_ORG);
+            request.setMethod("GET");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            corsFilter.doFilter(request, response, filterChain);
+            Assert.assertEquals(TestConfigs.HTTPS_WWW_APACHE_ORG,
+                    response.getHeader(
+                            CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+
+            request = new MockHttpServletRequest();
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    "http://www.example.com");
+            request.setMethod("GET");
+            response = new MockHttpServletResponse();
+            corsFilter.doFilter(request, response, filterChain);
+            Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                    response.getStatus());
+
+            request = new MockHttpServletRequest();
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    "http://www.w3.org%0d%0a");
+            request.setMethod("GET");
+            Assert.assertEquals(CORSFilter.CORSRequestType.INVALID_CORS,
+                    corsFilter.checkRequestType(request));
+        }
+    }
+
+    @Test(expected = ServletException.class)
+    public void testOriginCacheInvalidEviction() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "16",
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_EVICTION, "fifo"));
+    }
+
+    @Test
+    public void testOriginDecisionCacheEviction() {
+        OriginDecision decision = new OriginDecision(true, true, "*");
+        SetAssociativeCache.EvictionPolicy[] evictionPolicies =
+                SetAssociativeCache.EvictionPolicy.values();
+        for (SetAssociativeCache.EvictionPolicy evictionPolicy
+                : evictionPolicies) {
+            OriginDecisionCache cache =
+                    new OriginDecisionCache(8, evictionPolicy);
+            for (int i = 0; i < 100; i++) {
+                cache.put("http://host" + i + ".example.com", decision);
+            }
+            Assert.assertTrue(cache.size() <= cache.capacity());
+            cache.put(TestConfigs.HTTPS_WWW_APACHE_ORG, decision);
+            Assert.assertSame(decision,
+                    cache.get(TestConfigs.HTTPS_WWW_APACHE_ORG));
+            cache.clear();
+            Assert.assertNull(cache.get(TestConfigs.HTTPS_WWW_APACHE_ORG));
+            Assert.assertEquals(0, cache.size());
+        }
+    }
+
+    /**
+     * Tests the values of response headers that only depend on configuration,
+     * for a pre-flight request.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testDoFilterPreflightConfiguredHeaderValues()
+            throws IOException, ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD,
+                "PUT");
+        request.setMethod("OPTIONS");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSecureFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_HEADERS, "X-Ping"));
+        corsFilter.doFilter(request, response, filterChain);
+
+        Assert.assertEquals(CORSFilter.DEFAULT_PREFLIGHT_MAXAGE,
+                response.getHeader(
+                        CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_MAX_AGE));
+        Assert.assertEquals("x-ping", response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_HEADERS));
+    }
+
+    @Test
+    public void testDoFilterSimpleExposedHeadersValue() throws IOException,
+            ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setMethod("GET");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getFilterConfigWithExposedHeaders());
+        corsFilter.doFilter(request, response, filterChain);
+
+        Assert.assertEquals(TestConfigs.EXPOSED_HEADERS, response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_EXPOSE_HEADERS));
+
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertNull(response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_EXPOSE_HEADERS));
+    }
+
+    /**
+     * Tests that 'Access-Control-Request-Headers' tokens are matched case
+     * in-sensitively, ignoring surrounding whitespace and empty tokens.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testDoFilterPreflightRequestHeadersTokens()
+            throws IOException, ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD,
+                "POST");
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS,
+                " content-TYPE ,,\tX-Requested-With, ORIGIN,  ");
+        request.setMethod("OPTIONS");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertEquals(TestConfigs.HTTPS_WWW_APACHE_ORG,
+                response.getHeader(
+                        CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS,
+                "Content-Type,Content-Typ");
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                response.getStatus());
+    }
+
+    @Test
+    public void testAllowedHttpHeadersCaseInsensitive() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        Assert.assertTrue(corsFilter.getAllowedHttpHeaders().contains(
+                "CONTENT-TYPE"));
+        Assert.assertTrue(corsFilter.getAllowedHttpHeaders().contains(
+                "x-requested-with"));
+        Assert.assertFalse(corsFilter.getAllowedHttpHeaders().contains(
+                "X-Custom"));
+    }
+
+    @Test
+    public void testHeaderNameSetRangeLookup() {
+        HeaderNameSet headerNames =
+                new HeaderNameSet(Arrays.asList("Content-Type", "X-Ping",
+                        "x-ping"));
+        Assert.assertEquals(2, headerNames.size());
+        Assert.assertTrue(headerNames.contains("a,X-PING,b", 2, 8));
+        Assert.assertFalse(headerNames.contains("a,X-PING,b", 2, 7));
+        Assert.assertFalse(HeaderNameSet.EMPTY.contains("X-Ping"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAllowedHttpHeadersImmutable() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        corsFilter.getAllowedHttpHeaders().add("X-Custom");
+    }
+
+    /**
+     * PATCH is a non-simple method, that can be pre-flighted and allowed.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testDoFilterPATCH() throws IOException, ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_METHODS, "GET,PATCH"));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD,
+                "PATCH");
+        request.setMethod("OPTIONS");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertEquals("PATCH", response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS));
+
+        request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setMethod("PATCH");
+        Assert.assertEquals(CORSFilter.CORSRequestType.ACTUAL,
+                corsFilter.checkRequestType(request));
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertEquals(TestConfigs.HTTPS_WWW_APACHE_ORG,
+                response.getHeader(
+                        CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+    }
+
+    /**
+     * An extension method is only known, if it's one of the allowed methods.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testCheckRequestTypeExtensionMethod() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_METHODS, "GET,PROPFIND"));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setMethod("PROPFIND");
+        Assert.assertEquals(CORSFilter.CORSRequestType.ACTUAL,
+                corsFilter.checkRequestType(request));
+
+        request.setMethod("MKCOL");
+        Assert.assertEquals(CORSFilter.CORSRequestType.INVALID_CORS,
+                corsFilter.checkRequestType(request));
+
+        request.setMethod("get");
+        Assert.assertEquals(CORSFilter.CORSRequestType.INVALID_CORS,
+                corsFilter.checkRequestType(request));
+    }
+
+    /**
+     * Media type parameters don't make a POST request non-simple.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testCheckSimpleRequestTypeContentTypeParameters()
+            throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTP_TOMCAT_APACHE_ORG);
+        request.setMethod("POST");
+
+        String[] simpleContentTypes =
+                { "text/plain; charset=UTF-8", " Text/Plain ",
+                        "multipart/form-data; boundary=something",
+                        "APPLICATION/X-WWW-FORM-URLENCODED;charset=utf-8" };
+        for (String contentType : simpleContentTypes) {
+            request.setContentType(contentType);
+            Assert.assertEquals(contentType,
+                    CORSFilter.CORSRequestType.SIMPLE,
+                    corsFilter.checkRequestType(request));
+        }
+
+        String[] actualContentTypes =
+                { "application/json", "text/plain-x", "text/", "/plain",
+                        "text/plain; charset=\"UTF-8\"", "text/plain\r\n" };
+        for (String contentType : actualContentTypes) {
+            request.setContentType(contentType);
+            Assert.assertEquals(contentType,
+                    CORSFilter.CORSRequestType.ACTUAL,
+                    corsFilter.checkRequestType(request));
+        }
+    }
+
+    /**
+     * Tests that rejected requests are logged off the request thread, and
+     * rate limited per origin.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test
+    public void testAsyncRejectionLogging() throws IOException,
+            ServletException, InterruptedException {
+        MockServletContext servletContext = new MockServletContext();
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withServletContext(
+                TestConfigs.withInitParameters(
+                        TestConfigs.getSecureFilterConfig(),
+                        CORSFilter.PARAM_CORS_LOGGING_ASYNC, "true",
+                        CORSFilter.PARAM_CORS_LOGGING_RATE_LIMIT, "2"),
+                servletContext));
+
+        for (int i = 0; i < 5; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    "http://www.example.com");
+            request.setMethod("GET");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            corsFilter.doFilter(request, response, filterChain);
+            Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                    response.getStatus());
+        }
+        corsFilter.destroy();
+
+        List<String> messages = servletContext.getLogMessages();
+        Assert.assertEquals(3, messages.size());
+        Assert.assertEquals(
+                "Invalid CORS request; Origin=http://www.example.com;Method=GET",
+                messages.get(0));
+        Assert.assertTrue(messages.get(2).startsWith("Suppressed 3 "));
+        Assert.assertEquals(0, corsFilter.getDroppedLogMessageCount());
+    }
+
+    @Test
+    public void testSyncRejectionLogging() throws IOException,
+            ServletException {
+        MockServletContext servletContext = new MockServletContext();
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withServletContext(
+                TestConfigs.getSecureFilterConfig(), servletContext));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                "http://www.example.com");
+        request.setMethod("GET");
+        corsFilter.doFilter(request, new MockHttpServletResponse(),
+                filterChain);
+        Assert.assertEquals(1, servletContext.getLogMessages().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAllowedOriginsImmutable() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        corsFilter.getAllowedOrigins().clear();
+    }
+
+    /**
+     * Tests that a request is handled with the configuration it was evaluated
+     * against, even if the filter is re-initialized in between.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testEvaluationKeepsPolicySnapshot() throws IOException,
+            ServletException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                "http://www.example.com");
+        request.setMethod("GET");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getDefaultFilterConfig());
+        CORSRequestEvaluation evaluation = corsFilter.evaluate(request);
+
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        Assert.assertFalse(corsFilter.isAnyOriginAllowed());
+        corsFilter.handleSimpleCORS(request, response, filterChain,
+                evaluation);
+        Assert.assertEquals("http://www.example.com", response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                response.getStatus());
+    }
+
+    /**
+     * Tests that an invalid configuration leaves the current one in place.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testInvalidReconfigurationKeepsPolicy()
+            throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        try {
+            corsFilter.init(TestConfigs.getFilterConfigInvalidMaxPreflightAge());
+            Assert.fail("Expected ServletException");
+        } catch (ServletException e) {
+            // Expected
+        }
+        Assert.assertFalse(corsFilter.isAnyOriginAllowed());
+        Assert.assertTrue(corsFilter.getAllowedOrigins().contains(
+                TestConfigs.HTTPS_WWW_APACHE_ORG));
+    }
+
+
+    /**
+     * Tests wildcard subdomain patterns in allowed origins.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testWildcardSubdomainOrigins() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS,
+                "https://*.example.com, https://*.example.com:8443,"
+                        + " http://www.w3.org"));
+        Assert.assertEquals(3, corsFilter.getAllowedOrigins().size());
+
+        String[] allowed = { "https://a.example.com",
+                "https://tenant-42.eu.example.com",
+                "https://A.Example.COM", "https://a.example.com:8443",
+                "http://www.w3.org" };
+        for (String origin : allowed) {
+            Assert.assertEquals(origin, CORSFilter.CORSRequestType.SIMPLE,
+                    corsFilter.checkRequestType(getRequest(origin)));
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertEquals(origin, origin, doFilterGet(corsFilter,
+                    origin, response));
+        }
+
+        String[] denied = { "https://example.com", "http://a.example.com",
+                "https://a.example.com:9443", "https://a.example.com.evil.org",
+                "https://aexample.com", "https://*.example.com",
+                "https://evil..example.com", "https://a..b.example.com",
+                "http://a.www.w3.org" };
+        for (String origin : denied) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertNull(origin, doFilterGet(corsFilter, origin,
+                    response));
+            Assert.assertEquals(origin, HttpServletResponse.SC_FORBIDDEN,
+                    response.getStatus());
+        }
+    }
+
+    @Test
+    public void testOriginPatternTrie() {
+        OriginPatternTrie trie = new OriginPatternTrie(Arrays.asList(
+                "https://*.example.com", "https://*.b.example.com:8443",
+                "HTTP://*.Example.Org"));
+        Assert.assertEquals(3, trie.size());
+        Assert.assertTrue(trie.matches("https://a.example.com"));
+        Assert.assertTrue(trie.matches("https://a.b.example.com:8443"));
+        Assert.assertTrue(trie.matches("http://x.y.example.org"));
+        Assert.assertFalse(trie.matches("https://b.example.com:8443"));
+        Assert.assertFalse(trie.matches("https://.example.com"));
+        Assert.assertFalse(trie.matches("https://evil..example.com"));
+        Assert.assertFalse(trie.matches("https://a..b.example.com"));
+        Assert.assertFalse(trie.matches("https://.a.example.com"));
+        Assert.assertFalse(trie.matches("https://a.example.com."));
+        Assert.assertFalse(trie.matches("https://a.example.com:"));
+        Assert.assertFalse(trie.matches("https://[::1]:443"));
+        Assert.assertFalse(trie.matches("null"));
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInvalidWildcardOrigin() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS,
+                "https://*.example..com"));
+    }
+
+    private static MockHttpServletRequest getRequest(final String origin) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN, origin);
+        request.setMethod("GET");
+        return request;
+    }
+
+    /**
+     * Runs a GET request from an origin through the filter.
+     * 
+     * @return Value of 'Access-Control-Allow-Origin' response header.
+     */
+    private String doFilterGet(final CORSFilter corsFilter,
+            final String origin, final MockHttpServletResponse response) {
+        try {
+            corsFilter.doFilter(getRequest(origin), response, filterChain);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN);
+    }
+
+
+    /**
+     * Tests regex origin rules, alongside exact allowed origins.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testRegexOrigins() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_REGEX,
+                "https://app-[0-9]+\\.partner\\.net\n"
+                        + "  ^https?://(dev|qa)\\.example\\.com(:\\d{2,5})?$"));
+        Assert.assertEquals(2, corsFilter.getAllowedOriginRegexes().size());
+
+        String[] allowed = { "https://app-1.partner.net",
+                "https://app-2048.partner.net", "http://dev.example.com",
+                "https://qa.example.com:8443",
+                TestConfigs.HTTPS_WWW_APACHE_ORG };
+        for (String origin : allowed) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertEquals(origin, origin, doFilterGet(corsFilter,
+                    origin, response));
+        }
+
+        String[] denied = { "https://app-.partner.net",
+                "https://app-1.partner.net.evil.org",
+                "https://app-1xpartner.net", "http://prod.example.com",
+                "https://qa.example.com:8" };
+        for (String origin : denied) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertNull(origin, doFilterGet(corsFilter, origin,
+                    response));
+        }
+    }
+
+    @Test
+    public void testOriginRegexSetReportsFirstMatchingRule() {
+        OriginRegexSet regexes = new OriginRegexSet(Arrays.asList(
+                "https://a\\.example\\.com", "https://[^.]+\\.example\\.com",
+                "(?:http|https)://.*", "x{2,3}|y*z?", "[\\w-]{1,3}[]a-]"));
+        Assert.assertEquals(0, regexes.match("https://a.example.com"));
+        Assert.assertEquals(1, regexes.match("https://b.example.com"));
+        Assert.assertEquals(2, regexes.match("https://a.b.example.com"));
+        Assert.assertEquals(3, regexes.match("xxx"));
+        Assert.assertEquals(3, regexes.match(""));
+        Assert.assertEquals(3, regexes.match("yyyz"));
+        Assert.assertEquals(-1, regexes.match("xxxx"));
+        Assert.assertEquals(4, regexes.match("a_-]"));
+        Assert.assertEquals(4, regexes.match("b-"));
+        Assert.assertEquals(-1, regexes.match("ftp://a.example.com"));
+        Assert.assertEquals(-1, regexes.match("https://é.example.com"));
+    }
+
+    /**
+     * A rule that backtracks exponentially with {@link java.util.regex.Pattern}
+     * matches in linear time.
+     */
+    @Test(timeout = 5000)
+    public void testOriginRegexSetNoBacktracking() {
+        OriginRegexSet regexes =
+                new OriginRegexSet(Arrays.asList("(a+)+b", "(a|aa)+c"));
+        StringBuilder origin = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            origin.append('a');
+        }
+        Assert.assertEquals(-1, regexes.match(origin.toString()));
+        Assert.assertEquals(1, regexes.match(origin.append('c').toString()));
+    }
+
+    @Test
+    public void testOriginRegexSetUnsupported() {
+        String[] unsupported = { "(a", "a)", "*a", "(?=a)", "(a)\\1",
+                "a{3,2}", "[a-", "a\\", "a{1000}", "a^b" };
+        for (String regex : unsupported) {
+            try {
+                new OriginRegexSet(Arrays.asList(regex));
+                Assert.fail(regex);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Nested bounded quantifiers are rejected once their expansion exceeds
+     * the NFA bound, rather than exhausting the heap.
+     */
+    @Test(timeout = 5000)
+    public void testOriginRegexSetNestedQuantifiers() {
+        String[] nested = { "https://((a{255}){255}){255}\\.x",
+                "https://(a{2,255}){100}\\.x" };
+        for (String regex : nested) {
+            try {
+                new OriginRegexSet(Arrays.asList(regex));
+                Assert.fail(regex);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains(
+                        String.valueOf(OriginRegexSet.MAX_NFA_STATES)));
+            }
+        }
+        Assert.assertEquals(0, new OriginRegexSet(
+                Arrays.asList("https://(a{2}){3}\\.x")).match(
+                "https://aaaaaa.x"));
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInvalidRegexOrigin() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_REGEX, "https://(a"));
+    }
+
+
+    /**
+     * Tests that allowed origins are matched by scheme, host and port, with
+     * default ports, scheme sets and port ranges.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testStructuredOrigins() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS,
+                "https://a.com, http|https://www.w3.org:8080,"
+                        + " http://localhost:*, http://127.0.0.1:3000-3999,"
+                        + " https://*.example.com, null"));
+
+        String[] allowed = { "https://a.com", "https://a.com:443",
+                "HTTPS://A.COM", "http://www.w3.org:8080",
+                "https://www.w3.org:8080", "http://localhost",
+                "http://localhost:5173", "http://127.0.0.1:3000",
+                "http://127.0.0.1:3999", "https://b.example.com:443",
+                "null" };
+        for (String origin : allowed) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertEquals(origin, origin, doFilterGet(corsFilter,
+                    origin, response));
+        }
+
+        String[] denied = { "http://a.com", "https://a.com:8443",
+                "https://a.com.evil.org", "http://www.w3.org",
+                "https://localhost:5173", "http://127.0.0.1:4000",
+                "http://127.0.0.1", "https://b.example.com:8443" };
+        for (String origin : denied) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertNull(origin, doFilterGet(corsFilter, origin,
+                    response));
+        }
+    }
+
+    @Test
+    public void testStructuredOriginMatcher() {
+        Assert.assertFalse(StructuredOriginMatcher.isStructured("null"));
+        Assert.assertFalse(StructuredOriginMatcher.isStructured("file://"));
+        Assert.assertFalse(StructuredOriginMatcher
+                .isStructured("https://*.example.com"));
+        Assert.assertFalse(StructuredOriginMatcher
+                .isStructured("https://a.com/path"));
+        Assert.assertFalse(StructuredOriginMatcher
+                .isStructured("https://a.com:2-1"));
+        Assert.assertFalse(StructuredOriginMatcher
+                .isStructured("https://a.com:65536"));
+
+        StructuredOriginMatcher matcher =
+                new StructuredOriginMatcher(Arrays.asList(
+                        "wss://[::1]", "custom://host", "custom://host:9"));
+        Assert.assertTrue(matcher.matches("wss://[::1]:443"));
+        Assert.assertFalse(matcher.matches("ws://[::1]:443"));
+        Assert.assertTrue(matcher.matches("custom://host"));
+        Assert.assertTrue(matcher.matches("custom://HOST:9"));
+        Assert.assertFalse(matcher.matches("custom://host:10"));
+        Assert.assertFalse(matcher.matches("custom://host:"));
+        Assert.assertFalse(matcher.matches("custom://host:99999"));
+    }
+
+
+    /**
+     * Tests that a large number of allowed origins are kept in a compact
+     * index, and still matched by components.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testIndexedOrigins() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS,
+                "https://a.com, https://B.com:443, http://c.com:8080,"
+                        + " http|https://d.com, https://*.example.com, null",
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_INDEX_THRESHOLD, "3"));
+
+        String[] allowed = { "https://a.com", "https://A.COM:443",
+                "https://b.com", "http://c.com:8080", "http://d.com",
+                "https://x.example.com", "null" };
+        for (String origin : allowed) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertEquals(origin, origin, doFilterGet(corsFilter,
+                    origin, response));
+        }
+        String[] denied = { "http://a.com", "https://a.com:8443",
+                "http://c.com", "https://a.co", "https://a.com." };
+        for (String origin : denied) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            Assert.assertNull(origin, doFilterGet(corsFilter, origin,
+                    response));
+        }
+
+        Collection<String> allowedOrigins = corsFilter.getAllowedOrigins();
+        Assert.assertEquals(6, allowedOrigins.size());
+        Assert.assertTrue(allowedOrigins.contains("https://b.com"));
+        Assert.assertTrue(allowedOrigins.contains("http|https://d.com"));
+        Assert.assertEquals(6, new HashSet<String>(allowedOrigins).size());
+    }
+
+    @Test
+    public void testCompactOriginIndex() {
+        List<String> origins = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            origins.add("https://customer-" + i + ".example.com");
+            origins.add("http://customer-" + i + ".example.net:8080");
+        }
+        // Duplicates, by components.
+        origins.add("HTTPS://customer-1.example.com:443");
+        origins.add("http://customer-1.example.net:8080");
+
+        CompactOriginIndex index = new CompactOriginIndex(origins);
+        Assert.assertEquals(40000, index.size());
+        for (int i = 0; i < 20000; i += 7) {
+            Assert.assertTrue(index.containsOrigin("https://customer-" + i
+                    + ".example.com"));
+            Assert.assertTrue(index.containsOrigin("http://Customer-" + i
+                    + ".example.net:8080"));
+            Assert.assertFalse(index.containsOrigin("http://customer-" + i
+                    + ".example.com"));
+            Assert.assertFalse(index.containsOrigin("https://customer-" + i
+                    + ".example.net:8080"));
+        }
+        Assert.assertTrue(index
+                .containsOrigin("https://customer-5.example.com:443"));
+        Assert.assertTrue(index
+                .containsOrigin("https://customer-5.example.com:0443"));
+        Assert.assertFalse(index
+                .containsOrigin("https://customer-5.example.com:"));
+        Assert.assertFalse(index
+                .containsOrigin("https://customer-20000.example.com"));
+        Assert.assertFalse(index
+                .containsOrigin("https://customer-5.example.c\u00f6m"));
+        Assert.assertFalse(index.containsOrigin(""));
+
+        Set<String> copy = new HashSet<String>(index);
+        Assert.assertEquals(40000, copy.size());
+        Assert.assertTrue(copy.contains("https://customer-1.example.com"));
+        // Bytes of the origins, plus 10 bytes each.
+        long bytes = 0;
+        for (String origin : copy) {
+            bytes += origin.length() + 10;
+        }
+        Assert.assertTrue(index.sizeInBytes() < bytes + 128);
+
+        Assert.assertFalse(new CompactOriginIndex(Collections
+                .<String> emptyList()).containsOrigin("https://a.com"));
+        try {
+            new CompactOriginIndex(Arrays.asList("http|https://a.com"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new CompactOriginIndex(Arrays.asList("https://b\u00fccher.de"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+
+    /**
+     * Tests that origins are allowed from a mapped index file, and that the
+     * filter swaps to the file's new version when it changes.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testOriginFile() throws Exception {
+        File file = File.createTempFile("origins", ".idx");
+        file.deleteOnExit();
+        OriginIndexCompiler.compile(
+                Arrays.asList("https://a.com", "http://b.com:8080"), file);
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_FILE, file.getPath(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_FILE_RELOAD_INTERVAL,
+                "10"));
+        try {
+            Assert.assertEquals("https://a.com", doFilterGet(corsFilter,
+                    "https://a.com", new MockHttpServletResponse()));
+            Assert.assertEquals("HTTP://B.COM:8080", doFilterGet(corsFilter,
+                    "HTTP://B.COM:8080", new MockHttpServletResponse()));
+            Assert.assertEquals("https://www.w3.org", doFilterGet(corsFilter,
+                    "https://www.w3.org", new MockHttpServletResponse()));
+            Assert.assertNull(doFilterGet(corsFilter, "https://c.com",
+                    new MockHttpServletResponse()));
+
+            OriginIndexCompiler.compile(
+                    Arrays.asList("https://a.com", "https://c.com",
+                            "https://d.com"), file);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (doFilterGet(corsFilter, "https://c.com",
+                    new MockHttpServletResponse()) == null) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertNull(doFilterGet(corsFilter, "http://b.com:8080",
+                    new MockHttpServletResponse()));
+            Assert.assertEquals("https://a.com", doFilterGet(corsFilter,
+                    "https://a.com", new MockHttpServletResponse()));
+        } finally {
+            corsFilter.destroy();
+        }
+    }
+
+    /**
+     * Tests that a reloaded origin file reaches the policies of specific
+     * paths that share it with the default policy, and that the origin file
+     * of a host's policy is reloaded too.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testOriginFileOfSelectedPolicies() throws Exception {
+        File file = File.createTempFile("origins", ".idx");
+        file.deleteOnExit();
+        OriginIndexCompiler.compile(Arrays.asList("https://a.com"), file);
+        File partnerFile = File.createTempFile("partners", ".idx");
+        partnerFile.deleteOnExit();
+        OriginIndexCompiler.compile(Arrays.asList("https://p.com"),
+                partnerFile);
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_FILE, file.getPath(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_FILE_RELOAD_INTERVAL,
+                "10",
+                CORSFilter.PARAM_CORS_POLICIES, "api, partner",
+                "cors.policy.api.paths", "/api/*",
+                "cors.policy.api.allowed.origins", "https://api.com",
+                "cors.policy.partner.hosts", "partner.example.com",
+                "cors.policy.partner.allowed.origins.file",
+                partnerFile.getPath()));
+        try {
+            Assert.assertEquals("https://a.com", doFilterGet(corsFilter,
+                    "/api/users", null, "https://a.com"));
+            Assert.assertNull(doFilterGet(corsFilter, "/api/users", null,
+                    "https://c.com"));
+            Assert.assertEquals("https://p.com", doFilterGet(corsFilter,
+                    "/", "partner.example.com", "https://p.com"));
+
+            OriginIndexCompiler.compile(Arrays.asList("https://c.com"), file);
+            OriginIndexCompiler.compile(Arrays.asList("https://q.com"),
+                    partnerFile);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (doFilterGet(corsFilter, "/api/users", null,
+                    "https://c.com") == null
+                    || doFilterGet(corsFilter, "/", "partner.example.com",
+                            "https://q.com") == null) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertNull(doFilterGet(corsFilter, "/api/users", null,
+                    "https://a.com"));
+            Assert.assertEquals("https://api.com", doFilterGet(corsFilter,
+                    "/api/users", null, "https://api.com"));
+            Assert.assertEquals("https://c.com", doFilterGet(corsFilter,
+                    "/other", null, "https://c.com"));
+            Assert.assertNull(doFilterGet(corsFilter, "/",
+                    "partner.example.com", "https://p.com"));
+        } finally {
+            corsFilter.destroy();
+        }
+    }
+
+    private String doFilterGet(final CORSFilter corsFilter,
+            final String servletPath, final String serverName,
+            final String origin) {
+        MockHttpServletRequest request = getRequest(origin);
+        request.setServletPath(servletPath);
+        if (serverName != null) {
+            request.setServerName(serverName);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            corsFilter.doFilter(request, response, filterChain);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN);
+    }
+
+    @Test
+    public void testMappedOriginIndex() throws IOException {
+        List<String> origins = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            origins.add("https://customer-" + i + ".example.com");
+        }
+        File file = File.createTempFile("origins", ".idx");
+        file.deleteOnExit();
+        OriginIndexCompiler.compile(origins, file);
+
+        MappedOriginIndex index = MappedOriginIndex.open(file);
+        Assert.assertEquals(10000, index.size());
+        Assert.assertFalse(index.isStale());
+        for (int i = 0; i < 10000; i += 3) {
+            Assert.assertTrue(index.containsOrigin("https://customer-" + i
+                    + ".example.com:443"));
+            Assert.assertFalse(index.containsOrigin("http://customer-" + i
+                    + ".example.com"));
+        }
+        Assert.assertFalse(index
+                .containsOrigin("https://customer-10000.example.com"));
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 'C', 'O', 'R', 'S', 0, 0, 0, 1 });
+        } finally {
+            out.close();
+        }
+        Assert.assertTrue(index.isStale());
+        try {
+            MappedOriginIndex.open(file);
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = ServletException.class)
+    public void testMissingOriginFile() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS_FILE,
+                new File("does-not-exist.idx").getAbsolutePath()));
+    }
+
+
+    /**
+     * A tenant registry stand-in, for {@link OriginResolver} tests.
+     */
+    public static class TenantRegistryResolver implements OriginResolver {
+        static final Set<String> TENANT_ORIGINS = Collections
+                .synchronizedSet(new HashSet<String>());
+
+        static final AtomicInteger LOOKUPS = new AtomicInteger();
+
+        @Override
+        public void init(final FilterConfig filterConfig) {
+            // NO-OP
+        }
+
+        @Override
+        public boolean isOriginAllowed(final String origin)
+                throws IOException {
+            LOOKUPS.incrementAndGet();
+            return TENANT_ORIGINS.contains(origin);
+        }
+
+        @Override
+        public void destroy() {
+            // NO-OP
+        }
+    }
+
+    /**
+     * Tests that origins the configuration doesn't allow are resolved, and
+     * that answers are cached.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testOriginResolver() throws ServletException, IOException {
+        TenantRegistryResolver.TENANT_ORIGINS.clear();
+        TenantRegistryResolver.TENANT_ORIGINS.add("https://tenant.com");
+        TenantRegistryResolver.LOOKUPS.set(0);
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER,
+                TenantRegistryResolver.class.getName(),
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "16",
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER_TIMEOUT, "5000"));
+        try {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals("https://tenant.com", doFilterGet(
+                        corsFilter, "https://tenant.com",
+                        new MockHttpServletResponse()));
+                Assert.assertNull(doFilterGet(corsFilter, "https://other.com",
+                        new MockHttpServletResponse()));
+                Assert.assertEquals("https://www.w3.org", doFilterGet(
+                        corsFilter, "https://www.w3.org",
+                        new MockHttpServletResponse()));
+            }
+            Assert.assertEquals(2, TenantRegistryResolver.LOOKUPS.get());
+        } finally {
+            corsFilter.destroy();
+        }
+    }
+
+    @Test
+    public void testCachingOriginResolverCoalescesMisses() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger lookups = new AtomicInteger();
+        final CachingOriginResolver resolver =
+                new CachingOriginResolver(new TenantRegistryResolver() {
+                    @Override
+                    public boolean isOriginAllowed(final String origin)
+                            throws IOException {
+                        lookups.incrementAndGet();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                        return true;
+                    }
+                }, 60000, 60000, 100, 5000, false, 2, false);
+        try {
+            final AtomicInteger allowed = new AtomicInteger();
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        if (resolver.isOriginAllowed("https://tenant.com")) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(8, allowed.get());
+            Assert.assertEquals(1, lookups.get());
+            Assert.assertTrue(resolver.isOriginAllowed("https://tenant.com"));
+            Assert.assertEquals(1, lookups.get());
+        } finally {
+            resolver.destroy();
+        }
+    }
+
+    @Test
+    public void testCachingOriginResolverTimeoutAndFailures()
+            throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger lookups = new AtomicInteger();
+        OriginResolver registry = new TenantRegistryResolver() {
+            @Override
+            public boolean isOriginAllowed(final String origin)
+                    throws IOException {
+                lookups.incrementAndGet();
+                if (origin.equals("https://slow.com")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.toString());
+                    }
+                    return true;
+                }
+                if (origin.equals("https://down.com")) {
+                    throw new IOException("Registry down");
+                }
+                return false;
+            }
+        };
+
+        CachingOriginResolver failClosed =
+                new CachingOriginResolver(registry, 60000, 0, 100, 20, false, 2,
+                        false);
+        try {
+            // Times out, then is cached once the lookup completes.
+            Assert.assertFalse(failClosed.isOriginAllowed("https://slow.com"));
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!failClosed.isOriginAllowed("https://slow.com")) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            // Failures and, with no negative time to live, denials aren't
+            // cached.
+            lookups.set(0);
+            Assert.assertFalse(failClosed.isOriginAllowed("https://down.com"));
+            Assert.assertFalse(failClosed.isOriginAllowed("https://down.com"));
+            Assert.assertFalse(failClosed.isOriginAllowed("https://no.com"));
+            Assert.assertFalse(failClosed.isOriginAllowed("https://no.com"));
+            Assert.assertEquals(4, lookups.get());
+        } finally {
+            failClosed.destroy();
+        }
+
+        CachingOriginResolver failOpen =
+                new CachingOriginResolver(registry, 60000, 60000, 100, 1000,
+                        true, 2, false);
+        try {
+            Assert.assertTrue(failOpen.isOriginAllowed("https://down.com"));
+            lookups.set(0);
+            Assert.assertFalse(failOpen.isOriginAllowed("https://no.com"));
+            Assert.assertFalse(failOpen.isOriginAllowed("https://no.com"));
+            Assert.assertEquals(1, lookups.get());
+        } finally {
+            failOpen.destroy();
+        }
+        // Destroyed: fails without waiting.
+        Assert.assertTrue(failOpen.isOriginAllowed("https://other.com"));
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInvalidOriginResolver() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER, String.class.getName()));
+    }
+
+    /**
+     * An {@link OriginResolver} that can't be constructed.
+     */
+    public static class UnavailableResolver extends TenantRegistryResolver {
+        public UnavailableResolver() {
+            throw new IllegalStateException("Registry unavailable");
+        }
+    }
+
+    @Test
+    public void testOriginResolverConstructorFailure() {
+        CORSFilter corsFilter = new CORSFilter();
+        try {
+            corsFilter.init(TestConfigs.withInitParameters(
+                    TestConfigs.getDefaultFilterConfig(),
+                    CORSFilter.PARAM_CORS_ORIGIN_RESOLVER,
+                    UnavailableResolver.class.getName()));
+            Assert.fail();
+        } catch (ServletException e) {
+            Assert.assertTrue(e.getRootCause() instanceof IllegalStateException);
+        }
+    }
+
+
+    /**
+     * A request of a container that supports asynchronous processing.
+     */
+    public static class AsyncMockHttpServletRequest extends
+            MockHttpServletRequest {
+        final MockAsyncContext asyncContext = new MockAsyncContext();
+
+        public boolean isAsyncSupported() {
+            return true;
+        }
+
+        public MockAsyncContext startAsync() {
+            asyncContext.started = true;
+            return asyncContext;
+        }
+    }
+
+    public static class MockAsyncContext {
+        volatile boolean started;
+
+        final CountDownLatch dispatched = new CountDownLatch(1);
+
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        public void dispatch() {
+            dispatched.countDown();
+        }
+
+        public void complete() {
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Tests that requests are suspended while their origin is resolved, and
+     * handled before they are dispatched again, so that the filter only lets
+     * them through then.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncOriginResolution() throws Exception {
+        TenantRegistryResolver.TENANT_ORIGINS.clear();
+        TenantRegistryResolver.TENANT_ORIGINS.add("https://tenant.com");
+        TenantRegistryResolver.LOOKUPS.set(0);
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.setAsyncSupport(new AsyncSupport(
+                AsyncMockHttpServletRequest.class));
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER,
+                TenantRegistryResolver.class.getName(),
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER_ASYNC, "true",
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER_TIMEOUT, "5000"));
+        try {
+            AsyncMockHttpServletRequest request =
+                    new AsyncMockHttpServletRequest();
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    "https://tenant.com");
+            request.setMethod("GET");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+
+            final AtomicInteger chained = new AtomicInteger();
+            FilterChain countingChain = new FilterChain() {
+                @Override
+                public void doFilter(final ServletRequest request,
+                        final ServletResponse response) {
+                    chained.incrementAndGet();
+                    ((HttpServletResponse) response).setHeader("Vary",
+                            "Accept-Encoding");
+                }
+            };
+            corsFilter.doFilter(request, response, countingChain);
+            Assert.assertTrue(request.asyncContext.started);
+            Assert.assertTrue(request.asyncContext.dispatched.await(5,
+                    TimeUnit.SECONDS));
+            Assert.assertEquals(1, request.asyncContext.completed.getCount());
+            // Handled before being dispatched again.
+            Assert.assertEquals("https://tenant.com", response.getHeader(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+            Assert.assertEquals(Boolean.TRUE, request.getAttribute(
+                    CORSFilter.HTTP_REQUEST_ATTRIBUTE_IS_CORS_REQUEST));
+            Assert.assertNull(request
+                    .getAttribute(CORSFilter.RESOLVED_ORIGIN_DECISION));
+            Assert.assertEquals(0, chained.get());
+
+            // Dispatched again, and let through.
+            corsFilter.doFilter(request, response, countingChain);
+            Assert.assertEquals(1, chained.get());
+            Assert.assertNull(request
+                    .getAttribute(CORSFilter.RESUMED_REQUEST));
+            Assert.assertEquals(1, response.getHeaders(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN)
+                    .size());
+            Assert.assertEquals(Arrays.asList("Accept-Encoding", "Origin"),
+                    response.getHeaders("Vary"));
+
+            // Resolved origins, and origins the configuration allows, aren't
+            // suspended.
+            for (String origin : new String[] { "https://tenant.com",
+                    "https://www.w3.org" }) {
+                AsyncMockHttpServletRequest other =
+                        new AsyncMockHttpServletRequest();
+                other.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN, origin);
+                other.setMethod("GET");
+                response = new MockHttpServletResponse();
+                corsFilter.doFilter(other, response, filterChain);
+                Assert.assertFalse(other.asyncContext.started);
+                Assert.assertEquals(origin, response.getHeader(
+                        CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+            }
+            Assert.assertEquals(1, TenantRegistryResolver.LOOKUPS.get());
+        } finally {
+            corsFilter.destroy();
+        }
+    }
+
+    /**
+     * Tests that a suspended request whose origin is denied is rejected and
+     * completed, rather than dispatched again to the resource.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncOriginResolutionDenied() throws Exception {
+        TenantRegistryResolver.TENANT_ORIGINS.clear();
+
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.setAsyncSupport(new AsyncSupport(
+                AsyncMockHttpServletRequest.class));
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER,
+                TenantRegistryResolver.class.getName(),
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER_ASYNC, "true",
+                CORSFilter.PARAM_CORS_ORIGIN_RESOLVER_TIMEOUT, "5000"));
+        try {
+            AsyncMockHttpServletRequest request =
+                    new AsyncMockHttpServletRequest();
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    "https://intruder.com");
+            request.setMethod("GET");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+
+            corsFilter.doFilter(request, response, filterChain);
+            Assert.assertTrue(request.asyncContext.started);
+            Assert.assertTrue(request.asyncContext.completed.await(5,
+                    TimeUnit.SECONDS));
+            Assert.assertEquals(1, request.asyncContext.dispatched.getCount());
+            Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                    response.getStatus());
+            Assert.assertNull(response.getHeader(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+            Assert.assertNull(request
+                    .getAttribute(CORSFilter.RESUMED_REQUEST));
+        } finally {
+            corsFilter.destroy();
+        }
+    }
+
+    @Test
+    public void testAsyncOriginResolutionTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CachingOriginResolver resolver =
+                new CachingOriginResolver(new TenantRegistryResolver() {
+                    @Override
+                    public boolean isOriginAllowed(final String origin)
+                            throws IOException {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                        return true;
+                    }
+                }, 60000, 60000, 100, 20, false, 2, true);
+        try {
+            final BlockingQueue<Boolean> answers =
+                    new LinkedBlockingQueue<Boolean>();
+            CachingOriginResolver.Callback callback =
+                    new CachingOriginResolver.Callback() {
+                        @Override
+                        public void resolved(final boolean allowed) {
+                            answers.add(Boolean.valueOf(allowed));
+                        }
+                    };
+            resolver.resolve("https://slow.com", callback);
+            Assert.assertEquals(Boolean.FALSE, answers.poll(5,
+                    TimeUnit.SECONDS));
+            Assert.assertNull(resolver.getCached("https://slow.com"));
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (resolver.getCached("https://slow.com") == null) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            // Called back once, and right away once cached.
+            Assert.assertTrue(answers.isEmpty());
+            resolver.resolve("https://slow.com", callback);
+            Assert.assertEquals(Boolean.TRUE, answers.poll());
+        } finally {
+            resolver.destroy();
+        }
+    }
+
+    @Test
+    public void testAsyncSupportServlet25() {
+        Assert.assertFalse(AsyncSupport.SERVLET
+                .isAsyncSupported(new MockHttpServletRequest()));
+        Assert.assertFalse(new AsyncSupport(AsyncMockHttpServletRequest.class)
+                .isAsyncSupported(new MockHttpServletRequest()));
+    }
+
+
+    private String doFilterPath(final CORSFilter corsFilter,
+            final String servletPath, final String pathInfo,
+            final String origin) {
+        MockHttpServletRequest request =
+                (MockHttpServletRequest) getRequest(origin);
+        request.setServletPath(servletPath);
+        request.setPathInfo(pathInfo);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            corsFilter.doFilter(request, response, filterChain);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN);
+    }
+
+    /**
+     * Tests policies of specific paths, and excluded paths.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testPathPolicies() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_POLICIES, "api, partner",
+                "cors.policy.api.paths", "/api/*, /*/legacy",
+                "cors.policy.api.allowed.origins", "https://api.com",
+                "cors.policy.partner.paths", "/api/partner/*",
+                "cors.policy.partner.allowed.origins", "*",
+                "cors.policy.partner.support.credentials", "false",
+                CORSFilter.PARAM_CORS_EXCLUDED_PATHS,
+                "/static/*, /api/health"));
+        try {
+            // Default policy.
+            Assert.assertEquals("https://www.w3.org", doFilterPath(corsFilter,
+                    "/index.html", null, "https://www.w3.org"));
+            Assert.assertNull(doFilterPath(corsFilter, "/index.html", null,
+                    "https://api.com"));
+            // Prefix, by servlet path and path info.
+            Assert.assertEquals("https://api.com", doFilterPath(corsFilter,
+                    "/api", null, "https://api.com"));
+            Assert.assertEquals("https://api.com", doFilterPath(corsFilter,
+                    "/api", "/v1/users", "https://api.com"));
+            Assert.assertNull(doFilterPath(corsFilter, "/api", "/v1/users",
+                    "https://www.w3.org"));
+            Assert.assertNull(doFilterPath(corsFilter, "/apis", null,
+                    "https://api.com"));
+            // Longest prefix, and its inherited params.
+            Assert.assertEquals("*", doFilterPath(corsFilter, "/api",
+                    "/partner/orders", "https://any.com"));
+            // One segment wildcard.
+            Assert.assertEquals("https://api.com", doFilterPath(corsFilter,
+                    "/v2/legacy", null, "https://api.com"));
+            Assert.assertNull(doFilterPath(corsFilter, "/v2/legacy/x", null,
+                    "https://api.com"));
+            // Exclusions.
+            Assert.assertNull(doFilterPath(corsFilter, "/static", "/app.js",
+                    "https://www.w3.org"));
+            Assert.assertNull(doFilterPath(corsFilter, "/api/health", null,
+                    "https://api.com"));
+            Assert.assertEquals("https://api.com", doFilterPath(corsFilter,
+                    "/api/health/x", null, "https://api.com"));
+        } finally {
+            corsFilter.destroy();
+        }
+
+        // The evaluation of an excluded request.
+        corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_EXCLUDED_PATHS, "/static/*"));
+        MockHttpServletRequest request =
+                (MockHttpServletRequest) getRequest("https://www.w3.org");
+        request.setServletPath("/static/app.js");
+        Assert.assertEquals(CORSFilter.CORSRequestType.NOT_CORS,
+                corsFilter.checkRequestType(request));
+        request.setServletPath("/app.js");
+        Assert.assertEquals(CORSFilter.CORSRequestType.SIMPLE,
+                corsFilter.checkRequestType(request));
+    }
+
+    @Test
+    public void testPathPolicyTrie() {
+        CorsPolicy a = CorsPolicy.EMPTY.withSelectedPolicies(null, null);
+        CorsPolicy b = CorsPolicy.EMPTY.withSelectedPolicies(null, null);
+        CorsPolicy fallback = CorsPolicy.EMPTY;
+        PathPolicyTrie trie = new PathPolicyTrie();
+        trie.add("/", a);
+        trie.add("/a/*", a);
+        trie.add("/a/b", b);
+        trie.add("/a/*/c/*", b);
+        trie.add("/x/*", null);
+        Assert.assertSame(a, trie.select("", fallback));
+        Assert.assertSame(a, trie.select("/", fallback));
+        Assert.assertSame(a, trie.select("/a", fallback));
+        Assert.assertSame(b, trie.select("/a/b", fallback));
+        Assert.assertSame(a, trie.select("/a/b/d", fallback));
+        Assert.assertSame(b, trie.select("/a/z/c", fallback));
+        Assert.assertSame(b, trie.select("/a/z/c/d/e", fallback));
+        Assert.assertSame(fallback, trie.select("/b", fallback));
+        Assert.assertSame(fallback, trie.select("/A", fallback));
+        Assert.assertNull(trie.select("/x/y", fallback));
+        Assert.assertEquals(2, trie.getPolicies().size());
+
+        for (String invalid : new String[] { "a", "/a*", "/a/*" }) {
+            try {
+                trie.add(invalid, a);
+                Assert.fail(invalid);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidPathPolicies() {
+        String[][] configs = {
+                { CORSFilter.PARAM_CORS_POLICIES, "api" },
+                { CORSFilter.PARAM_CORS_POLICIES, "api",
+                        "cors.policy.api.paths", "api" },
+                { CORSFilter.PARAM_CORS_POLICIES, "api",
+                        "cors.policy.api.paths", "/api/*",
+                        "cors.policy.api.preflight.maxage", "abc" },
+                { CORSFilter.PARAM_CORS_EXCLUDED_PATHS, "/a/*, /a/*x" } };
+        for (String[] params : configs) {
+            try {
+                new CORSFilter().init(TestConfigs.withInitParameters(
+                        TestConfigs.getDefaultFilterConfig(), params));
+                Assert.fail(Arrays.toString(params));
+            } catch (ServletException e) {
+                // Expected
+            }
+        }
+    }
+
+
+    private String doFilterHost(final CORSFilter corsFilter,
+            final String serverName, final String servletPath,
+            final String origin) {
+        MockHttpServletRequest request =
+                (MockHttpServletRequest) getRequest(origin);
+        request.setServerName(serverName);
+        request.setServletPath(servletPath);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            corsFilter.doFilter(request, response, filterChain);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN);
+    }
+
+    /**
+     * Tests policies of specific virtual hosts, alongside policies of paths.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testHostPolicies() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS, "https://www.w3.org",
+                CORSFilter.PARAM_CORS_POLICIES, "shop, blog, api",
+                "cors.policy.shop.hosts", "shop.example.com, Store.example.com",
+                "cors.policy.shop.allowed.origins", "https://shop.com",
+                "cors.policy.blog.hosts", "blog.example.com",
+                "cors.policy.blog.allowed.origins", "https://blog.com",
+                "cors.policy.api.paths", "/api/*",
+                "cors.policy.api.allowed.origins", "https://api.com"));
+        try {
+            Assert.assertEquals("https://shop.com", doFilterHost(corsFilter,
+                    "shop.example.com", "/index.html", "https://shop.com"));
+            Assert.assertEquals("https://shop.com", doFilterHost(corsFilter,
+                    "STORE.example.com", "/index.html", "https://shop.com"));
+            Assert.assertNull(doFilterHost(corsFilter, "shop.example.com",
+                    "/index.html", "https://blog.com"));
+            Assert.assertEquals("https://blog.com", doFilterHost(corsFilter,
+                    "blog.example.com", "/index.html", "https://blog.com"));
+            // Default fallback.
+            Assert.assertEquals("https://www.w3.org", doFilterHost(
+                    corsFilter, "other.example.com", "/index.html",
+                    "https://www.w3.org"));
+            Assert.assertNull(doFilterHost(corsFilter, "other.example.com",
+                    "/index.html", "https://shop.com"));
+            // Paths take precedence over hosts.
+            Assert.assertEquals("https://api.com", doFilterHost(corsFilter,
+                    "shop.example.com", "/api/orders", "https://api.com"));
+        } finally {
+            corsFilter.destroy();
+        }
+
+        try {
+            new CORSFilter().init(TestConfigs.withInitParameters(
+                    TestConfigs.getDefaultFilterConfig(),
+                    CORSFilter.PARAM_CORS_POLICIES, "a, b",
+                    "cors.policy.a.hosts", "example.com",
+                    "cors.policy.b.hosts", "EXAMPLE.com"));
+            Assert.fail("Duplicate host");
+        } catch (ServletException e) {
+            // Expected
+        }
+    }
+
+
+    private MockHttpServletResponse doFilterPreflight(
+            final CORSFilter corsFilter, final String origin,
+            final String method, final String headers) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN, origin);
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD, method);
+        if (headers != null) {
+            request.setHeader(
+                    CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_HEADERS,
+                    headers);
+        }
+        request.setMethod("OPTIONS");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            corsFilter.doFilter(request, response, filterChain);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return response;
+    }
+
+    /**
+     * Tests that pre-flight decisions are cached, accepted or rejected, and
+     * discarded when the filter is reconfigured.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testPreflightDecisionCache() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        FilterConfig filterConfig = TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_PREFLIGHT_CACHE_CAPACITY, "64");
+        corsFilter.init(filterConfig);
+        Assert.assertEquals(64, corsFilter.getPreflightCacheCapacity());
+
+        for (int i = 0; i < 3; i++) {
+            MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                    TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "Content-Type");
+            Assert.assertEquals(TestConfigs.HTTPS_WWW_APACHE_ORG, response
+                    .getHeader(CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+            Assert.assertEquals("PUT", response.getHeader(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS));
+            Assert.assertEquals("true", response.getHeader(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_CREDENTIALS));
+            Assert.assertEquals(CORSFilter.DEFAULT_PREFLIGHT_MAXAGE, response
+                    .getHeader(CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_MAX_AGE));
+
+            response = doFilterPreflight(corsFilter,
+                    TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "X-Custom");
+            Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                    response.getStatus());
+            Assert.assertNull(response.getHeader(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+        }
+        Assert.assertEquals(4, corsFilter.getPreflightCacheHits());
+        Assert.assertEquals(2, corsFilter.getPreflightCacheMisses());
+
+        // The raw tuple is the key.
+        doFilterPreflight(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT",
+                null);
+        Assert.assertEquals(3, corsFilter.getPreflightCacheMisses());
+
+        // Reconfiguring discards the cached decisions.
+        corsFilter.init(filterConfig);
+        Assert.assertEquals(0, corsFilter.getPreflightCacheHits());
+        doFilterPreflight(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT",
+                "Content-Type");
+        Assert.assertEquals(1, corsFilter.getPreflightCacheMisses());
+        corsFilter.destroy();
+    }
+
+    @Test
+    public void testPreflightDecisionCacheEviction() {
+        PreflightDecisionCache cache = new PreflightDecisionCache(3);
+        Assert.assertEquals(SetAssociativeCache.WAYS, cache.capacity());
+        String[] accepted = { "Access-Control-Allow-Origin", "*" };
+        for (int i = 0; i < 10; i++) {
+            cache.put("https://" + i + ".com", "PUT", null, accepted);
+        }
+        int cached = 0;
+        for (int i = 0; i < 10; i++) {
+            if (cache.get("https://" + i + ".com", "PUT", null) != null) {
+                cached++;
+            }
+        }
+        Assert.assertEquals(SetAssociativeCache.WAYS, cached);
+        Assert.assertSame(accepted, cache.get("https://9.com", "PUT", null));
+        Assert.assertNull(cache.get("https://9.com", "PUT", ""));
+        cache.put("https://9.com", "PUT", "", PreflightDecisionCache.REJECTED);
+        Assert.assertSame(PreflightDecisionCache.REJECTED,
+                cache.get("https://9.com", "PUT", ""));
+        Assert.assertEquals(13, cache.getHits() + cache.getMisses());
+    }
+
+    /**
+     * Tests that a known pre-flight is served from the pre-flight cache
+     * without validating its origin again.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testPreflightDecisionCacheBeforeOriginValidation()
+            throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "16",
+                CORSFilter.PARAM_CORS_PREFLIGHT_CACHE_CAPACITY, "16"));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setHeader(
+                CORSFilter.REQUEST_HEADER_ACCESS_CONTROL_REQUEST_METHOD, "PUT");
+        request.setMethod("OPTIONS");
+
+        CORSRequestEvaluation evaluation = corsFilter.evaluate(request);
+        Assert.assertEquals(CORSFilter.CORSRequestType.PRE_FLIGHT,
+                evaluation.getRequestType());
+        Assert.assertNotNull(evaluation.getOriginDecision());
+        Assert.assertNull(evaluation.getPreflightDecision());
+
+        doFilterPreflight(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT",
+                null);
+        evaluation = corsFilter.evaluate(request);
+        Assert.assertEquals(CORSFilter.CORSRequestType.PRE_FLIGHT,
+                evaluation.getRequestType());
+        Assert.assertNull(evaluation.getOriginDecision());
+        Assert.assertNotNull(evaluation.getPreflightDecision());
+        Assert.assertEquals(1, corsFilter.getPreflightCacheHits());
+        corsFilter.destroy();
+    }
+
+
+    /**
+     * Tests the prebuilt response headers of simple requests, kept with the
+     * cached origin decisions, and their reported size.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testOriginResponseHeaders() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_SUPPORT_CREDENTIALS, "false",
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "16"));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("*", doFilterGet(corsFilter, "https://" + i
+                    + ".com", new MockHttpServletResponse()));
+        }
+        // One array of one header, shared by all origins: 24 bytes, with 96
+        // and 48 bytes for its name and value.
+        Assert.assertEquals(168,
+                corsFilter.getOriginCacheResponseHeadersBytes());
+
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS,
+                "https://0.com, https://1.com, https://2.com",
+                CORSFilter.PARAM_CORS_EXPOSED_HEADERS, "X-Custom",
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "16"));
+        Assert.assertEquals(0, corsFilter.getOriginCacheResponseHeadersBytes());
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 4; i++) {
+                MockHttpServletResponse response =
+                        new MockHttpServletResponse();
+                String allowOrigin =
+                        doFilterGet(corsFilter, "https://" + i + ".com",
+                                response);
+                if (i < 3) {
+                    Assert.assertEquals("https://" + i + ".com", allowOrigin);
+                    Assert.assertEquals("true", response.getHeader(
+                            CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_CREDENTIALS));
+                    Assert.assertEquals("X-Custom", response.getHeader(
+                            CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_EXPOSE_HEADERS));
+                } else {
+                    Assert.assertNull(allowOrigin);
+                }
+            }
+        }
+        // An array of three headers per allowed origin, 40 bytes, holding
+        // its own origin, 72 bytes, and the shared names, 96, 104 and 104
+        // bytes, and values "true" and "X-Custom", 48 and 56 bytes.
+        Assert.assertEquals(3 * 40 + 3 * 72 + 96 + 104 + 104 + 48 + 56,
+                corsFilter.getOriginCacheResponseHeadersBytes());
+        corsFilter.destroy();
+    }
+
+    /**
+     * Tests that the response headers of configured origins are prebuilt,
+     * without origin decision caching.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testPrebuiltResponseHeaders() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_ORIGINS,
+                "https://0.com, null, https://*.example.com,"
+                        + " HTTPS://B.com:443, http|https://c.com,"
+                        + " https://d.com:8000-8100",
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "0"));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        CorsPolicy policy = corsFilter.evaluate(request).getPolicy();
+        for (String origin : new String[] { "https://0.com", "null",
+                "https://b.com" }) {
+            String[] responseHeaders = policy.getResponseHeaders(origin);
+            Assert.assertEquals(origin, responseHeaders[1]);
+            Assert.assertSame(responseHeaders,
+                    policy.getResponseHeaders(origin));
+        }
+        // Built on demand, reflecting the origin as spelled.
+        for (String origin : new String[] { "https://a.example.com",
+                "HTTPS://B.com:443", "http://c.com", "https://d.com:8000" }) {
+            String[] responseHeaders = policy.getResponseHeaders(origin);
+            Assert.assertEquals(origin, responseHeaders[1]);
+            Assert.assertNotSame(responseHeaders,
+                    policy.getResponseHeaders(origin));
+        }
+
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_SUPPORT_CREDENTIALS, "false",
+                CORSFilter.PARAM_CORS_ORIGIN_CACHE_CAPACITY, "0"));
+        policy = corsFilter.evaluate(request).getPolicy();
+        Assert.assertEquals("*", policy.getResponseHeaders("https://0.com")[1]);
+        Assert.assertSame(policy.getResponseHeaders("https://0.com"),
+                policy.getResponseHeaders("https://1.com"));
+        corsFilter.destroy();
+    }
+
+
+    /**
+     * Tests that 'Origin' is merged into the 'Vary' response header, when
+     * responses reflect the origin.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testVaryOrigin() throws ServletException, IOException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        corsFilter.setVaryHeader(new VaryHeader(
+                MockHttpServletResponse.class));
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        doFilterGet(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG, response);
+        Assert.assertEquals("Origin", response.getHeader("Vary"));
+
+        String[][] merges = { { "Accept-Encoding", "Accept-Encoding, Origin" },
+                { "accept-encoding , ORIGIN", "accept-encoding , ORIGIN" },
+                { "*", "*" } };
+        for (String[] merge : merges) {
+            response = new MockHttpServletResponse();
+            response.setHeader("Vary", merge[0]);
+            doFilterGet(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG,
+                    response);
+            Assert.assertEquals(merge[1], response.getHeader("Vary"));
+            Assert.assertEquals(1, response.getHeaders("Vary").size());
+        }
+
+        // Pre-flight, and a request that's not a CORS request.
+        response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", null);
+        Assert.assertEquals("Origin, Access-Control-Request-Method, "
+                + "Access-Control-Request-Headers", response.getHeader("Vary"));
+        response = new MockHttpServletResponse();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        corsFilter.doFilter(request, response, filterChain);
+        Assert.assertEquals("Origin", response.getHeader("Vary"));
+
+        // Values already set can't be read in a Servlet 2.5 container.
+        corsFilter.setVaryHeader(VaryHeader.SERVLET);
+        response = new MockHttpServletResponse();
+        response.setHeader("Vary", "Accept-Encoding");
+        doFilterGet(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG, response);
+        Assert.assertEquals(Arrays.asList("Accept-Encoding", "Origin"),
+                response.getHeaders("Vary"));
+
+        // '*' for any origin doesn't vary.
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_SUPPORT_CREDENTIALS, "false"));
+        response = new MockHttpServletResponse();
+        Assert.assertEquals("*", doFilterGet(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, response));
+        Assert.assertNull(response.getHeader("Vary"));
+        response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "POST", null);
+        Assert.assertEquals("Access-Control-Request-Method, "
+                + "Access-Control-Request-Headers", response.getHeader("Vary"));
+        corsFilter.destroy();
+    }
+
+
+    /**
+     * Tests that 'Origin' stays in the 'Vary' response header when the
+     * application sets it, and that rejections vary on 'Origin' too.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testVaryOriginSetByApplication() throws ServletException,
+            IOException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        corsFilter.setVaryHeader(new VaryHeader(
+                MockHttpServletResponse.class));
+        FilterChain settingChain = new FilterChain() {
+            @Override
+            public void doFilter(final ServletRequest request,
+                    final ServletResponse response) {
+                ((HttpServletResponse) response).setHeader("Vary",
+                        "Accept-Encoding");
+            }
+        };
+        FilterChain addingChain = new FilterChain() {
+            @Override
+            public void doFilter(final ServletRequest request,
+                    final ServletResponse response) {
+                ((HttpServletResponse) response).addHeader("Vary",
+                        "origin, Accept-Encoding");
+            }
+        };
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setMethod("GET");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, settingChain);
+        Assert.assertEquals("Accept-Encoding, Origin",
+                response.getHeader("Vary"));
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, addingChain);
+        Assert.assertEquals("Origin, Accept-Encoding",
+                response.getHeader("Vary"));
+        Assert.assertEquals(1, response.getHeaders("Vary").size());
+
+        // A request that's not a CORS request.
+        request = new MockHttpServletRequest();
+        request.setMethod("GET");
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, settingChain);
+        Assert.assertEquals("Accept-Encoding, Origin",
+                response.getHeader("Vary"));
+
+        // Rejected, even when any origin is allowed with '*'.
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getDefaultFilterConfig(),
+                CORSFilter.PARAM_CORS_SUPPORT_CREDENTIALS, "false"));
+        request = new MockHttpServletRequest();
+        request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                TestConfigs.HTTPS_WWW_APACHE_ORG);
+        request.setMethod("DELETE");
+        response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, settingChain);
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                response.getStatus());
+        Assert.assertEquals("Origin", response.getHeader("Vary"));
+        corsFilter.destroy();
+    }
+
+    /**
+     * Tests that accepted pre-flights are made cacheable by shared caches, on
+     * demand.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testCacheablePreflight() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_PREFLIGHT_CACHEABLE, "true",
+                CORSFilter.PARAM_CORS_PREFLIGHT_MAXAGE, "600",
+                CORSFilter.PARAM_CORS_PREFLIGHT_CACHE_CAPACITY, "16"));
+        corsFilter.setVaryHeader(new VaryHeader(
+                MockHttpServletResponse.class));
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                    TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "Content-Type");
+            Assert.assertEquals("public, max-age=600", response
+                    .getHeader(CORSFilter.RESPONSE_HEADER_CACHE_CONTROL));
+            Assert.assertEquals("Origin, Access-Control-Request-Method, "
+                    + "Access-Control-Request-Headers",
+                    response.getHeader("Vary"));
+        }
+
+        // Rejected pre-flights and other requests aren't made cacheable.
+        MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "X-Custom");
+        Assert.assertNull(response
+                .getHeader(CORSFilter.RESPONSE_HEADER_CACHE_CONTROL));
+        response = new MockHttpServletResponse();
+        doFilterGet(corsFilter, TestConfigs.HTTPS_WWW_APACHE_ORG, response);
+        Assert.assertNull(response
+                .getHeader(CORSFilter.RESPONSE_HEADER_CACHE_CONTROL));
+        Assert.assertEquals("Origin", response.getHeader("Vary"));
+
+        // Off by default.
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "Content-Type");
+        Assert.assertNull(response
+                .getHeader(CORSFilter.RESPONSE_HEADER_CACHE_CONTROL));
+        Assert.assertEquals("Origin, Access-Control-Request-Method, "
+                + "Access-Control-Request-Headers", response.getHeader("Vary"));
+        corsFilter.destroy();
+    }
+
+
+    /**
+     * Tests that accepted pre-flights are answered with 204 (No Content), and
+     * committed, without touching the response body, on demand.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testPreflightNoContent() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_PREFLIGHT_NO_CONTENT, "true",
+                CORSFilter.PARAM_CORS_PREFLIGHT_CACHE_CAPACITY, "16"));
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                    TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "Content-Type");
+            Assert.assertEquals(HttpServletResponse.SC_NO_CONTENT,
+                    response.getStatus());
+            Assert.assertTrue(response.isCommitted());
+            Assert.assertFalse(response.outputAccessed);
+            Assert.assertEquals(TestConfigs.HTTPS_WWW_APACHE_ORG, response
+                    .getHeader(CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_ORIGIN));
+        }
+
+        // Rejected pre-flights are answered as before.
+        MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "X-Custom");
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                response.getStatus());
+
+        // Off by default.
+        corsFilter.init(TestConfigs.getSpecificOriginFilterConfig());
+        response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "PUT", "Content-Type");
+        Assert.assertEquals(0, response.getStatus());
+        Assert.assertFalse(response.isCommitted());
+        corsFilter.destroy();
+    }
+
+
+    /**
+     * Tests that accepted pre-flights list all the allowed methods, on
+     * demand.
+     * 
+     * @throws ServletException
+     */
+    @Test
+    public void testPreflightAllMethods() throws ServletException {
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_METHODS,
+                "GET, PUT, DELETE, PATCH",
+                CORSFilter.PARAM_CORS_PREFLIGHT_ALL_METHODS, "true"));
+        for (String method : new String[] { "PUT", "DELETE", "PATCH" }) {
+            MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                    TestConfigs.HTTPS_WWW_APACHE_ORG, method, null);
+            Assert.assertEquals("DELETE,GET,PATCH,PUT", response.getHeader(
+                    CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS));
+        }
+        // Methods that aren't allowed are still rejected.
+        MockHttpServletResponse response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "POST", null);
+        Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                response.getStatus());
+        Assert.assertNull(response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS));
+
+        // Off by default.
+        corsFilter.init(TestConfigs.withInitParameters(
+                TestConfigs.getSpecificOriginFilterConfig(),
+                CORSFilter.PARAM_CORS_ALLOWED_METHODS,
+                "GET, PUT, DELETE, PATCH"));
+        response = doFilterPreflight(corsFilter,
+                TestConfigs.HTTPS_WWW_APACHE_ORG, "DELETE", null);
+        Assert.assertEquals("DELETE", response.getHeader(
+                CORSFilter.RESPONSE_HEADER_ACCESS_CONTROL_ALLOW_METHODS));
+        corsFilter.destroy();
+    }
+
+
+    /**
+     * Tests that rejected requests are logged asynchronously under a policy
+     * of specific paths that enables logging, even though the default policy
+     * doesn't.
+     * 
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Test
+    public void testAsyncRejectionLoggingOfPathPolicy() throws IOException,
+            ServletException {
+        MockServletContext servletContext = new MockServletContext();
+        CORSFilter corsFilter = new CORSFilter();
+        corsFilter.init(TestConfigs.withServletContext(
+                TestConfigs.withInitParameters(
+                        TestConfigs.getSpecificOriginFilterConfig(),
+                        CORSFilter.PARAM_CORS_LOGGING_ASYNC, "true",
+                        CORSFilter.PARAM_CORS_LOGGING_RATE_LIMIT, "1",
+                        CORSFilter.PARAM_CORS_POLICIES, "api",
+                        "cors.policy.api.paths", "/api/*",
+                        "cors.policy.api.logging.enabled", "true"),
+                servletContext));
+
+        for (String path : new String[] { "/api/users", "/api/users",
+                "/other" }) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setServletPath(path);
+            request.setHeader(CORSFilter.REQUEST_HEADER_ORIGIN,
+                    "http://www.example.com");
+            request.setMethod("GET");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            corsFilter.doFilter(request, response, filterChain);
+            Assert.assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                    response.getStatus());
+        }
+        corsFilter.destroy();
+
+        // Rate limited, as logged asynchronously.
+        List<String> messages = servletContext.getLogMessages();
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals(
+                "Invalid CORS request; Origin=http://www.example.com;Method=GET",
+                messages.get(0));
+        Assert.assertTrue(messages.get(1).startsWith("Suppressed 1 "));
+    }
+
     @Test
     public void testDestroy() {
         // Nothing to test.
@@ -43,6 +43,9 @@ public class MockHttpServletRequest implements HttpServletRequest {
             new HashMap<String, List<String>>();
     private String method;
     private String contentType;
+    private String servletPath = "";
+    private String serverName = "localhost";
+    private String pathInfo;
 
     public Object getAttribute(String name) {
         return attributes.get(name);
@@ -111,8 +114,11 @@ public class MockHttpServletRequest implements HttpServletRequest {
     }
 
     public String getServerName() {
+        return serverName;
+    }
 
-        throw new RuntimeException("Not implemented");
+    public void setServerName(String serverName) {
+        this.serverName = serverName;
     }
 
     public int getServerPort() {
@@ -240,8 +246,11 @@ public class MockHttpServletRequest implements HttpServletRequest {
     }
 
     public String getPathInfo() {
+        return pathInfo;
+    }
 
-        throw new RuntimeException("Not implemented");
+    public void setPathInfo(String pathInfo) {
+        this.pathInfo = pathInfo;
     }
 
     public String getPathTranslated() {
@@ -290,8 +299,11 @@ public class MockHttpServletRequest implements HttpServletRequest {
     }
 
     public String getServletPath() {
+        return servletPath;
+    }
 
-        throw new RuntimeException("Not implemented");
+    public void setServletPath(String servletPath) {
+        this.servletPath = servletPath;
     }
 
     public HttpSession getSession(boolean create) {
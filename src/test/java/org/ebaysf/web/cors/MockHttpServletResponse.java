@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 
@@ -31,6 +32,8 @@ public class MockHttpServletResponse implements HttpServletResponse {
     List headerValues = new ArrayList();
     PrintWriter pw;
     int status;
+    boolean committed;
+    boolean outputAccessed;
 
     public String getCharacterEncoding() {
 
@@ -43,11 +46,12 @@ public class MockHttpServletResponse implements HttpServletResponse {
     }
 
     public ServletOutputStream getOutputStream() throws IOException {
-
+        outputAccessed = true;
         throw new RuntimeException("Not implemented");
     }
 
     public PrintWriter getWriter() throws IOException {
+        outputAccessed = true;
         if (pw == null) {
             pw = new PrintWriter(new StringWriter());
         }
@@ -75,14 +79,14 @@ public class MockHttpServletResponse implements HttpServletResponse {
     }
 
     public void flushBuffer() throws IOException {
-        throw new RuntimeException("Not implemented");
+        committed = true;
     }
 
     public void resetBuffer() {
     }
 
     public boolean isCommitted() {
-        throw new RuntimeException("Not implemented");
+        return committed;
     }
 
     public void reset() {
@@ -103,7 +107,7 @@ public class MockHttpServletResponse implements HttpServletResponse {
     }
 
     public boolean containsHeader(String name) {
-        throw new RuntimeException("Not implemented");
+        return headerNames.contains(name);
     }
 
     public String encodeURL(String url) {
@@ -154,6 +158,16 @@ public class MockHttpServletResponse implements HttpServletResponse {
         return null;
     }
 
+    public Collection<String> getHeaders(String name) {
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < headerNames.size(); i++) {
+            if (name.equals(headerNames.get(i))) {
+                values.add((String) headerValues.get(i));
+            }
+        }
+        return values;
+    }
+
     public void setHeader(String name, String value) {
         int index = headerNames.indexOf(name);
         if (index != -1) {
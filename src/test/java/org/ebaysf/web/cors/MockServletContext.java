@@ -18,7 +18,10 @@ package org.ebaysf.web.cors;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.RequestDispatcher;
@@ -27,6 +30,12 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 
 public class MockServletContext implements ServletContext {
+    private final List<String> logMessages = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    public List<String> getLogMessages() {
+        return logMessages;
+    }
 
     public String getContextPath() {
         throw new RuntimeException("Not implemented");
@@ -86,7 +95,7 @@ public class MockServletContext implements ServletContext {
     }
 
     public void log(String msg) {
-        // NOOP
+        logMessages.add(msg);
     }
 
     public void log(Exception exception, String msg) {
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2012-2013 eBay Software Foundation, All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.ebaysf.web.cors;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Compares {@link OriginValidator} against the {@link URI} based validation it
+ * replaced. Not a unit test; run it from the test classpath:
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes \
+ *     org.ebaysf.web.cors.OriginValidatorBenchmark
+ * </pre>
+ */
+public class OriginValidatorBenchmark {
+    private static final String[] ORIGINS = { "https://www.apache.org",
+            "http://tomcat.apache.org:8080", "https://app-42.partner.net",
+            "null", "http://www.w3.org%0d%0a", "www.example.com" };
+
+    private static final int WARMUP_ITERATIONS = 2000000;
+
+    private static final int ITERATIONS = 10000000;
+
+    public static void main(String[] args) {
+        for (String origin : ORIGINS) {
+            if (isValidOriginURI(origin) != OriginValidator.isValid(origin)) {
+                System.out.println("Verdicts differ for: " + origin);
+            }
+        }
+
+        run(true, WARMUP_ITERATIONS);
+        run(false, WARMUP_ITERATIONS);
+
+        report("java.net.URI", true);
+        report("OriginValidator", false);
+    }
+
+    private static void report(final String name, final boolean uri) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int valid = run(uri, ITERATIONS);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format(
+                "%-16s %8.2f ns/op %10s B/op (%d valid)", name,
+                (double) elapsed / ITERATIONS,
+                allocatedBefore < 0 ? "n/a" : String.format("%.2f",
+                        (double) allocated / ITERATIONS), valid));
+    }
+
+    private static int run(final boolean uri, final int iterations) {
+        int valid = 0;
+        for (int i = 0; i < iterations; i++) {
+            String origin = ORIGINS[i % ORIGINS.length];
+            boolean result =
+                    uri ? isValidOriginURI(origin) : OriginValidator
+                            .isValid(origin);
+            if (result) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * The validation as it used to be done by
+     * {@link CORSFilter#isValidOrigin(String)}.
+     */
+    private static boolean isValidOriginURI(final String origin) {
+        if (origin.contains("%")) {
+            return false;
+        }
+        if ("null".equals(origin)) {
+            return true;
+        }
+        if (origin.startsWith("file://")) {
+            return true;
+        }
+        URI originURI;
+        try {
+            originURI = new URI(origin);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        return originURI.getScheme() != null;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread; -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -16,6 +16,8 @@
 package org.ebaysf.web.cors;
 
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
@@ -255,6 +257,74 @@ public class TestConfigs {
                 preflightMaxAge, loggingEnabled, decorateRequest);
     }
 
+    /**
+     * Returns a {@link FilterConfig} with additional init params on top of a
+     * given {@link FilterConfig}.
+     * 
+     * @param filterConfig
+     *            The base {@link FilterConfig}.
+     * @param namesAndValues
+     *            Pairs of init param names and values.
+     */
+    public static FilterConfig withInitParameters(
+            final FilterConfig filterConfig, final String... namesAndValues) {
+        final Map<String, String> initParameters =
+                new HashMap<String, String>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            initParameters.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return new FilterConfig() {
+
+            public String getFilterName() {
+                return filterConfig.getFilterName();
+            }
+
+            public ServletContext getServletContext() {
+                return filterConfig.getServletContext();
+            }
+
+            public String getInitParameter(String name) {
+                if (initParameters.containsKey(name)) {
+                    return initParameters.get(name);
+                }
+                return filterConfig.getInitParameter(name);
+            }
+
+            @SuppressWarnings("rawtypes")
+            public Enumeration getInitParameterNames() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link FilterConfig} with a given {@link ServletContext}, on
+     * top of a given {@link FilterConfig}.
+     */
+    public static FilterConfig withServletContext(
+            final FilterConfig filterConfig,
+            final ServletContext servletContext) {
+        return new FilterConfig() {
+
+            public String getFilterName() {
+                return filterConfig.getFilterName();
+            }
+
+            public ServletContext getServletContext() {
+                return servletContext;
+            }
+
+            public String getInitParameter(String name) {
+                return filterConfig.getInitParameter(name);
+            }
+
+            @SuppressWarnings("rawtypes")
+            public Enumeration getInitParameterNames() {
+                return filterConfig.getInitParameterNames();
+            }
+        };
+    }
+
     private static FilterConfig generateFilterConfig(
             final String allowedHttpHeaders, final String allowedHttpMethods,
             final String allowedOrigins, final String exposedHeaders,